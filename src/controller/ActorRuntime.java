@@ -0,0 +1,270 @@
+package controller;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import metrics.Counter;
+import metrics.MetricsRegistry;
+import model.Actor;
+import model.Messenger;
+
+/**
+ * Run the steps of the simulation as messages between actors instead of the
+ * loop of the Simulation: every actor (the vehicles, the PassengerSource) and
+ * every object receiving messages (the companies) has a bounded mailbox, whose
+ * messages are handled one at a time by a thread of its own. The calls between
+ * the actors made through the Messenger of the City become messages (the
+ * arrivals of the vehicles, the requests of the PassengerSource, which can be
+ * delayed to model the dispatch latency of a company).
+ *
+ * A step sends an act() message to every actor, then waits for every mailbox
+ * to be empty, the messages sent while handling the others included (the tick
+ * barrier): the next step starts once the step is over for all the actors.
+ *
+ * The mailboxes are run by virtual threads (one per mailbox having messages)
+ * when the JVM provides them, by a pool of one thread per core otherwise. The
+ * model not being thread safe, the messages are handled under a single lock:
+ * what the runtime measures is the cost of passing messages compared with
+ * the loop, not a parallel speedup. The order of the messages of different
+ * mailboxes depends on the threads, so a seeded run is not reproduced exactly.
+ *
+ * The steps wait for a full mailbox to accept their act() messages; an actor
+ * sending a message to a full mailbox does not wait (it would hold the lock),
+ * the message goes to the overflow queue of the mailbox.
+ *
+ * @author Bohao LI
+ * @version 2017.03.23
+ */
+public class ActorRuntime implements Messenger, Closeable {
+
+    public static final int DEFAULT_MAILBOX_CAPACITY = 64;
+
+    /**
+     * The messages of an actor.
+     */
+    private final class Mailbox implements Runnable {
+        private final ArrayBlockingQueue<Runnable> messages;
+        private final ConcurrentLinkedQueue<Runnable> overflow;
+        // True while the mailbox is run, or waits for a thread to run it.
+        private final AtomicBoolean scheduled;
+
+        private Mailbox() {
+            messages = new ArrayBlockingQueue<>(mailboxCapacity);
+            overflow = new ConcurrentLinkedQueue<>();
+            scheduled = new AtomicBoolean();
+        }
+
+        /**
+         * Post a message, waiting for the mailbox to accept it unless the
+         * sender is an actor.
+         */
+        private void post(Runnable message, boolean fromActor) {
+            if (fromActor) {
+                if (!messages.offer(message)) {
+                    overflow.add(message);
+                    overflows.increment();
+                }
+            } else if (!messages.offer(message)) {
+                // The mailbox must be emptied before it accepts the message.
+                schedule();
+                try {
+                    messages.put(message);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    pending.decrementAndGet();
+                    return;
+                }
+            }
+            schedule();
+        }
+
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true))
+                executor.execute(this);
+        }
+
+        @Override
+        public void run() {
+            Runnable message;
+            while ((message = poll()) != null) {
+                lock.lock();
+                actor.set(Boolean.TRUE);
+                try {
+                    message.run();
+                } catch (RuntimeException | Error e) {
+                    if (failure == null)
+                        failure = e;
+                } finally {
+                    actor.set(Boolean.FALSE);
+                    lock.unlock();
+                }
+                handled.increment();
+                if (pending.decrementAndGet() == 0)
+                    LockSupport.unpark(stepThread);
+            }
+            scheduled.set(false);
+            // A message may have been posted after the last poll.
+            if (!messages.isEmpty() || !overflow.isEmpty())
+                schedule();
+        }
+
+        private Runnable poll() {
+            Runnable message = messages.poll();
+            return message != null ? message : overflow.poll();
+        }
+    }
+
+    /**
+     * A message delivered at a later step.
+     */
+    private static final class Delayed {
+        private final Object target;
+        private final Runnable message;
+
+        private Delayed(Object target, Runnable message) {
+            this.target = target;
+            this.message = message;
+        }
+    }
+
+    private final int mailboxCapacity;
+    private final ExecutorService executor;
+    private final ReentrantLock lock;
+    // True on the threads handling a message.
+    private final ThreadLocal<Boolean> actor;
+    private final Map<Object, Mailbox> mailboxes;
+    // Step --> the messages delivered at the step.
+    private final TreeMap<Long, List<Delayed>> delayed;
+    // The messages sent and not handled yet during the current step.
+    private final AtomicLong pending;
+    private volatile Thread stepThread;
+    private volatile Throwable failure;
+    private long step;
+
+    private final Counter handled;
+    private final Counter overflows;
+
+    /**
+     * @param mailboxCapacity
+     *            The number of messages a mailbox can hold.
+     */
+    public ActorRuntime(int mailboxCapacity) {
+        if (mailboxCapacity < 1)
+            throw new IllegalArgumentException("Mailbox capacity must be positive: " + mailboxCapacity);
+        this.mailboxCapacity = mailboxCapacity;
+        executor = newExecutor();
+        lock = new ReentrantLock();
+        actor = ThreadLocal.withInitial(() -> Boolean.FALSE);
+        mailboxes = Collections.synchronizedMap(new IdentityHashMap<>());
+        delayed = new TreeMap<>();
+        pending = new AtomicLong();
+        MetricsRegistry metrics = MetricsRegistry.getDefault();
+        handled = metrics.counter("actors.messages");
+        overflows = metrics.counter("actors.overflows");
+        metrics.gauge("actors.mailboxes", mailboxes::size);
+    }
+
+    /**
+     * Create the executor running the mailboxes: virtual threads if the JVM
+     * has them (Java 21 and later), one thread per core otherwise.
+     */
+    private static ExecutorService newExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            int nbThreads = Runtime.getRuntime().availableProcessors();
+            System.out.println("No virtual threads, the actors run on " + nbThreads + " threads");
+            return Executors.newFixedThreadPool(nbThreads, runnable -> {
+                Thread thread = new Thread(runnable, "actor-runtime");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * Run a step: deliver the delayed messages of the step, ask every actor
+     * to act, and wait for all the messages to be handled.
+     *
+     * @param actors
+     *            The actors of the simulation.
+     */
+    public void step(List<Actor> actors) {
+        stepThread = Thread.currentThread();
+        List<Delayed> due = new ArrayList<>();
+        synchronized (delayed) {
+            while (!delayed.isEmpty() && delayed.firstKey() <= step)
+                due.addAll(delayed.pollFirstEntry().getValue());
+        }
+        for (Delayed message : due)
+            post(message.target, message.message);
+        for (Actor target : actors)
+            post(target, target::act);
+        while (pending.get() > 0)
+            LockSupport.park(this);
+        step++;
+        Throwable e = failure;
+        if (e != null) {
+            failure = null;
+            throw new IllegalStateException("An actor failed", e);
+        }
+    }
+
+    @Override
+    public void send(Object target, Runnable message, int delay) {
+        if (delay < 0)
+            throw new IllegalArgumentException("Negative delay: " + delay);
+        if (delay == 0) {
+            post(target, message);
+            return;
+        }
+        synchronized (delayed) {
+            delayed.computeIfAbsent(step + delay, s -> new ArrayList<>()).add(new Delayed(target, message));
+        }
+    }
+
+    private void post(Object target, Runnable message) {
+        pending.incrementAndGet();
+        mailboxes.computeIfAbsent(target, t -> new Mailbox()).post(message, actor.get());
+    }
+
+    /**
+     * @return The number of mailboxes created so far.
+     */
+    public int getNbMailboxes() {
+        return mailboxes.size();
+    }
+
+    /**
+     * @return The number of messages waiting for a later step.
+     */
+    public int getNbDelayed() {
+        synchronized (delayed) {
+            int count = 0;
+            for (List<Delayed> messages : delayed.values())
+                count += messages.size();
+            return count;
+        }
+    }
+
+    /**
+     * Stop the threads of the runtime, the delayed messages are dropped.
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
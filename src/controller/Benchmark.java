@@ -0,0 +1,368 @@
+package controller;
+
+import java.io.FileNotFoundException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import model.DispatchMarket;
+import model.PoissonDemand;
+import model.TaxiCompany;
+
+/**
+ * Stress benchmark of the simulation: run a suite of generated scenarios, from
+ * a 10x10 grid with 10 vehicles up to a 5000x5000 grid with 1M vehicles, and
+ * write a report with, for each scenario, the setup time, the steps per
+ * second, the high-water mark of the heap and the garbage collections.
+ *
+ * Every scenario is headless and seeded, so two runs of the suite simulate
+ * exactly the same trips and can be compared. The demand is a Poisson demand
+ * of one trip per RIDERS_PER_TRIP vehicles and per step, so the load grows
+ * with the fleet. The console output of the simulation is discarded during the
+ * measures.
+ *
+ * Usage: java controller.Benchmark [report.csv | report.json] [scenario...]
+ *
+ * A scenario is given as WIDTHxHEIGHT:VEHICLES[:STEPS[:COMPANIES]], for
+ * example 200x200:1000:500:20 (2 companies by default); the default suite is run if none is given. Every scenario
+ * is run once per routing of the requests listed in -Dbenchmark.routing
+ * (random,market by default), so the report compares the missed pickups of
+ * the DispatchMarket with the random choice of a company, and once per
+ * runtime listed in -Dbenchmark.runtime (loop by default, actors to compare
+ * the loop of the Simulation with the messages of the ActorRuntime). A
+ * scenario whose
+ * setup or steps take more than -Dbenchmark.budget seconds (60 by default)
+ * stops the suite: the bigger scenarios are reported as skipped. The setup
+ * runs on a thread of its own, given up (but not stopped) once over budget.
+ *
+ * The heap peak is the highest heap used (by all the memory pools together)
+ * seen after the setup and after every step.
+ *
+ * @author Bohao LI
+ * @version 2017.03.23
+ */
+public class Benchmark {
+
+    private static final long SEED = 42;
+    private static final int STEPS = 200;
+    private static final int RIDERS_PER_TRIP = 20;
+    private static final long MARKET_BUDGET_MICROS = 500;
+
+    private static final String[] DEFAULT_SUITE = { "10x10:10", "50x50:100", "200x200:1000", "500x500:10000",
+            "1000x1000:100000", "5000x5000:1000000" };
+
+    /**
+     * A generated scenario and its measures.
+     */
+    private static class Scenario {
+        final int width;
+        final int height;
+        final int nbVehicles;
+        final int nbSteps;
+        final int nbCompanies;
+        final DispatchMarket.Routing routing;
+        // True if the steps are run by an ActorRuntime.
+        final boolean actors;
+
+        String status = "skipped";
+        long setupMillis;
+        int stepsDone;
+        long stepsMillis;
+        long heapPeak;
+        long gcCount;
+        long gcMillis;
+        int missedPickups;
+        double pickupDistance;
+
+        Scenario(String spec, DispatchMarket.Routing routing, boolean actors) {
+            this.routing = routing;
+            this.actors = actors;
+            try {
+                String[] parts = spec.split(":");
+                String[] size = parts[0].split("x");
+                width = Integer.parseInt(size[0]);
+                height = Integer.parseInt(size[1]);
+                nbVehicles = Integer.parseInt(parts[1]);
+                nbSteps = parts.length > 2 ? Integer.parseInt(parts[2]) : STEPS;
+                nbCompanies = parts.length > 3 ? Integer.parseInt(parts[3]) : 2;
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException(
+                        "Invalid scenario " + spec + ", expected WIDTHxHEIGHT:VEHICLES[:STEPS[:COMPANIES]]");
+            }
+            if (width <= 0 || height <= 0 || nbSteps <= 0 || nbCompanies < 2 || nbVehicles < 2 * nbCompanies)
+                throw new IllegalArgumentException("Invalid scenario " + spec);
+        }
+
+        double getTicksPerSecond() {
+            return stepsMillis == 0 ? 0 : stepsDone * 1000.0 / stepsMillis;
+        }
+    }
+
+    private final List<Scenario> scenarios;
+    private final long budgetMillis;
+
+    /**
+     * @param specs
+     *            The scenarios to run, as WIDTHxHEIGHT:VEHICLES[:STEPS].
+     * @param budgetMillis
+     *            The time after which a scenario stops the suite.
+     */
+    public Benchmark(List<String> specs, List<DispatchMarket.Routing> routings, long budgetMillis) {
+        this(specs, routings, true, false, budgetMillis);
+    }
+
+    /**
+     * @param loop
+     *            True to run the scenarios with the loop of the Simulation.
+     * @param actors
+     *            True to run the scenarios on an ActorRuntime.
+     */
+    public Benchmark(List<String> specs, List<DispatchMarket.Routing> routings, boolean loop, boolean actors,
+            long budgetMillis) {
+        scenarios = new ArrayList<>();
+        for (String spec : specs)
+            for (DispatchMarket.Routing routing : routings) {
+                if (loop)
+                    scenarios.add(new Scenario(spec, routing, false));
+                if (actors)
+                    scenarios.add(new Scenario(spec, routing, true));
+            }
+        this.budgetMillis = budgetMillis;
+    }
+
+    /**
+     * Run the scenarios in order, until one of them exceeds the budget.
+     */
+    public void run() {
+        PrintStream console = System.out;
+        PrintStream discard = new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        });
+        try {
+            for (Scenario scenario : scenarios) {
+                console.printf("%dx%d, %d vehicles, %d steps, %d companies, %s routing, %s... ", scenario.width,
+                        scenario.height, scenario.nbVehicles, scenario.nbSteps, scenario.nbCompanies,
+                        scenario.routing, scenario.actors ? "actors" : "loop");
+                System.setOut(discard);
+                try {
+                    measure(scenario);
+                } finally {
+                    System.setOut(console);
+                }
+                console.printf(Locale.ROOT,
+                        "%s, setup %d ms, %.1f steps/s, heap peak %d MB, %d GC (%d ms), %d missed pickups, "
+                                + "pickup distance %.2f%n",
+                        scenario.status, scenario.setupMillis, scenario.getTicksPerSecond(),
+                        scenario.heapPeak >> 20, scenario.gcCount, scenario.gcMillis, scenario.missedPickups,
+                        scenario.pickupDistance);
+                if (!scenario.status.equals("ok"))
+                    break;
+            }
+        } finally {
+            System.setOut(console);
+        }
+    }
+
+    /**
+     * Run a single scenario and record its measures.
+     */
+    private void measure(Scenario scenario) {
+        System.gc();
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        long gcCount = -gcCount();
+        long gcMillis = -gcMillis();
+
+        try {
+            long start = System.nanoTime();
+            Simulation simulation = setUpWithinBudget(scenario);
+            scenario.setupMillis = (System.nanoTime() - start) / 1_000_000;
+            scenario.heapPeak = memory.getHeapMemoryUsage().getUsed();
+            if (simulation == null) {
+                scenario.status = "setup over budget";
+                return;
+            }
+
+            start = System.nanoTime();
+            scenario.status = "ok";
+            for (int i = 0; i < scenario.nbSteps; i++) {
+                simulation.step();
+                scenario.heapPeak = Math.max(scenario.heapPeak, memory.getHeapMemoryUsage().getUsed());
+                scenario.stepsDone++;
+                scenario.missedPickups = simulation.getPassengerSource().getMissedPickups();
+                scenario.pickupDistance = averagePickupDistance(simulation);
+                scenario.stepsMillis = (System.nanoTime() - start) / 1_000_000;
+                if (scenario.stepsMillis > budgetMillis) {
+                    scenario.status = "steps over budget";
+                    break;
+                }
+            }
+            if (simulation.getActorRuntime() != null)
+                simulation.getActorRuntime().close();
+        } catch (OutOfMemoryError e) {
+            scenario.status = "out of memory";
+        } finally {
+            scenario.gcCount = gcCount + gcCount();
+            scenario.gcMillis = gcMillis + gcMillis();
+        }
+    }
+
+    /**
+     * Set up the simulation of a scenario on a thread of its own, waiting for
+     * it for the budget at most.
+     *
+     * @return The simulation, or null if the setup is over budget (the thread
+     *         is then left to finish on its own).
+     */
+    private Simulation setUpWithinBudget(Scenario scenario) {
+        FutureTask<Simulation> setup = new FutureTask<>(() -> setUp(scenario));
+        Thread thread = new Thread(setup, "benchmark-setup");
+        thread.setDaemon(true);
+        thread.start();
+        try {
+            return setup.get(budgetMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            thread.interrupt();
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted during the setup", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Error)
+                throw (Error) e.getCause();
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IllegalStateException("Setup failed", e.getCause());
+        }
+    }
+
+    private static Simulation setUp(Scenario scenario) {
+        // Companies of the same size, each with 3/4 of taxis and 1/4 of
+        // shuttles.
+        int nbPerCompany = scenario.nbVehicles / scenario.nbCompanies;
+        int nbTaxis = nbPerCompany - nbPerCompany / 4;
+        Simulation simulation = new Simulation(nbTaxis, nbPerCompany / 4, scenario.width, scenario.height, false);
+        for (int i = 2; i < scenario.nbCompanies; i++)
+            simulation.addCompany("Company " + (i + 1), nbTaxis, nbPerCompany / 4);
+        simulation.getScheduler().setTargetTicksPerSecond(0);
+        simulation.getPassengerSource().setSeed(SEED);
+        simulation.getPassengerSource().setDemandModel(new PoissonDemand(simulation.getCity(),
+                Math.max(1.0, scenario.nbVehicles / (double) RIDERS_PER_TRIP)));
+        simulation.getPassengerSource().setRouting(scenario.routing, MARKET_BUDGET_MICROS);
+        if (scenario.actors)
+            simulation.setActorRuntime(new ActorRuntime(ActorRuntime.DEFAULT_MAILBOX_CAPACITY));
+        return simulation;
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            count += Math.max(0, gc.getCollectionCount());
+        return count;
+    }
+
+    private static double averagePickupDistance(Simulation simulation) {
+        double distance = 0;
+        for (TaxiCompany company : simulation.getCompanies())
+            distance += company.getAveragePickupDistance();
+        return distance / simulation.getCompanies().size();
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            millis += Math.max(0, gc.getCollectionTime());
+        return millis;
+    }
+
+    /**
+     * Write the report of the suite, in JSON if the file name ends with .json,
+     * in CSV otherwise.
+     * 
+     * @param fileName
+     *            The report to write.
+     * @throws FileNotFoundException
+     *             If the report cannot be written.
+     */
+    public void writeReport(String fileName) throws FileNotFoundException {
+        boolean json = fileName.endsWith(".json");
+        try (PrintStream out = new PrintStream(fileName)) {
+            if (json)
+                out.println("[");
+            else
+                out.println("width,height,vehicles,steps,companies,routing,runtime,status,setupMillis,stepsDone,"
+                        + "ticksPerSecond,heapPeakBytes,gcCount,gcMillis,missedPickups,"
+                        + "pickupDistance");
+            for (int i = 0; i < scenarios.size(); i++) {
+                Scenario s = scenarios.get(i);
+                if (json)
+                    out.printf(Locale.ROOT,
+                            "  {\"width\": %d, \"height\": %d, \"vehicles\": %d, \"steps\": %d, \"companies\": %d, "
+                                    + "\"routing\": \"%s\", \"runtime\": \"%s\", \"status\": \"%s\", "
+                                    + "\"setupMillis\": %d, "
+                                    + "\"stepsDone\": %d, \"ticksPerSecond\": %.2f, \"heapPeakBytes\": %d, "
+                                    + "\"gcCount\": %d, \"gcMillis\": %d, \"missedPickups\": %d, "
+                                    + "\"pickupDistance\": %.2f}%s%n",
+                            s.width, s.height, s.nbVehicles, s.nbSteps, s.nbCompanies, s.routing,
+                            s.actors ? "actors" : "loop", s.status,
+                            s.setupMillis, s.stepsDone, s.getTicksPerSecond(), s.heapPeak, s.gcCount, s.gcMillis,
+                            s.missedPickups, s.pickupDistance, i < scenarios.size() - 1 ? "," : "");
+                else
+                    out.printf(Locale.ROOT, "%d,%d,%d,%d,%d,%s,%s,%s,%d,%d,%.2f,%d,%d,%d,%d,%.2f%n", s.width, s.height,
+                            s.nbVehicles, s.nbSteps, s.nbCompanies, s.routing, s.actors ? "actors" : "loop", s.status,
+                            s.setupMillis, s.stepsDone,
+                            s.getTicksPerSecond(), s.heapPeak, s.gcCount, s.gcMillis, s.missedPickups,
+                            s.pickupDistance);
+            }
+            if (json)
+                out.println("]");
+        }
+    }
+
+    public static void main(String[] args) throws FileNotFoundException {
+        String report = "benchmark.csv";
+        List<String> specs = new ArrayList<>();
+        for (String arg : args)
+            if (arg.endsWith(".csv") || arg.endsWith(".json"))
+                report = arg;
+            else
+                specs.add(arg);
+        if (specs.isEmpty())
+            for (String spec : DEFAULT_SUITE)
+                specs.add(spec);
+
+        List<DispatchMarket.Routing> routings = new ArrayList<>();
+        for (String routing : System.getProperty("benchmark.routing", "random,market").split(","))
+            routings.add(DispatchMarket.Routing.valueOf(routing.trim().toUpperCase(Locale.ROOT)));
+
+        boolean loop = false;
+        boolean actors = false;
+        for (String runtime : System.getProperty("benchmark.runtime", "loop").split(","))
+            if (runtime.trim().equalsIgnoreCase("actors"))
+                actors = true;
+            else if (runtime.trim().equalsIgnoreCase("loop"))
+                loop = true;
+            else
+                throw new IllegalArgumentException("Unknown runtime " + runtime + ", expected loop or actors");
+
+        Benchmark benchmark = new Benchmark(specs, routings, loop, actors,
+                Integer.getInteger("benchmark.budget", 60) * 1000L);
+        benchmark.run();
+        benchmark.writeReport(report);
+        System.out.println("Report written to " + report);
+    }
+}
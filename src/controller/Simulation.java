@@ -2,17 +2,32 @@ package controller;
 
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
 import java.util.concurrent.CountDownLatch;
 
+import metrics.MetricsRegistry;
+import metrics.StepEvent;
+import metrics.StepProfiler;
 import model.Actor;
 import model.City;
+import model.CitySnapshot;
+import model.DispatchMarket;
+import model.Journal;
 import model.PassengerSource;
+import model.PoissonDemand;
 import model.TaxiCompany;
+import model.TraceDemand;
+import model.TraceWriter;
 
 import view.CityGUI;
+import view.FrameExporter;
 
 /**
  * Run the simulation by asking a collection of actors to act.
@@ -24,9 +39,49 @@ import view.CityGUI;
 public class Simulation {
 
     private List<Actor> actors;
+    private City city;
+    private List<TaxiCompany> companies;
+    private PassengerSource source;
+
+    private StepProfiler profiler;
+    // Dump the metrics every metricsDumpPeriod steps, never if 0.
+    private int metricsDumpPeriod;
+
+    // The actors drawing the city (the CityGUI), last in actors, skipped by
+    // the late steps.
+    private int nbViews;
+    // Paces the steps of run().
+    private TickScheduler scheduler;
+    private SimulationMonitor monitor;
+    // Records the changes of the city for the scrub bar of the GUI, null if
+    // the city is not journaled.
+    private Journal journal;
+    // Exports every step as a PNG image, null if the steps are not exported.
+    private FrameExporter frameExporter;
+    // The trace replayed by the PassengerSource, null if the demand is not a
+    // trace.
+    private TraceDemand trace;
+    // Runs the steps as messages between the actors, null if they are run by
+    // the loop of step().
+    private ActorRuntime runtime;
+    // Number of steps a request takes to reach a company (with the runtime).
+    private int dispatchLatency;
+    // True if the groups no Shuttle can take are split over several Shuttles.
+    private boolean groupSplitting;
+    // The number of passengers of a Taxi (1 if the rides are not pooled), and
+    // the steps a rider may be delayed by a new passenger.
+    private int taxiCapacity;
+    private int maxDetour;
+    // Runs the stages of the steps on several threads, null if the steps are
+    // run by step() itself.
+    private StepPipeline pipeline;
 
     /**
-     * Create the initial set of actors for the simulation.
+     * Create the initial set of actors for the simulation. The configuration is
+     * asked to the user, unless the simulation runs headless
+     * (-Dsimulation.headless=true), in which case it is read from the command
+     * line (-Dsimulation.taxis, -Dsimulation.shuttles, -Dsimulation.width and
+     * -Dsimulation.height).
      */
     public Simulation() {
 
@@ -41,6 +96,12 @@ public class Simulation {
             e.printStackTrace();
         }
 
+        if (Boolean.getBoolean("simulation.headless")) {
+            setup(Integer.getInteger("simulation.taxis", 5), Integer.getInteger("simulation.shuttles", 3),
+                    Integer.getInteger("simulation.width", 35), Integer.getInteger("simulation.height", 35), false);
+            return;
+        }
+
         // Use CountDownLatch to forbid the lauch of the simulation until
         // configuration is done
         CountDownLatch latch = new CountDownLatch(1);
@@ -56,59 +117,460 @@ public class Simulation {
         // At this moment, the CountDownLatch is released, and the following
         // statements will be executed
 
+        setup(config.getNb_taxis(), config.getNb_navettes(), config.getSize_width(), config.getSize_height(), true);
+    }
+
+    /**
+     * Create the initial set of actors for the simulation with the given
+     * configuration.
+     * 
+     * @param nbTaxis
+     *            The number of taxis of each company.
+     * @param nbShuttles
+     *            The number of shuttles of each company.
+     * @param width
+     *            The width of the city grid.
+     * @param height
+     *            The height of the city grid.
+     * @param gui
+     *            True to display the city, false to run headless.
+     */
+    public Simulation(int nbTaxis, int nbShuttles, int width, int height, boolean gui) {
+        setup(nbTaxis, nbShuttles, width, height, gui);
+    }
+
+    private void setup(int nbTaxis, int nbShuttles, int width, int height, boolean gui) {
         actors = new LinkedList<>();
+        // -Dsimulation.tps steps per second (a step every 400 ms by default, 0
+        // to run as fast as possible), the late steps catching up, or skipping
+        // the drawing of the city with -Dsimulation.pacing=skip_frames.
+        scheduler = new TickScheduler(Double.parseDouble(System.getProperty("simulation.tps", "2.5")),
+                TickScheduler.Policy.valueOf(System.getProperty("simulation.pacing", "catch_up").toUpperCase()));
+        nbViews = 0;
 
-        City city = new City(config.getSize_width(), config.getSize_height());
+        city = new City(width, height);
         // Create the first taxi company
-        TaxiCompany companyOfBohao = new TaxiCompany("Bohao's vehicle company", city, config.getNb_taxis(),
-                config.getNb_navettes());
-        PassengerSource source = new PassengerSource(city, companyOfBohao);
+        TaxiCompany companyOfBohao = new TaxiCompany("Bohao's vehicle company", city, nbTaxis, nbShuttles);
+        source = new PassengerSource(city, companyOfBohao);
 
         // Create the second taxi company
-        TaxiCompany companyOfVictor = new TaxiCompany("Victor's vehicle company", city, config.getNb_taxis(),
-                config.getNb_navettes());
+        TaxiCompany companyOfVictor = new TaxiCompany("Victor's vehicle company", city, nbTaxis, nbShuttles);
         // Add the second compnay to the passenger source
         source.addCompany(companyOfVictor);
 
+        // A mean number of trips per step (-Dsimulation.demand.rate=...) or a
+        // trace to replay (-Dsimulation.demand.trace=..., a trace file or a
+        // trip log in CSV) given on the command line replaces the default
+        // demand.
+        String rate = System.getProperty("simulation.demand.rate");
+        if (rate != null)
+            source.setDemandModel(new PoissonDemand(city, Double.parseDouble(rate)));
+        String traceFile = System.getProperty("simulation.demand.trace");
+        if (traceFile != null) {
+            trace = openTrace(Paths.get(traceFile));
+            source.setDemandModel(trace);
+        }
+        // -Dsimulation.districts=<x>x<y> generates the trips district by
+        // district on -Dsimulation.districts.threads threads (one per core by
+        // default).
+        String districts = System.getProperty("simulation.districts");
+        if (districts != null) {
+            String[] size = districts.toLowerCase().split("x");
+            if (size.length != 2)
+                throw new IllegalArgumentException("Districts must be given as <x>x<y>: " + districts);
+            source.setDistricts(Integer.parseInt(size[0].trim()), Integer.parseInt(size[1].trim()),
+                    Integer.getInteger("simulation.districts.threads", Runtime.getRuntime().availableProcessors()));
+        }
+        // -Dsimulation.dispatch=market routes the requests to the company
+        // offering the nearest vehicle, the offers being waited for at most
+        // -Dsimulation.dispatch.budget microseconds.
+        if ("market".equalsIgnoreCase(System.getProperty("simulation.dispatch")))
+            source.setRouting(DispatchMarket.Routing.MARKET, Long.getLong("simulation.dispatch.budget", 500));
+        // -Dsimulation.rebalancing=true sends the idle Taxis where the demand
+        // is.
+        source.setRebalancing(Boolean.getBoolean("simulation.rebalancing"));
+
+        companies = new ArrayList<>();
+        companies.add(companyOfBohao);
+        companies.add(companyOfVictor);
+
+        // The city is journaled in -Dsimulation.journal=... (not journaled by
+        // default, the GUI then has no scrub bar), with a keyframe every
+        // -Dsimulation.journal.keyframes steps.
+        String journalFile = System.getProperty("simulation.journal");
+        if (journalFile != null)
+            try {
+                journal = new Journal(Paths.get(journalFile), city,
+                        Integer.getInteger("simulation.journal.keyframes", 1000));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        // Every step is drawn offscreen in -Dsimulation.frames=<directory>,
+        // with cells of -Dsimulation.frames.cell pixels.
+        String framesDirectory = System.getProperty("simulation.frames");
+        if (framesDirectory != null)
+            try {
+                frameExporter = new FrameExporter(Paths.get(framesDirectory), width, height,
+                        Integer.getInteger("simulation.frames.cell", 10));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+
         actors.addAll(companyOfBohao.getVehicles());
         actors.addAll(companyOfVictor.getVehicles());
         actors.add(source);
-        actors.add(new CityGUI(city, source));
+        // -Dsimulation.runtime=actors runs the steps on an ActorRuntime, with
+        // mailboxes of -Dsimulation.runtime.mailbox messages, the requests
+        // taking -Dsimulation.dispatch.latency steps to reach a company.
+        dispatchLatency = Integer.getInteger("simulation.dispatch.latency", 0);
+        // -Dsimulation.groups.split=true splits the groups no Shuttle can
+        // take over several Shuttles.
+        groupSplitting = Boolean.getBoolean("simulation.groups.split");
+        // -Dsimulation.pooling.capacity=n pools the rides of up to n
+        // passengers per Taxi, none of them being delayed more than
+        // -Dsimulation.pooling.detour steps by a new passenger.
+        taxiCapacity = Integer.getInteger("simulation.pooling.capacity", 1);
+        maxDetour = Integer.getInteger("simulation.pooling.detour", 5);
+        for (TaxiCompany company : companies) {
+            company.setDispatchLatency(dispatchLatency);
+            company.setGroupSplitting(groupSplitting);
+            company.setTaxiPooling(taxiCapacity, maxDetour);
+        }
+        if ("actors".equalsIgnoreCase(System.getProperty("simulation.runtime")))
+            setActorRuntime(new ActorRuntime(
+                    Integer.getInteger("simulation.runtime.mailbox", ActorRuntime.DEFAULT_MAILBOX_CAPACITY)));
+        if (gui) {
+            actors.add(new CityGUI(city, source));
+            nbViews++;
+        }
+
+        monitor = new SimulationMonitor(this);
+        monitor.register();
+        setupMetrics();
+        // -Dsimulation.pipeline=true runs the stages of the steps on several
+        // threads (see StepPipeline).
+        if (Boolean.getBoolean("simulation.pipeline"))
+            setPipelined(true);
     }
 
     /**
-     * Run the simulation for a fixed number of steps. Pause after each step to
-     * allow the GUI to keep up.
+     * Put another company in the city, its requests are passed by the same
+     * PassengerSource as the others.
+     * 
+     * @param name
+     *            The name of the company.
+     * @param nbTaxis
+     *            The number of taxis of the company.
+     * @param nbShuttles
+     *            The number of shuttles of the company.
+     * @return The new company.
+     */
+    public TaxiCompany addCompany(String name, int nbTaxis, int nbShuttles) {
+        TaxiCompany company = new TaxiCompany(name, city, nbTaxis, nbShuttles);
+        company.setDispatchLatency(dispatchLatency);
+        company.setGroupSplitting(groupSplitting);
+        company.setTaxiPooling(taxiCapacity, maxDetour);
+        source.addCompany(company);
+        companies.add(company);
+        // The vehicles act before the source, as the others.
+        actors.addAll(actors.indexOf(source), company.getVehicles());
+        return company;
+    }
+
+    /**
+     * Prepare the profiling of the steps and the gauges of the simulation. The
+     * metrics are dumped every N steps if -Dsimulation.metrics.dump=N is given
+     * on the command line.
+     */
+    private void setupMetrics() {
+        MetricsRegistry metrics = MetricsRegistry.getDefault();
+        profiler = new StepProfiler(metrics);
+        metricsDumpPeriod = Integer.getInteger("simulation.metrics.dump", 0);
+        metrics.gauge("city.time", () -> city.getTime());
+        metrics.gauge("source.passengersOnMap", () -> source.getPassengersOnMap());
+        metrics.gauge("source.passengersInShuttles", () -> source.getPassengersInShuttles());
+        metrics.gauge("source.missedPickups", () -> source.getMissedPickups());
+    }
+
+    /**
+     * Open a trace to replay, a trip log in CSV is first converted into a trace
+     * file next to it.
+     * 
+     * @param path
+     *            The trace file or the trip log.
+     * @return The demand replaying the trace.
+     */
+    private TraceDemand openTrace(Path path) {
+        try {
+            if (path.toString().endsWith(".csv")) {
+                Path converted = Paths.get(path + ".trip");
+                TraceWriter.fromCsv(path, converted);
+                path = converted;
+            }
+            return new TraceDemand(city, path);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Cannot replay " + path, e);
+        }
+    }
+
+    /**
+     * Run the simulation for -Dsimulation.ticks steps (300 by default), or
+     * until it is stopped if the number is 0, paced by the TickScheduler.
      */
     public void run() {
+        int nbTicks = Integer.getInteger("simulation.ticks", 300);
         System.out.println("Begin simulation");
-        for (int i = 0; i < 300; i++) {
-            step();
-            wait(400);
+        long done = scheduler.run(this::step, nbTicks > 0 ? nbTicks : -1);
+        System.out.println("End simulation after " + done + " steps");
+        showStatistics();
+        MetricsRegistry.getDefault().printSummary(System.out);
+        if (pipeline != null) {
+            System.out.print(pipeline.report());
+            pipeline.close();
         }
-        System.out.println("End simulation");
+        closeJournal();
+        closeFrameExporter();
+        closeTrace();
+        if (runtime != null)
+            runtime.close();
+    }
+
+    /**
+     * Close the trace replayed by the PassengerSource, if any. The demand is
+     * not to be generated any more.
+     */
+    public void closeTrace() {
+        if (trace == null)
+            return;
+        try {
+            trace.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        trace = null;
+    }
+
+    /**
+     * Run the steps as messages between the actors on the given runtime, or
+     * by the loop of step() if it is null. The views are still drawn by the
+     * thread of the step, once the actors are done.
+     * 
+     * @param runtime
+     *            The runtime, or null.
+     * @throws IllegalStateException
+     *             If the steps are run by a StepPipeline.
+     */
+    public void setActorRuntime(ActorRuntime runtime) {
+        if (runtime != null && pipeline != null)
+            throw new IllegalStateException("The steps are run by a StepPipeline");
+        if (this.runtime != null)
+            this.runtime.close();
+        this.runtime = runtime;
+        city.setMessenger(runtime);
+    }
+
+    /**
+     * @return The runtime running the steps, or null if they are run by the
+     *         loop of step().
+     */
+    public ActorRuntime getActorRuntime() {
+        return runtime;
+    }
+
+    /**
+     * Wait for the steps exported by the FrameExporter, if any, to be written.
+     * The StepPipeline, if any, is stopped first so that its last frames are
+     * exported, the next steps being run by the loop of step().
+     */
+    public void closeFrameExporter() {
+        if (frameExporter == null)
+            return;
+        if (pipeline != null)
+            setPipelined(false);
+        try {
+            frameExporter.close();
+            System.out.println(frameExporter.getNbFrames() + " frames exported");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Write the index of the Journal, if any, and close it. The journal file
+     * can then be replayed by a JournalReplay.
+     */
+    public void closeJournal() {
+        if (journal == null)
+            return;
+        try {
+            journal.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return The Journal of the city, or null if the city is not journaled.
+     */
+    public Journal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Show the lifecycle statistics of the passengers of every company.
+     */
+    public void showStatistics() {
+        for (TaxiCompany company : companies)
+            System.out.printf(Locale.ROOT, "%s%n%saverage pickup distance %.2f%n", company.getName(),
+                    company.getStatistics(), company.getAveragePickupDistance());
     }
 
     /**
      * Take a single step of the simulation.
      */
     public void step() {
-        for (Actor actor : actors)
-            actor.act();
+        step(true);
     }
 
     /**
-     * Wait for a specified number of milliseconds before finishing. This
-     * provides an easy way to cause a small delay.
+     * Take a single step of the simulation.
      * 
-     * @param milliseconds
-     *            The number of milliseconds to wait.
+     * @param draw
+     *            False to skip the drawing of the city.
      */
-    private void wait(int milliseconds) {
-        try {
-            Thread.sleep(milliseconds);
-        } catch (InterruptedException e) {
-            // ignore the exception
+    public void step(boolean draw) {
+        if (pipeline != null) {
+            pipeline.step(draw);
+            return;
         }
+        StepEvent event = new StepEvent();
+        event.begin();
+        if (runtime == null)
+            profiler.step(draw || nbViews == 0 ? actors : actors.subList(0, actors.size() - nbViews));
+        else {
+            long start = System.nanoTime();
+            runtime.step(actors.subList(0, actors.size() - nbViews));
+            if (draw)
+                for (Actor view : actors.subList(actors.size() - nbViews, actors.size()))
+                    view.act();
+            profiler.getStepTimer().recordCall(System.nanoTime() - start);
+        }
+        commitStep(event);
+        city.tick();
+        if (frameExporter != null)
+            frameExporter.export(CitySnapshot.capture(city));
+        telemetry();
+    }
+
+    /**
+     * Emit the StepEvent of a step, before the clock of the city advances.
+     */
+    void commitStep(StepEvent event) {
+        if (event.shouldCommit()) {
+            event.tick = city.getTime();
+            event.actors = actors.size();
+            event.commit();
+        }
+    }
+
+    /**
+     * Dump the metrics if it is time to, and update the SimulationMonitor,
+     * at the end of a step.
+     */
+    void telemetry() {
+        if (metricsDumpPeriod > 0 && city.getTime() % metricsDumpPeriod == 0)
+            MetricsRegistry.getDefault().dump(System.out, city.getTime());
+        monitor.update();
+    }
+
+    /**
+     * @return The vehicles, the actors acting before the PassengerSource.
+     */
+    List<Actor> getVehicleActors() {
+        return actors.subList(0, actors.indexOf(source));
+    }
+
+    /**
+     * @return The actors drawing the city.
+     */
+    List<Actor> getViews() {
+        return actors.subList(actors.size() - nbViews, actors.size());
+    }
+
+    /**
+     * @return The FrameExporter of the steps, or null.
+     */
+    FrameExporter getFrameExporter() {
+        return frameExporter;
+    }
+
+    /**
+     * Run the steps through a StepPipeline, or through the loop of step().
+     * 
+     * @param pipelined
+     *            True to run the steps through a StepPipeline.
+     * @throws IllegalStateException
+     *             If the steps are run by an ActorRuntime.
+     */
+    public void setPipelined(boolean pipelined) {
+        if (pipelined && runtime != null)
+            throw new IllegalStateException("The steps are run by an ActorRuntime");
+        if (pipeline != null)
+            pipeline.close();
+        pipeline = pipelined ? new StepPipeline(this) : null;
+    }
+
+    /**
+     * @return The StepPipeline running the steps, or null.
+     */
+    public StepPipeline getPipeline() {
+        return pipeline;
+    }
+
+    /**
+     * Suspend the simulation after the current step.
+     */
+    public void pause() {
+        scheduler.pause();
+    }
+
+    /**
+     * Resume a suspended simulation.
+     */
+    public void resume() {
+        scheduler.resume();
+    }
+
+    /**
+     * @return True if the simulation is suspended.
+     */
+    public boolean isPaused() {
+        return scheduler.isPaused();
+    }
+
+    /**
+     * Make run() return after the current step.
+     */
+    public void stop() {
+        scheduler.stop();
+    }
+
+    /**
+     * @return The TickScheduler pacing the steps of run().
+     */
+    public TickScheduler getScheduler() {
+        return scheduler;
+    }
+
+    public City getCity() {
+        return city;
+    }
+
+    public List<TaxiCompany> getCompanies() {
+        return companies;
+    }
+
+    public PassengerSource getPassengerSource() {
+        return source;
     }
 }
@@ -0,0 +1,247 @@
+package controller;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import model.CityStats;
+import model.LatencyHistogram;
+import model.Passenger;
+import model.TaxiCompany;
+import model.TripStatistics;
+
+/**
+ * Live telemetry and control of a Simulation through JMX.
+ *
+ * The values are computed by the simulation thread after each step (update())
+ * and published in volatile fields, so a JMX client never touches the city
+ * while it changes: reading an attribute is a plain read. The percentiles need
+ * the statistics of all the companies to be merged, they are refreshed every
+ * STATISTICS_PERIOD steps only.
+ *
+ * @author Bohao LI
+ * @version 2017.03.23
+ */
+public class SimulationMonitor implements SimulationMonitorMBean {
+
+    public static final String NAME = "simulation:type=SimulationMonitor";
+    private static final int STATISTICS_PERIOD = 10;
+
+    private final Simulation simulation;
+
+    private volatile int time;
+    private volatile double ticksPerSecond;
+    private volatile double fleetUtilization;
+    private volatile int freeTaxis;
+    private volatile int freeShuttles;
+    private volatile int waitingPassengers;
+    private volatile int missedPickups;
+    // Merged statistics of the companies, a new object at each refresh.
+    private volatile TripStatistics statistics;
+    private volatile int timeToPickupP50;
+    private volatile int timeToPickupP90;
+    private volatile int timeToPickupP99;
+
+    // Used by the simulation thread only.
+    private long secondStart;
+    private int secondTicks;
+
+    /**
+     * @param simulation
+     *            The simulation to monitor.
+     */
+    public SimulationMonitor(Simulation simulation) {
+        if (simulation == null)
+            throw new NullPointerException("Simulation is null");
+        this.simulation = simulation;
+        statistics = new TripStatistics();
+        secondStart = System.nanoTime();
+    }
+
+    /**
+     * Register the monitor on the platform MBean server, in place of the
+     * monitor of a previous simulation.
+     */
+    public void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(NAME);
+            if (server.isRegistered(name))
+                server.unregisterMBean(name);
+            server.registerMBean(this, name);
+        } catch (JMException e) {
+            System.out.println("Cannot register " + NAME + ": " + e);
+        }
+    }
+
+    /**
+     * Publish the state of the simulation, called by the simulation thread
+     * after each step.
+     */
+    public void update() {
+        secondTicks++;
+        long now = System.nanoTime();
+        if (now - secondStart >= 1_000_000_000L) {
+            ticksPerSecond = secondTicks * 1e9 / (now - secondStart);
+            secondStart = now;
+            secondTicks = 0;
+        }
+
+        CityStats stats = simulation.getCity();
+        int nbVehicles = stats.getNbTaxis() + stats.getNbShuttles();
+        freeTaxis = stats.getNbFreeTaxis();
+        freeShuttles = stats.getNbFreeShuttles();
+        fleetUtilization = nbVehicles == 0 ? 0
+                : 1 - (stats.getNbFreeTaxis() + stats.getNbFreeShuttles()) / (double) nbVehicles;
+        waitingPassengers = simulation.getPassengerSource().getPassengersOnMap();
+        missedPickups = simulation.getPassengerSource().getMissedPickups();
+        time = simulation.getCity().getTime();
+
+        if (time % STATISTICS_PERIOD == 0) {
+            TripStatistics merged = new TripStatistics();
+            for (TaxiCompany company : simulation.getCompanies())
+                merged.add(company.getStatistics());
+            LatencyHistogram timeToPickup = new LatencyHistogram();
+            for (Passenger.Choice choice : Passenger.Choice.values())
+                timeToPickup.add(merged.getTimeToPickup(choice));
+            timeToPickupP50 = timeToPickup.getPercentile(50);
+            timeToPickupP90 = timeToPickup.getPercentile(90);
+            timeToPickupP99 = timeToPickup.getPercentile(99);
+            statistics = merged;
+        }
+    }
+
+    @Override
+    public int getTime() {
+        return time;
+    }
+
+    @Override
+    public double getTicksPerSecond() {
+        return ticksPerSecond;
+    }
+
+    @Override
+    public double getFleetUtilization() {
+        return fleetUtilization;
+    }
+
+    @Override
+    public int getFreeTaxis() {
+        return freeTaxis;
+    }
+
+    @Override
+    public int getFreeShuttles() {
+        return freeShuttles;
+    }
+
+    @Override
+    public int getWaitingPassengers() {
+        return waitingPassengers;
+    }
+
+    @Override
+    public int getMissedPickups() {
+        return missedPickups;
+    }
+
+    @Override
+    public int getTimeToPickupP50() {
+        return timeToPickupP50;
+    }
+
+    @Override
+    public int getTimeToPickupP90() {
+        return timeToPickupP90;
+    }
+
+    @Override
+    public int getTimeToPickupP99() {
+        return timeToPickupP99;
+    }
+
+    @Override
+    public double getAbandonmentRate() {
+        TripStatistics stats = statistics;
+        long requests = 0;
+        double abandoned = 0;
+        for (Passenger.Choice choice : Passenger.Choice.values()) {
+            requests += stats.getRequests(choice);
+            abandoned += stats.getAbandonmentRate(choice) * stats.getRequests(choice);
+        }
+        return requests == 0 ? 0 : abandoned / requests;
+    }
+
+    @Override
+    public boolean isPaused() {
+        return simulation.isPaused();
+    }
+
+    @Override
+    public double getTargetTicksPerSecond() {
+        return simulation.getScheduler().getTargetTicksPerSecond();
+    }
+
+    @Override
+    public void setTargetTicksPerSecond(double ticksPerSecond) {
+        simulation.getScheduler().setTargetTicksPerSecond(ticksPerSecond);
+    }
+
+    @Override
+    public String getPacingPolicy() {
+        return simulation.getScheduler().getPolicy().name();
+    }
+
+    @Override
+    public void setPacingPolicy(String policy) {
+        simulation.getScheduler().setPolicy(TickScheduler.Policy.valueOf(policy.toUpperCase()));
+    }
+
+    @Override
+    public double getTickSlackMillis() {
+        return simulation.getScheduler().getLastSlackNanos() / 1e6;
+    }
+
+    @Override
+    public long getLateTicks() {
+        return simulation.getScheduler().getLateTicks();
+    }
+
+    @Override
+    public long getSkippedFrames() {
+        return simulation.getScheduler().getSkippedFrames();
+    }
+
+    @Override
+    public void pause() {
+        simulation.pause();
+    }
+
+    @Override
+    public void resume() {
+        simulation.resume();
+    }
+
+    @Override
+    public void stop() {
+        simulation.stop();
+    }
+
+    @Override
+    public String snapshot() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("time=%d ticks/s=%.1f%s\n", time, ticksPerSecond, isPaused() ? " (paused)" : ""));
+        sb.append(String.format("target ticks/s=%.1f pacing=%s slack=%.1fms late=%d skipped frames=%d\n",
+                getTargetTicksPerSecond(), getPacingPolicy(), getTickSlackMillis(), getLateTicks(),
+                getSkippedFrames()));
+        sb.append(String.format("utilization=%.1f%% free taxis=%d free shuttles=%d\n", 100 * fleetUtilization,
+                freeTaxis, freeShuttles));
+        sb.append(String.format("waiting=%d missed pickups=%d abandonment=%.1f%%\n", waitingPassengers,
+                missedPickups, 100 * getAbandonmentRate()));
+        sb.append(statistics);
+        return sb.toString();
+    }
+}
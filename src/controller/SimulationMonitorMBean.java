@@ -0,0 +1,108 @@
+package controller;
+
+/**
+ * Management interface of a running Simulation, registered on the platform
+ * MBean server as "simulation:type=SimulationMonitor" so that it can be
+ * watched and controlled with jconsole or any JMX client.
+ *
+ * @author Bohao LI
+ * @version 2017.03.23
+ */
+public interface SimulationMonitorMBean {
+
+    /**
+     * @return The current step of the simulation.
+     */
+    int getTime();
+
+    /**
+     * @return The number of steps per second over the last second.
+     */
+    double getTicksPerSecond();
+
+    /**
+     * @return The share of the vehicles unable to take a new request.
+     */
+    double getFleetUtilization();
+
+    int getFreeTaxis();
+
+    int getFreeShuttles();
+
+    /**
+     * @return The number of persons waiting on the map for a vehicle.
+     */
+    int getWaitingPassengers();
+
+    int getMissedPickups();
+
+    int getTimeToPickupP50();
+
+    int getTimeToPickupP90();
+
+    int getTimeToPickupP99();
+
+    /**
+     * @return The share of the persons who asked for a pickup and gave up.
+     */
+    double getAbandonmentRate();
+
+    boolean isPaused();
+
+    /**
+     * @return The target number of steps per second, 0 if the steps run as
+     *         fast as possible.
+     */
+    double getTargetTicksPerSecond();
+
+    /**
+     * @param ticksPerSecond
+     *            The number of steps per second, 0 to run as fast as
+     *            possible.
+     */
+    void setTargetTicksPerSecond(double ticksPerSecond);
+
+    /**
+     * @return How the late steps are handled, CATCH_UP or SKIP_FRAMES.
+     */
+    String getPacingPolicy();
+
+    void setPacingPolicy(String policy);
+
+    /**
+     * @return The time left before the next step once the last step was
+     *         over, in milliseconds, negative if it was late.
+     */
+    double getTickSlackMillis();
+
+    /**
+     * @return The number of steps that started late.
+     */
+    long getLateTicks();
+
+    /**
+     * @return The number of late steps that did not draw the city.
+     */
+    long getSkippedFrames();
+
+    /**
+     * Suspend the simulation after the current step.
+     */
+    void pause();
+
+    /**
+     * Resume a suspended simulation.
+     */
+    void resume();
+
+    /**
+     * Stop the simulation after the current step.
+     */
+    void stop();
+
+    /**
+     * @return A summary of the current state and of the statistics of the
+     *         companies.
+     */
+    String snapshot();
+}
@@ -0,0 +1,337 @@
+package controller;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import metrics.MetricsRegistry;
+import metrics.StepEvent;
+import model.Actor;
+import model.City;
+import model.CitySnapshot;
+import model.PassengerSource;
+import model.TripBuffer;
+import view.CityGUI;
+import view.FrameExporter;
+
+/**
+ * Run the steps of a Simulation as a pipeline of stages, so that the stages
+ * which do not touch the model run on threads of their own while the next
+ * steps go on:
+ *
+ * GENERATION: the trips of the next steps are generated by a thread of their
+ * own, DEPTH steps ahead at most. Only the districts of a PassengerSource
+ * generate trips without the random generator of the dispatch (see
+ * PassengerSource.canGenerateAhead()): without districts, the trips are
+ * generated by the PassengerSource during the dispatch, as in step().
+ *
+ * DISPATCH, MOVEMENT, SETTLEMENT, TELEMETRY: the PassengerSource, the vehicles,
+ * the clock of the city and the metrics, run by the thread calling step(), in
+ * the order of Simulation.step(). The model is only touched by this thread.
+ *
+ * RENDERING: the city is captured in a CitySnapshot at the end of the step,
+ * then drawn (by the CityGUI views) and exported (by the FrameExporter) by a
+ * thread of its own while the next step runs, DEPTH frames behind at most.
+ *
+ * The time spent by every stage is measured (the gauges
+ * pipeline.<stage>.busy, in percent of the time since the first step), the
+ * busiest stage being the bottleneck of the pipeline. A step never waits for
+ * more than the slowest stage: the time the thread of the steps waits for the
+ * other threads is measured apart (pipeline.stall).
+ *
+ * @author Bohao LI
+ * @version 2017.03.23
+ */
+public class StepPipeline implements Closeable {
+
+    /**
+     * The stages of a step.
+     */
+    public enum Stage {
+        GENERATION, DISPATCH, MOVEMENT, SETTLEMENT, TELEMETRY, RENDERING;
+    }
+
+    // The number of steps the generation may be ahead of the steps, and of
+    // frames the rendering may be behind them.
+    public static final int DEPTH = 2;
+
+    /**
+     * The trips of a step, recycled once the step is over.
+     */
+    private static final class Batch {
+        private int time;
+        private final TripBuffer trips = new TripBuffer();
+    }
+
+    /**
+     * The state of the city at the end of a step.
+     */
+    private static final class Frame {
+        private final CitySnapshot snapshot;
+        private final boolean draw;
+
+        private Frame(CitySnapshot snapshot, boolean draw) {
+            this.snapshot = snapshot;
+            this.draw = draw;
+        }
+    }
+
+    // Tells the thread of the rendering to stop.
+    private static final Frame END = new Frame(null, false);
+
+    private final Simulation simulation;
+    private final City city;
+    private final PassengerSource source;
+    private final FrameExporter frameExporter;
+    private final BlockingQueue<Batch> free;
+    private final BlockingQueue<Batch> ready;
+    private final BlockingQueue<Frame> frames;
+    private final Thread generator;
+    private final Thread renderer;
+    // Stage --> nanoseconds spent in the stage.
+    private final AtomicLongArray busy;
+    private long stall;
+    private long start;
+    private volatile Throwable failure;
+    private boolean closed;
+
+    /**
+     * Start the threads of the pipeline, the next step being the current time
+     * of the city.
+     *
+     * @param simulation
+     *            The simulation whose steps are run.
+     */
+    public StepPipeline(Simulation simulation) {
+        if (simulation == null)
+            throw new NullPointerException("simulation");
+        this.simulation = simulation;
+        city = simulation.getCity();
+        source = simulation.getPassengerSource();
+        frameExporter = simulation.getFrameExporter();
+        busy = new AtomicLongArray(Stage.values().length);
+        free = new ArrayBlockingQueue<>(DEPTH + 1);
+        ready = new ArrayBlockingQueue<>(DEPTH);
+        frames = new ArrayBlockingQueue<>(DEPTH);
+        for (int i = 0; i <= DEPTH; i++)
+            free.add(new Batch());
+        if (source.canGenerateAhead()) {
+            int first = city.getTime();
+            generator = new Thread(() -> generate(first), "pipeline-generation");
+            generator.setDaemon(true);
+            generator.start();
+        } else
+            generator = null;
+        renderer = new Thread(this::render, "pipeline-rendering");
+        renderer.setDaemon(true);
+        renderer.start();
+        MetricsRegistry metrics = MetricsRegistry.getDefault();
+        for (Stage stage : Stage.values())
+            metrics.gauge("pipeline." + stage.name().toLowerCase() + ".busy", () -> getBusyPercent(stage));
+        metrics.gauge("pipeline.stall", () -> stall / 1000000);
+    }
+
+    /**
+     * Generate the trips of the steps from the given time, until the pipeline
+     * is closed.
+     */
+    private void generate(int time) {
+        try {
+            while (true) {
+                Batch batch = free.take();
+                long begin = System.nanoTime();
+                batch.time = time;
+                source.generateAhead(time++, batch.trips);
+                busy.addAndGet(Stage.GENERATION.ordinal(), System.nanoTime() - begin);
+                ready.put(batch);
+            }
+        } catch (InterruptedException e) {
+            // the pipeline is closed
+        } catch (RuntimeException | Error e) {
+            failure = e;
+        }
+    }
+
+    /**
+     * Draw and export the frames, until the END frame.
+     */
+    private void render() {
+        List<Actor> views = simulation.getViews();
+        try {
+            Frame frame;
+            while ((frame = frames.take()) != END) {
+                long begin = System.nanoTime();
+                if (frame.draw)
+                    for (Actor view : views)
+                        if (view instanceof CityGUI)
+                            ((CityGUI) view).show(frame.snapshot);
+                if (frameExporter != null)
+                    frameExporter.export(frame.snapshot);
+                busy.addAndGet(Stage.RENDERING.ordinal(), System.nanoTime() - begin);
+            }
+        } catch (InterruptedException e) {
+            // the pipeline is closed
+        } catch (RuntimeException | Error e) {
+            failure = e;
+        }
+    }
+
+    /**
+     * Run a step: the stages touching the model, the generation of the next
+     * trips and the rendering of the previous frames going on meanwhile.
+     *
+     * @param draw
+     *            False if the views must not draw the city at this step.
+     * @throws IllegalStateException
+     *             If the pipeline is closed, or a stage has failed.
+     */
+    public void step(boolean draw) {
+        if (closed)
+            throw new IllegalStateException("The pipeline is closed");
+        checkFailure();
+        if (start == 0)
+            start = System.nanoTime();
+        StepEvent event = new StepEvent();
+        event.begin();
+
+        long begin = System.nanoTime();
+        for (Actor vehicle : simulation.getVehicleActors())
+            vehicle.act();
+        long end = System.nanoTime();
+        busy.addAndGet(Stage.MOVEMENT.ordinal(), end - begin);
+
+        Batch batch = null;
+        if (generator != null) {
+            batch = takeBatch();
+            if (batch.time != city.getTime())
+                throw new IllegalStateException("Trips of step " + batch.time + " at step " + city.getTime());
+            source.supplyTrips(batch.time, batch.trips);
+        }
+        begin = System.nanoTime();
+        source.act();
+        end = System.nanoTime();
+        busy.addAndGet(Stage.DISPATCH.ordinal(), end - begin);
+        if (batch != null)
+            free.add(batch);
+
+        simulation.commitStep(event);
+        city.tick();
+        begin = System.nanoTime();
+        busy.addAndGet(Stage.SETTLEMENT.ordinal(), begin - end);
+
+        simulation.telemetry();
+        if (draw)
+            for (Actor view : simulation.getViews())
+                if (view instanceof CityGUI)
+                    ((CityGUI) view).updateStatistics();
+        end = System.nanoTime();
+        busy.addAndGet(Stage.TELEMETRY.ordinal(), end - begin);
+
+        if (frameExporter != null || draw && !simulation.getViews().isEmpty()) {
+            Frame frame = new Frame(CitySnapshot.capture(city, source), draw);
+            begin = System.nanoTime();
+            busy.addAndGet(Stage.RENDERING.ordinal(), begin - end);
+            putFrame(frame);
+            stall += System.nanoTime() - begin;
+        }
+    }
+
+    /**
+     * Wait for the trips of the step, the time waited being a stall.
+     */
+    private Batch takeBatch() {
+        long begin = System.nanoTime();
+        try {
+            Batch batch;
+            while ((batch = ready.poll(10, TimeUnit.MILLISECONDS)) == null)
+                checkFailure();
+            return batch;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the trips", e);
+        } finally {
+            stall += System.nanoTime() - begin;
+        }
+    }
+
+    private void putFrame(Frame frame) {
+        try {
+            while (!frames.offer(frame, 10, TimeUnit.MILLISECONDS))
+                checkFailure();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the rendering", e);
+        }
+    }
+
+    private void checkFailure() {
+        Throwable e = failure;
+        if (e != null)
+            throw new IllegalStateException("A stage of the pipeline failed", e);
+    }
+
+    /**
+     * @param stage
+     *            A stage of the steps.
+     * @return The time spent in the stage, in percent of the time since the
+     *         first step.
+     */
+    public long getBusyPercent(Stage stage) {
+        long elapsed = start == 0 ? 0 : System.nanoTime() - start;
+        return elapsed == 0 ? 0 : busy.get(stage.ordinal()) * 100 / elapsed;
+    }
+
+    /**
+     * @return The busiest stage, which limits the rate of the steps.
+     */
+    public Stage getBottleneck() {
+        Stage bottleneck = Stage.GENERATION;
+        for (Stage stage : Stage.values())
+            if (busy.get(stage.ordinal()) > busy.get(bottleneck.ordinal()))
+                bottleneck = stage;
+        return bottleneck;
+    }
+
+    /**
+     * @return The time spent in every stage, and the bottleneck.
+     */
+    public String report() {
+        StringBuilder report = new StringBuilder("Pipeline:\n");
+        for (Stage stage : Stage.values())
+            report.append(String.format("  %-10s %6d ms %3d%%%n", stage, busy.get(stage.ordinal()) / 1000000,
+                    getBusyPercent(stage)));
+        report.append(String.format("  %-10s %6d ms%n", "STALL", stall / 1000000));
+        report.append("  Bottleneck: ").append(getBottleneck());
+        if (generator == null)
+            report.append(" (the trips are generated during the dispatch)");
+        return report.append('\n').toString();
+    }
+
+    /**
+     * Stop the generation, and wait for the frames of the past steps to be
+     * rendered.
+     */
+    @Override
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
+        if (generator != null)
+            generator.interrupt();
+        try {
+            if (failure == null)
+                frames.put(END);
+            else
+                renderer.interrupt();
+            renderer.join();
+            if (generator != null)
+                generator.join();
+        } catch (InterruptedException e) {
+            renderer.interrupt();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package controller;
+
+import java.util.concurrent.locks.LockSupport;
+
+import metrics.MetricsRegistry;
+
+/**
+ * Run the steps of the simulation at a fixed rate: the step i starts at
+ * start + i / targetTicksPerSecond, whatever the time the steps take, so the
+ * pace does not drift as the load grows. The target can be changed at any time
+ * (see the SimulationMonitor), 0 running the steps as fast as possible.
+ *
+ * A step that ends after the start of the next one makes the next steps late.
+ * With the CATCH_UP policy, the late steps are run back to back until the
+ * schedule is met again. With the SKIP_FRAMES policy, the late steps are also
+ * run back to back, but without drawing the city. In both cases a step more
+ * than MAX_LAG steps late gives up the schedule, which starts again from the
+ * current time (a resync).
+ *
+ * The slack of a step is the time left before the start of the next step once
+ * it is over, negative when it is late.
+ *
+ * The scheduler can be paused, resumed and stopped from any thread.
+ *
+ * @author Bohao LI
+ * @version 2017.03.23
+ */
+public class TickScheduler {
+
+    /**
+     * How late steps are handled.
+     */
+    public enum Policy {
+        CATCH_UP, SKIP_FRAMES;
+    }
+
+    /**
+     * A step of the simulation.
+     */
+    public interface Step {
+        /**
+         * @param draw
+         *            False if the step is late and must not draw the city.
+         */
+        void run(boolean draw);
+    }
+
+    // The number of steps a step may be late before the schedule is given up.
+    public static final int MAX_LAG = 10;
+
+    private volatile double targetTicksPerSecond;
+    private volatile Policy policy;
+    private volatile boolean stopped;
+    private boolean paused;
+    // The thread in run(), woken up when the target changes or on stop().
+    private volatile Thread runner;
+
+    // Written by the thread in run() only.
+    private volatile long lastSlackNanos;
+    private volatile long lateTicks;
+    private volatile long skippedFrames;
+    private volatile long resyncs;
+
+    /**
+     * Create a scheduler.
+     *
+     * @param targetTicksPerSecond
+     *            The number of steps per second, 0 to run as fast as possible.
+     * @param policy
+     *            How late steps are handled.
+     */
+    public TickScheduler(double targetTicksPerSecond, Policy policy) {
+        setTargetTicksPerSecond(targetTicksPerSecond);
+        setPolicy(policy);
+        MetricsRegistry metrics = MetricsRegistry.getDefault();
+        metrics.gauge("scheduler.slackMicros", () -> lastSlackNanos / 1000);
+        metrics.gauge("scheduler.lateTicks", () -> lateTicks);
+        metrics.gauge("scheduler.skippedFrames", () -> skippedFrames);
+        metrics.gauge("scheduler.resyncs", () -> resyncs);
+    }
+
+    /**
+     * Run steps until the given number of steps is done or the scheduler is
+     * stopped.
+     *
+     * @param step
+     *            The step to run.
+     * @param nbTicks
+     *            The number of steps to run, negative to run until the
+     *            scheduler is stopped.
+     * @return The number of steps done.
+     */
+    public long run(Step step, long nbTicks) {
+        stopped = false;
+        runner = Thread.currentThread();
+        long done = 0;
+        long deadline = System.nanoTime();
+        while (!stopped && (nbTicks < 0 || done < nbTicks)) {
+            if (awaitResume())
+                deadline = System.nanoTime();
+            if (stopped)
+                break;
+            double rate = targetTicksPerSecond;
+            if (rate <= 0) {
+                step.run(true);
+                done++;
+                deadline = System.nanoTime();
+                lastSlackNanos = 0;
+                continue;
+            }
+            long period = (long) (1e9 / rate);
+            long lag = System.nanoTime() - deadline;
+            if (lag > MAX_LAG * period) {
+                resyncs++;
+                deadline += lag;
+                lag = 0;
+            }
+            // A step is late if it should have been over already.
+            boolean late = lag >= period;
+            if (late)
+                lateTicks++;
+            boolean draw = !late || policy == Policy.CATCH_UP;
+            if (!draw)
+                skippedFrames++;
+            step.run(draw);
+            done++;
+            deadline += period;
+            long slack = deadline - System.nanoTime();
+            lastSlackNanos = slack;
+            // Woken up if the target is changed or the scheduler stopped.
+            while (slack > 0 && !stopped && targetTicksPerSecond == rate) {
+                LockSupport.parkNanos(slack);
+                slack = deadline - System.nanoTime();
+            }
+            if (targetTicksPerSecond != rate)
+                deadline = System.nanoTime();
+        }
+        runner = null;
+        return done;
+    }
+
+    /**
+     * Make run() return after the current step.
+     */
+    public void stop() {
+        stopped = true;
+        resume();
+        wakeUp();
+    }
+
+    private void wakeUp() {
+        Thread thread = runner;
+        if (thread != null)
+            LockSupport.unpark(thread);
+    }
+
+    /**
+     * @return True if the scheduler has been stopped.
+     */
+    public boolean isStopped() {
+        return stopped;
+    }
+
+    /**
+     * Suspend the steps after the current one.
+     */
+    public synchronized void pause() {
+        paused = true;
+    }
+
+    /**
+     * Resume the steps, the schedule starts again from the current time.
+     */
+    public synchronized void resume() {
+        paused = false;
+        notifyAll();
+    }
+
+    public synchronized boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * Wait until the scheduler is not paused anymore.
+     *
+     * @return True if it has been paused.
+     */
+    private synchronized boolean awaitResume() {
+        boolean waited = false;
+        while (paused && !stopped) {
+            waited = true;
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                // ignore the exception
+            }
+        }
+        return waited;
+    }
+
+    /**
+     * @return The target number of steps per second, 0 if the steps run as
+     *         fast as possible.
+     */
+    public double getTargetTicksPerSecond() {
+        return targetTicksPerSecond;
+    }
+
+    /**
+     * @param targetTicksPerSecond
+     *            The number of steps per second, 0 to run as fast as possible.
+     */
+    public void setTargetTicksPerSecond(double targetTicksPerSecond) {
+        if (!(targetTicksPerSecond >= 0) || Double.isInfinite(targetTicksPerSecond))
+            throw new IllegalArgumentException("Invalid target: " + targetTicksPerSecond + " ticks per second");
+        this.targetTicksPerSecond = targetTicksPerSecond;
+        wakeUp();
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    public void setPolicy(Policy policy) {
+        if (policy == null)
+            throw new NullPointerException("policy");
+        this.policy = policy;
+    }
+
+    /**
+     * @return The slack of the last step, in nanoseconds, negative if it was
+     *         late.
+     */
+    public long getLastSlackNanos() {
+        return lastSlackNanos;
+    }
+
+    /**
+     * @return The number of steps that started late.
+     */
+    public long getLateTicks() {
+        return lateTicks;
+    }
+
+    /**
+     * @return The number of late steps that did not draw the city.
+     */
+    public long getSkippedFrames() {
+        return skippedFrames;
+    }
+
+    /**
+     * @return The number of times the schedule has been given up.
+     */
+    public long getResyncs() {
+        return resyncs;
+    }
+}
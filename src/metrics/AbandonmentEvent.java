@@ -0,0 +1,33 @@
+package metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event of a passenger giving up after waiting too long,
+ * disabled by default.
+ *
+ * @author Bohao LI
+ * @version 2017.03.23
+ */
+@Name("simulation.Abandonment")
+@Label("Abandonment")
+@Category("Simulation")
+@Description("A passenger waited too long and gives up")
+@Enabled(false)
+public class AbandonmentEvent extends Event {
+    @Label("Tick")
+    public int tick;
+    @Label("Vehicle ID")
+    @Description("The vehicle the passenger was waiting for or was in")
+    public String vehicleId;
+    @Label("Persons")
+    public int persons;
+    @Label("In Vehicle")
+    @Description("True if the passenger gets off, false if he leaves the pickup location")
+    public boolean inVehicle;
+}
@@ -0,0 +1,45 @@
+package metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A count of events. The count is striped between the threads incrementing it
+ * (see LongAdder), so the threads do not contend on a single variable.
+ *
+ * @author Bohao LI
+ * @version 2017.03.23
+ */
+public class Counter implements Metric {
+
+    private final LongAdder count;
+    private long lastDump;
+
+    Counter() {
+        count = new LongAdder();
+    }
+
+    public void increment() {
+        count.increment();
+    }
+
+    public void add(long n) {
+        count.add(n);
+    }
+
+    public long get() {
+        return count.sum();
+    }
+
+    @Override
+    public String summary() {
+        return Long.toString(get());
+    }
+
+    @Override
+    public synchronized String intervalSummary() {
+        long now = get();
+        long delta = now - lastDump;
+        lastDump = now;
+        return now + " (+" + delta + ")";
+    }
+}
@@ -0,0 +1,42 @@
+package metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event of TaxiCompany.requestPickup(). Like all the events of
+ * the simulation, it is disabled by default: enable it in the recording
+ * settings (simulation.Dispatch#enabled=true).
+ *
+ * @author Bohao LI
+ * @version 2017.03.23
+ */
+@Name("simulation.Dispatch")
+@Label("Dispatch")
+@Category("Simulation")
+@Description("A company looks for a vehicle for a passenger")
+@Enabled(false)
+public class DispatchEvent extends Event {
+    @Label("Tick")
+    public int tick;
+    @Label("Company")
+    public String company;
+    @Label("Choice")
+    public String choice;
+    @Label("Persons")
+    public int persons;
+    @Label("Assigned")
+    public boolean assigned;
+    @Label("Candidates")
+    @Description("Number of vehicles able to take the passenger")
+    public int candidates;
+    @Label("Vehicle ID")
+    public String vehicleId;
+    @Label("Distance")
+    @Description("Distance between the chosen vehicle and the pickup location")
+    public int distance;
+}
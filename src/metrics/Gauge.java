@@ -0,0 +1,33 @@
+package metrics;
+
+import java.util.function.LongSupplier;
+
+/**
+ * A value read on demand, for example the number of passengers on the map. The
+ * value is only computed when the metrics are dumped.
+ *
+ * @author Bohao LI
+ * @version 2017.03.23
+ */
+public class Gauge implements Metric {
+
+    private final LongSupplier supplier;
+
+    Gauge(LongSupplier supplier) {
+        this.supplier = supplier;
+    }
+
+    public long get() {
+        return supplier.getAsLong();
+    }
+
+    @Override
+    public String summary() {
+        return Long.toString(get());
+    }
+
+    @Override
+    public String intervalSummary() {
+        return summary();
+    }
+}
@@ -0,0 +1,21 @@
+package metrics;
+
+/**
+ * A value measured during the simulation and kept in the MetricsRegistry.
+ *
+ * @author Bohao LI
+ * @version 2017.03.23
+ */
+public interface Metric {
+    /**
+     * @return A one-line summary of the metric since the beginning of the run.
+     */
+    public String summary();
+
+    /**
+     * @return A one-line summary of the metric since the last call of this
+     *         method (or since the beginning of the run), used by the periodic
+     *         dumps.
+     */
+    public String intervalSummary();
+}
@@ -0,0 +1,125 @@
+package metrics;
+
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.LongSupplier;
+
+/**
+ * The counters, gauges and timers of the simulation, by name. The names are
+ * dotted, for example "step.Taxi" or "source.dispatch".
+ *
+ * The default registry is shared by the whole simulation. Getting a metric
+ * creates it the first time, so the classes measuring something should keep
+ * their metrics in fields instead of looking them up on hot paths.
+ *
+ * @author Bohao LI
+ * @version 2017.03.23
+ */
+public class MetricsRegistry {
+
+    // Calls of a Timer timed out of SAMPLING_PERIOD, by default.
+    public static final int SAMPLING_PERIOD = 16;
+
+    private static final MetricsRegistry DEFAULT = new MetricsRegistry();
+
+    private final Map<String, Metric> metrics;
+
+    /**
+     * Create an empty registry.
+     */
+    public MetricsRegistry() {
+        metrics = new ConcurrentSkipListMap<>();
+    }
+
+    /**
+     * @return The registry shared by the whole simulation.
+     */
+    public static MetricsRegistry getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * @return The counter of the given name.
+     */
+    public Counter counter(String name) {
+        return get(name, Counter.class, new Counter());
+    }
+
+    /**
+     * Register a gauge, it replaces any gauge of the same name.
+     *
+     * @param name
+     *            The name of the gauge.
+     * @param supplier
+     *            The function reading the value.
+     * @return The gauge.
+     */
+    public Gauge gauge(String name, LongSupplier supplier) {
+        Gauge gauge = new Gauge(supplier);
+        Metric previous = metrics.put(name, gauge);
+        if (previous != null && !(previous instanceof Gauge))
+            throw new IllegalArgumentException(name + " is not a gauge");
+        return gauge;
+    }
+
+    /**
+     * @return The timer of the given name, timing one call out of
+     *         SAMPLING_PERIOD.
+     */
+    public Timer timer(String name) {
+        return timer(name, SAMPLING_PERIOD);
+    }
+
+    /**
+     * @param samplingPeriod
+     *            One call out of samplingPeriod is timed (1 to time every
+     *            call), only used if the timer does not exist yet.
+     * @return The timer of the given name.
+     */
+    public Timer timer(String name, int samplingPeriod) {
+        return get(name, Timer.class, new Timer(samplingPeriod));
+    }
+
+    /**
+     * @return The metric of the given name, or null if there is none.
+     */
+    public Metric get(String name) {
+        return metrics.get(name);
+    }
+
+    /**
+     * Print a summary of all the metrics since the beginning of the run.
+     *
+     * @param out
+     *            Where to print.
+     */
+    public void printSummary(PrintStream out) {
+        out.println("Metrics summary:");
+        for (Map.Entry<String, Metric> entry : metrics.entrySet())
+            out.println("\t" + entry.getKey() + ": " + entry.getValue().summary());
+    }
+
+    /**
+     * Print the metrics since the previous dump.
+     *
+     * @param out
+     *            Where to print.
+     * @param time
+     *            The time of the city.
+     */
+    public void dump(PrintStream out, int time) {
+        out.println("Metrics at step " + time + ":");
+        for (Map.Entry<String, Metric> entry : metrics.entrySet())
+            out.println("\t" + entry.getKey() + ": " + entry.getValue().intervalSummary());
+    }
+
+    private <M extends Metric> M get(String name, Class<M> type, M metric) {
+        Metric existing = metrics.putIfAbsent(name, metric);
+        if (existing == null)
+            return metric;
+        if (!type.isInstance(existing))
+            throw new IllegalArgumentException(name + " is not a " + type.getSimpleName());
+        return type.cast(existing);
+    }
+}
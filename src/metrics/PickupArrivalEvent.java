@@ -0,0 +1,29 @@
+package metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event of TaxiCompany.arrivedAtPickup(), disabled by default.
+ *
+ * @author Bohao LI
+ * @version 2017.03.23
+ */
+@Name("simulation.PickupArrival")
+@Label("Pickup Arrival")
+@Category("Simulation")
+@Description("A vehicle arrives at a pickup location")
+@Enabled(false)
+public class PickupArrivalEvent extends Event {
+    @Label("Tick")
+    public int tick;
+    @Label("Vehicle ID")
+    public String vehicleId;
+    @Label("Persons")
+    @Description("Number of persons picked up")
+    public int persons;
+}
@@ -0,0 +1,32 @@
+package metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event of a Shuttle boarding or alighting passengers in
+ * Shuttle.act(), disabled by default.
+ *
+ * @author Bohao LI
+ * @version 2017.03.23
+ */
+@Name("simulation.ShuttleStop")
+@Label("Shuttle Stop")
+@Category("Simulation")
+@Description("Persons get on or off a shuttle")
+@Enabled(false)
+public class ShuttleStopEvent extends Event {
+    @Label("Tick")
+    public int tick;
+    @Label("Vehicle ID")
+    public String vehicleId;
+    @Label("Boarding")
+    @Description("True if the persons get on, false if they get off")
+    public boolean boarding;
+    @Label("Persons")
+    public int persons;
+}
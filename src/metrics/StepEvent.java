@@ -0,0 +1,27 @@
+package metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event spanning a whole Simulation.step(), disabled by
+ * default.
+ *
+ * @author Bohao LI
+ * @version 2017.03.23
+ */
+@Name("simulation.Step")
+@Label("Step")
+@Category("Simulation")
+@Description("A step of the simulation")
+@Enabled(false)
+public class StepEvent extends Event {
+    @Label("Tick")
+    public int tick;
+    @Label("Actors")
+    public int actors;
+}
@@ -0,0 +1,88 @@
+package metrics;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import model.Actor;
+
+/**
+ * Run the steps of the simulation and time them.
+ *
+ * Every step is timed as a whole ("step" timer). One step out of SAMPLE_PERIOD
+ * is also broken down by type of actor: every actor is timed and the time of
+ * the step is added up per class of actor ("step.Taxi", "step.Shuttle",
+ * "step.PassengerSource", "step.CityGUI", ...). Timing every actor costs two
+ * System.nanoTime() calls per actor, which is why it is only done on the
+ * sampled steps.
+ *
+ * @author Bohao LI
+ * @version 2017.03.23
+ */
+public class StepProfiler {
+
+    public static final int SAMPLE_PERIOD = 10;
+
+    private final MetricsRegistry registry;
+    private final Timer stepTimer;
+    private final Map<Class<?>, Timer> phaseTimers;
+    // Time spent per class of actor during the current sampled step.
+    private final Map<Class<?>, long[]> phaseNanos;
+    private int steps;
+
+    /**
+     * @param registry
+     *            The registry receiving the timers.
+     */
+    public StepProfiler(MetricsRegistry registry) {
+        this.registry = registry;
+        stepTimer = registry.timer("step", 1);
+        phaseTimers = new HashMap<>();
+        phaseNanos = new HashMap<>();
+        steps = 0;
+    }
+
+    /**
+     * Ask every actor to act, once.
+     *
+     * @param actors
+     *            The actors of the simulation.
+     */
+    public void step(List<Actor> actors) {
+        long start = System.nanoTime();
+        if (steps++ % SAMPLE_PERIOD != 0) {
+            for (Actor actor : actors)
+                actor.act();
+        } else {
+            for (long[] nanos : phaseNanos.values())
+                nanos[0] = 0;
+            long before = start;
+            for (Actor actor : actors) {
+                actor.act();
+                long after = System.nanoTime();
+                long[] nanos = phaseNanos.get(actor.getClass());
+                if (nanos == null)
+                    phaseNanos.put(actor.getClass(), nanos = new long[1]);
+                nanos[0] += after - before;
+                before = after;
+            }
+            for (Map.Entry<Class<?>, long[]> entry : phaseNanos.entrySet())
+                phaseTimer(entry.getKey()).recordCall(entry.getValue()[0]);
+        }
+        stepTimer.recordCall(System.nanoTime() - start);
+    }
+
+    /**
+     * @return The timer of the steps as a whole.
+     */
+    public Timer getStepTimer() {
+        return stepTimer;
+    }
+
+    private Timer phaseTimer(Class<?> type) {
+        Timer timer = phaseTimers.get(type);
+        if (timer == null)
+            phaseTimers.put(type, timer = registry.timer("step." + type.getSimpleName(), 1));
+        return timer;
+    }
+}
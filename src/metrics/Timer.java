@@ -0,0 +1,135 @@
+package metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The duration of an operation. All the calls are counted, but only one call
+ * out of samplingPeriod is timed with System.nanoTime(), so a Timer can be left
+ * on hot paths:
+ *
+ * long start = timer.start(); ... timer.stop(start);
+ *
+ * The total time is estimated from the timed calls.
+ *
+ * @author Bohao LI
+ * @version 2017.03.23
+ */
+public class Timer implements Metric {
+
+    /**
+     * Returned by start() for a call which is not timed. System.nanoTime() may
+     * return any value, 0 included, but not this one in practice (it is the
+     * origin of the clock minus 292 years).
+     */
+    public static final long NOT_SAMPLED = Long.MIN_VALUE;
+
+    private final int samplingPeriod;
+    // Not atomic on purpose: a lost increment only shifts the sampling.
+    private int calls;
+
+    private final LongAdder count;
+    private final LongAdder sampled;
+    private final LongAdder sampledNanos;
+    private final AtomicLong maxNanos;
+
+    private long lastCount;
+    private long lastSampled;
+    private long lastSampledNanos;
+
+    Timer(int samplingPeriod) {
+        if (samplingPeriod < 1)
+            throw new IllegalArgumentException("Sampling period: " + samplingPeriod);
+        this.samplingPeriod = samplingPeriod;
+        count = new LongAdder();
+        sampled = new LongAdder();
+        sampledNanos = new LongAdder();
+        maxNanos = new AtomicLong();
+    }
+
+    /**
+     * @return The time of the beginning of the call if it is sampled,
+     *         otherwise NOT_SAMPLED.
+     */
+    public long start() {
+        count.increment();
+        if (samplingPeriod > 1 && ++calls % samplingPeriod != 0)
+            return NOT_SAMPLED;
+        return System.nanoTime();
+    }
+
+    /**
+     * @param start
+     *            The value returned by start().
+     */
+    public void stop(long start) {
+        if (start != NOT_SAMPLED)
+            record(System.nanoTime() - start);
+    }
+
+    /**
+     * Record the duration of a call timed by the caller (it is counted as a
+     * call too).
+     *
+     * @param nanos
+     *            The duration in nanoseconds.
+     */
+    public void record(long nanos) {
+        sampled.increment();
+        sampledNanos.add(nanos);
+        long max;
+        while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos))
+            ;
+    }
+
+    /**
+     * Add a call timed by the caller.
+     */
+    public void recordCall(long nanos) {
+        count.increment();
+        record(nanos);
+    }
+
+    /**
+     * @return The number of calls.
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @return The mean duration of a call in nanoseconds.
+     */
+    public double getMeanNanos() {
+        long n = sampled.sum();
+        return n == 0 ? 0 : sampledNanos.sum() / (double) n;
+    }
+
+    /**
+     * @return The estimated total time spent in the calls, in nanoseconds.
+     */
+    public double getTotalNanos() {
+        return getMeanNanos() * getCount();
+    }
+
+    @Override
+    public String summary() {
+        return format(getCount(), sampled.sum(), sampledNanos.sum())
+                + String.format(", max %.3f ms", maxNanos.get() / 1e6);
+    }
+
+    @Override
+    public synchronized String intervalSummary() {
+        long n = getCount(), s = sampled.sum(), t = sampledNanos.sum();
+        String result = format(n - lastCount, s - lastSampled, t - lastSampledNanos);
+        lastCount = n;
+        lastSampled = s;
+        lastSampledNanos = t;
+        return result;
+    }
+
+    private static String format(long n, long s, long nanos) {
+        double mean = s == 0 ? 0 : nanos / (double) s;
+        return String.format("%d calls, mean %.3f ms, total %.1f ms", n, mean / 1e6, mean * n / 1e6);
+    }
+}
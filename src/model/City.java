@@ -1,23 +1,54 @@
 package model;
 
-import java.util.LinkedList;
-import java.util.List;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Random;
+import java.util.Set;
 
 /**
- * A collection of items in the city.
+ * A collection of items in the city. The city counts its items by kind and by
+ * state as they are added, removed or change state (see CityStats).
  * 
  * @author David J. Barnes and Michael Kolling. Modified A.Morelle, Modified
  *         Bohao LI
  * @version 2017.03.23
  */
-public class City {
+public class City implements CityStats {
 
     private static final int DEFAULT_WIDTH = 35;
     private static final int DEFAULT_HEIGHT = 35;
 
-    private List<Item> items;
+    // In insertion order, adding or removing an item does not scan the others.
+    private Set<Item> items;
+    // All the vehicles in service in the city, whatever their company.
+    private VehicleRegistry vehicleRegistry;
     private int width;
     private int height;
+    // The number of steps simulated so far.
+    private int time;
+
+    // Live counts of the items, see CityStats.
+    private int nbTaxis;
+    private int nbShuttles;
+    private int nbFreeTaxis;
+    private int nbFreeShuttles;
+    // Per choice.
+    private int[] nbWaitingPassengers;
+
+    // One bit per cell, set when the cell has been given to an item by
+    // reserveFreeLocation(), the cell of index i being (i % width, i / width).
+    private long[] occupied;
+    private int nbOccupied;
+    // The indexes of the cells still free, built once half of the cells are
+    // occupied, when drawing a random cell would fail too often: its first
+    // nbFreeCells entries are the free cells.
+    private int[] freeCells;
+    private int nbFreeCells;
+
+    // Records every change of the city, null if it is not journaled.
+    private Journal journal;
+    // Delivers the calls between the actors, null if they are direct calls.
+    private Messenger messenger;
 
     /**
      * Constructor for objects of class City
@@ -35,7 +66,12 @@ public class City {
 
         this.width = width;
         this.height = height;
-        items = new LinkedList<Item>();
+        items = new LinkedHashSet<Item>();
+        vehicleRegistry = new VehicleRegistry();
+        time = 0;
+        nbWaitingPassengers = new int[Passenger.Choice.values().length];
+        occupied = new long[(int) (((long) width * height + 63) >>> 6)];
+        nbOccupied = 0;
     }
 
     /**
@@ -52,15 +88,123 @@ public class City {
      *            The item to be added.
      */
     public void addItem(Item item) {
-        if (items.contains(item))
+        if (!items.add(item))
             throw new IllegalArgumentException(item + " already recorded in the city.");
-        items.add(item);
+        count(item, 1);
+        if (journal != null)
+            journal.itemAdded(item);
+    }
+
+    /**
+     * Update the counts for an item added (delta 1) or removed (delta -1).
+     */
+    private void count(Item item, int delta) {
+        if (item instanceof Vehicle) {
+            Vehicle vehicle = (Vehicle) item;
+            if (delta > 0)
+                vehicle.enterCity(this);
+            else
+                vehicle.leaveCity();
+            if (vehicle instanceof Shuttle) {
+                nbShuttles += delta;
+                if (vehicle.isCountedFree())
+                    nbFreeShuttles += delta;
+            } else {
+                nbTaxis += delta;
+                if (vehicle.isCountedFree())
+                    nbFreeTaxis += delta;
+            }
+        } else if (item instanceof Passenger)
+            nbWaitingPassengers[((Passenger) item).getChoice().ordinal()] += delta;
+    }
+
+    /**
+     * A Vehicle of the city has become free or busy.
+     * 
+     * @param vehicle
+     *            The Vehicle.
+     * @param free
+     *            True if the Vehicle has become free.
+     */
+    void freeStateChanged(Vehicle vehicle, boolean free) {
+        int delta = free ? 1 : -1;
+        if (vehicle instanceof Shuttle)
+            nbFreeShuttles += delta;
+        else
+            nbFreeTaxis += delta;
+    }
+
+    /**
+     * Give a random cell where no item has been placed yet to a new item, and
+     * mark it as occupied. The cell is drawn in constant time: at random while
+     * most of the cells are free, from the index of the free cells afterwards.
+     * 
+     * Only the cells given by this method are known to be occupied, the items
+     * moving afterwards do not free their cell.
+     * 
+     * @param rand
+     *            The random generator drawing the cell.
+     * @return The Location of the cell.
+     * @throws IllegalStateException
+     *             If every cell is occupied.
+     */
+    public Location reserveFreeLocation(Random rand) {
+        long nbCells = (long) width * height;
+        if (nbOccupied >= nbCells)
+            throw new IllegalStateException("No free cell left in the " + this);
+
+        int index;
+        if (freeCells == null && nbOccupied < nbCells / 2) {
+            do
+                index = (int) (rand.nextDouble() * nbCells);
+            while (isOccupied(index));
+        } else {
+            if (freeCells == null)
+                indexFreeCells();
+            int i = rand.nextInt(nbFreeCells);
+            index = freeCells[i];
+            freeCells[i] = freeCells[--nbFreeCells];
+        }
+        occupied[index >>> 6] |= 1L << index;
+        nbOccupied++;
+        return new Location(index % width, index / width);
+    }
+
+    /**
+     * @return True if the given cell has been given to an item by
+     *         reserveFreeLocation().
+     */
+    public boolean isOccupied(Location location) {
+        return isOccupied(location.getY() * width + location.getX());
+    }
+
+    private boolean isOccupied(int index) {
+        return (occupied[index >>> 6] & (1L << index)) != 0;
+    }
+
+    /**
+     * Build the index of the free cells.
+     */
+    private void indexFreeCells() {
+        int nbCells = width * height;
+        freeCells = new int[nbCells - nbOccupied];
+        nbFreeCells = 0;
+        for (int index = 0; index < nbCells; index++)
+            if (!isOccupied(index))
+                freeCells[nbFreeCells++] = index;
+    }
+
+    /**
+     * @return The registry of the vehicles in service in the city.
+     */
+    public VehicleRegistry getVehicleRegistry() {
+        return vehicleRegistry;
     }
 
     /**
-     * @return the items.
+     * @return the items, in the order they were added.
      */
-    public List<Item> getItems() {
+    public Collection<Item> getItems() {
         return items;
     }
 
@@ -68,8 +212,12 @@ public class City {
      * @param items
      *            the items to set.
      */
-    public void setItems(List<Item> items) {
-        this.items = items;
+    public void setItems(Collection<Item> items) {
+        for (Item item : this.items)
+            count(item, -1);
+        this.items = new LinkedHashSet<Item>(items);
+        for (Item item : this.items)
+            count(item, 1);
     }
 
     /**
@@ -81,28 +229,100 @@ public class City {
     public void removeItem(Item item) {
         if (!items.remove(item))
             throw new IllegalArgumentException(item + " is not in the city.");
+        count(item, -1);
+        if (journal != null)
+            journal.itemRemoved(item);
     }
 
-    /**
-     * @return the number of taxis in the city.
-     */
+    @Override
     public int getNbTaxis() {
+        return nbTaxis;
+    }
+
+    @Override
+    public int getNbShuttles() {
+        return nbShuttles;
+    }
+
+    @Override
+    public int getNbFreeTaxis() {
+        return nbFreeTaxis;
+    }
+
+    @Override
+    public int getNbFreeShuttles() {
+        return nbFreeShuttles;
+    }
+
+    @Override
+    public int getNbWaitingPassengers() {
         int count = 0;
-        for (Object o : items)
-            if (o instanceof Taxi)
-                count++;
+        for (int n : nbWaitingPassengers)
+            count += n;
         return count;
     }
 
+    @Override
+    public int getNbWaitingPassengers(Passenger.Choice choice) {
+        return nbWaitingPassengers[choice.ordinal()];
+    }
+
     /**
-     * @return the number of shuttles in the city
+     * @return The number of steps simulated so far.
      */
-    public int getNbShuttles() {
-        int count = 0;
-        for (Object o : items)
-            if (o instanceof Shuttle)
-                count++;
-        return count;
+    public int getTime() {
+        return time;
+    }
+
+    /**
+     * Advance the clock of the city by one step. This method is called at the
+     * end of every step of the simulation.
+     */
+    public void tick() {
+        time++;
+        if (journal != null)
+            journal.tick(this);
+    }
+
+    /**
+     * @return The Journal recording the changes of the city, or null.
+     */
+    public Journal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Called by the Journal when it is opened on the city, and closed.
+     */
+    void setJournal(Journal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * @return The Messenger delivering the calls between the actors, or null
+     *         if they are direct calls.
+     */
+    public Messenger getMessenger() {
+        return messenger;
+    }
+
+    /**
+     * @param messenger
+     *            The Messenger delivering the calls between the actors, null
+     *            for direct calls.
+     */
+    public void setMessenger(Messenger messenger) {
+        this.messenger = messenger;
+    }
+
+    /**
+     * Make a call to the given target, through the Messenger if any.
+     */
+    void send(Object target, Runnable message, int delay) {
+        if (messenger == null)
+            message.run();
+        else
+            messenger.send(target, message, delay);
     }
 
     /**
@@ -0,0 +1,353 @@
+package model;
+
+import java.awt.Image;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The state of a City at a given step, as rebuilt by a JournalReplay: where
+ * the vehicles are and how many persons they carry, the passengers waiting on
+ * the map, and the counters of the PassengerSource.
+ *
+ * A snapshot is detached from the simulation, it can be drawn by the GUI or
+ * the FrameExporter while the simulation goes on.
+ *
+ * @author Bohao LI
+ * @version 2017.03.23
+ */
+public class CitySnapshot {
+
+    /**
+     * A passenger waiting on the map.
+     */
+    private static final class Waiting {
+        private final int x;
+        private final int y;
+        private final Passenger.Choice choice;
+        private final int nbPersons;
+        // The waiting time of the passenger at the step since.
+        private final int waitingTime;
+        private final int since;
+
+        private Waiting(int x, int y, Passenger.Choice choice, int nbPersons, int waitingTime, int since) {
+            this.x = x;
+            this.y = y;
+            this.choice = choice;
+            this.nbPersons = nbPersons;
+            this.waitingTime = waitingTime;
+            this.since = since;
+        }
+    }
+
+    /**
+     * An item of the snapshot drawn by the GUI.
+     */
+    private static final class SnapshotItem implements DrawableItem {
+        private final Location location;
+        private final Image image;
+
+        private SnapshotItem(int x, int y, Image image) {
+            location = new Location(x, y);
+            this.image = image;
+        }
+
+        @Override
+        public Location getLocation() {
+            return location;
+        }
+
+        @Override
+        public Image getImage() {
+            return image;
+        }
+    }
+
+    private final int width;
+    private final int height;
+    private int time;
+
+    private int missedPickups;
+    private int requests;
+    private int deferred;
+    private int dials;
+    // Only known for a snapshot captured from the City, -1 otherwise.
+    private int nbFreeTaxis;
+    private int nbFreeShuttles;
+
+    // Per slot of the VehicleRegistry, kind 0 if the slot is free.
+    private int[] kinds;
+    private String[] ids;
+    private int[] xs;
+    private int[] ys;
+    private int[] nbAboard;
+    private int nbVehicles;
+
+    // Journal id --> waiting passenger, in the order of their appearance.
+    private final Map<Integer, Waiting> waiting;
+
+    /**
+     * Create the snapshot of an empty City.
+     */
+    CitySnapshot(int width, int height, int time) {
+        this.width = width;
+        this.height = height;
+        this.time = time;
+        kinds = new int[16];
+        ids = new String[16];
+        xs = new int[16];
+        ys = new int[16];
+        nbAboard = new int[16];
+        waiting = new LinkedHashMap<>();
+        nbFreeTaxis = -1;
+        nbFreeShuttles = -1;
+    }
+
+    /**
+     * Take a snapshot of a City without a Journal. Only the City is known: the
+     * counters of the PassengerSource are left at 0.
+     *
+     * @param city
+     *            The City.
+     * @return The state of the City at the current step.
+     */
+    public static CitySnapshot capture(City city) {
+        CitySnapshot snapshot = new CitySnapshot(city.getWidth(), city.getHeight(), city.getTime());
+        int id = 0;
+        for (Item item : city.getItems())
+            if (item instanceof Vehicle) {
+                Vehicle vehicle = (Vehicle) item;
+                Location location = vehicle.getLocation();
+                snapshot.addVehicle(vehicle.getSlot(), vehicle instanceof Shuttle ? Journal.SHUTTLE : Journal.TAXI,
+                        vehicle.getID(), location.getX(), location.getY(), vehicle.getNbAboard());
+            } else if (item instanceof Passenger) {
+                Passenger passenger = (Passenger) item;
+                snapshot.addWaiting(id++, passenger.getPickupX(), passenger.getPickupY(), passenger.getChoice(),
+                        passenger.getNb_persons(), passenger.getWaitingTime());
+            }
+        snapshot.nbFreeTaxis = city.getNbFreeTaxis();
+        snapshot.nbFreeShuttles = city.getNbFreeShuttles();
+        return snapshot;
+    }
+
+    /**
+     * Take a snapshot of a City and of the missed pickups of its
+     * PassengerSource.
+     *
+     * @param city
+     *            The City.
+     * @param source
+     *            The PassengerSource of the City.
+     * @return The state of the City at the current step.
+     */
+    public static CitySnapshot capture(City city, PassengerSource source) {
+        CitySnapshot snapshot = capture(city);
+        snapshot.missedPickups = source.getMissedPickups();
+        return snapshot;
+    }
+
+    void setTime(int time) {
+        this.time = time;
+    }
+
+    void setCounters(int missedPickups, int requests, int deferred, int dials) {
+        this.missedPickups = missedPickups;
+        this.requests = requests;
+        this.deferred = deferred;
+        this.dials = dials;
+    }
+
+    void addVehicle(int slot, int kind, String id, int x, int y, int nbPersons) {
+        if (slot >= kinds.length) {
+            int length = Math.max(slot + 1, 2 * kinds.length);
+            kinds = Arrays.copyOf(kinds, length);
+            ids = Arrays.copyOf(ids, length);
+            xs = Arrays.copyOf(xs, length);
+            ys = Arrays.copyOf(ys, length);
+            nbAboard = Arrays.copyOf(nbAboard, length);
+        }
+        if (kinds[slot] == 0)
+            nbVehicles++;
+        kinds[slot] = kind;
+        ids[slot] = id;
+        xs[slot] = x;
+        ys[slot] = y;
+        nbAboard[slot] = nbPersons;
+    }
+
+    void removeVehicle(int slot) {
+        if (kinds[slot] != 0)
+            nbVehicles--;
+        kinds[slot] = 0;
+        ids[slot] = null;
+    }
+
+    void moveVehicle(int slot, int x, int y) {
+        xs[slot] = x;
+        ys[slot] = y;
+    }
+
+    void board(int slot, int nbPersons) {
+        nbAboard[slot] += nbPersons;
+    }
+
+    void addWaiting(int id, int x, int y, Passenger.Choice choice, int nbPersons, int waitingTime) {
+        waiting.put(id, new Waiting(x, y, choice, nbPersons, waitingTime, time));
+    }
+
+    void removeWaiting(int id) {
+        waiting.remove(id);
+    }
+
+    void countRequest(boolean deferred) {
+        requests++;
+        if (deferred)
+            this.deferred++;
+    }
+
+    void countMissed(int nbPersons) {
+        missedPickups += nbPersons;
+    }
+
+    void countDial() {
+        dials++;
+    }
+
+    /**
+     * @return The step of the snapshot.
+     */
+    public int getTime() {
+        return time;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return The number of persons who gave up before any vehicle could be
+     *         assigned to them.
+     */
+    public int getMissedPickups() {
+        return missedPickups;
+    }
+
+    /**
+     * @return The number of requests passed to the companies.
+     */
+    public int getNbRequests() {
+        return requests;
+    }
+
+    /**
+     * @return The number of requests put in the backlog of a company.
+     */
+    public int getNbDeferred() {
+        return deferred;
+    }
+
+    /**
+     * @return The number of dials of the user.
+     */
+    public int getNbDials() {
+        return dials;
+    }
+
+    /**
+     * @return The number of free Taxis, -1 if the snapshot was not captured
+     *         from the City.
+     */
+    public int getNbFreeTaxis() {
+        return nbFreeTaxis;
+    }
+
+    /**
+     * @return The number of free Shuttles, -1 if the snapshot was not
+     *         captured from the City.
+     */
+    public int getNbFreeShuttles() {
+        return nbFreeShuttles;
+    }
+
+    /**
+     * @return The number of vehicles in service.
+     */
+    public int getNbVehicles() {
+        return nbVehicles;
+    }
+
+    /**
+     * @return The number of persons waiting for a pickup on the map.
+     */
+    public int getNbWaitingPersons() {
+        int count = 0;
+        for (Waiting w : waiting.values())
+            count += w.nbPersons;
+        return count;
+    }
+
+    /**
+     * @return The number of persons in the vehicles.
+     */
+    public int getNbPersonsAboard() {
+        int count = 0;
+        for (int slot = 0; slot < kinds.length; slot++)
+            if (kinds[slot] != 0)
+                count += nbAboard[slot];
+        return count;
+    }
+
+    /**
+     * @return The ID of the vehicle of the given slot, or null if the slot is
+     *         free.
+     */
+    public String getVehicleID(int slot) {
+        return slot < ids.length ? ids[slot] : null;
+    }
+
+    /**
+     * @return The vehicles and the waiting passengers, with the images the GUI
+     *         would have shown at the step of the snapshot.
+     */
+    public List<DrawableItem> getItems() {
+        List<DrawableItem> items = new ArrayList<>(nbVehicles + waiting.size());
+        for (int slot = 0; slot < kinds.length; slot++) {
+            if (kinds[slot] == Journal.TAXI)
+                items.add(new SnapshotItem(xs[slot], ys[slot],
+                        nbAboard[slot] > 0 ? Sprites.TAXI_WITH_PERSON : Sprites.TAXI));
+            else if (kinds[slot] == Journal.SHUTTLE)
+                items.add(new SnapshotItem(xs[slot], ys[slot],
+                        nbAboard[slot] > 0 ? Sprites.BUS_WITH_PERSONS : Sprites.BUS));
+        }
+        for (Waiting w : waiting.values()) {
+            // Only the passengers waiting for a Shuttle count the steps.
+            int waitingTime = w.waitingTime + (w.choice == Passenger.Choice.SHUTTLE ? time - w.since : 0);
+            boolean angry = waitingTime >= Passenger.ANGRY_LIMIT;
+            Image image;
+            if (w.nbPersons > 1)
+                image = angry ? Sprites.ANGRY_PERSONS : Sprites.PERSONS;
+            else if (angry)
+                image = Sprites.ANGRY_PERSON;
+            else
+                image = w.choice == Passenger.Choice.TAXI ? Sprites.PERSON : Sprites.RED_PERSON;
+            items.add(new SnapshotItem(w.x, w.y, image));
+        }
+        return items;
+    }
+
+    /**
+     * @return A summary of the snapshot.
+     */
+    @Override
+    public String toString() {
+        return String.format("Step %d: %d vehicles, %d persons waiting, %d aboard, %d requests (%d deferred), "
+                + "%d missed pickups, %d dials", time, nbVehicles, getNbWaitingPersons(), getNbPersonsAboard(),
+                requests, deferred, missedPickups, dials);
+    }
+}
@@ -0,0 +1,43 @@
+package model;
+
+/**
+ * Live counts of the items of a City, kept up to date as the items are added,
+ * removed or change state, so that reading them is O(1). Both the GUI and the
+ * headless runs read them.
+ *
+ * @author Bohao LI
+ * @version 2017.03.23
+ */
+public interface CityStats {
+
+    /**
+     * @return The number of taxis in the city.
+     */
+    int getNbTaxis();
+
+    /**
+     * @return The number of shuttles in the city.
+     */
+    int getNbShuttles();
+
+    /**
+     * @return The number of taxis able to take a request.
+     */
+    int getNbFreeTaxis();
+
+    /**
+     * @return The number of shuttles able to take a request.
+     */
+    int getNbFreeShuttles();
+
+    /**
+     * @return The number of passengers (single or groups) waiting on the map.
+     */
+    int getNbWaitingPassengers();
+
+    /**
+     * @return The number of passengers (single or groups) waiting on the map
+     *         for the given kind of vehicle.
+     */
+    int getNbWaitingPassengers(Passenger.Choice choice);
+}
@@ -0,0 +1,111 @@
+package model;
+
+/**
+ * A map of the demand in the city. The city grid is divided into square blocks
+ * of BLOCK_SIZE x BLOCK_SIZE cells, and every block keeps a time-decayed count
+ * of the events (a Passenger appearing, or a missed pickup) that happened in
+ * it: an event counts for 1 when it happens, for 1/2 HALF_LIFE steps later,
+ * for 1/4 2 * HALF_LIFE steps later, etc.
+ *
+ * The decay is applied lazily: a block only remembers its count and the time
+ * of its last update, so recording an event or reading a block is O(1) whatever
+ * the number of steps since the last update.
+ *
+ * @author Bohao LI
+ * @version 2017.03.23
+ */
+public class DemandHeatmap {
+
+    public static final int BLOCK_SIZE = 5;
+    public static final int HALF_LIFE = 60;
+
+    private final int blocksX;
+    private final int blocksY;
+    private final int cityWidth;
+    private final int cityHeight;
+    // Decay factor of a count for a step.
+    private final double decay;
+
+    // Count of every block at the time of its last update.
+    private final double[] heat;
+    private final int[] lastUpdate;
+
+    /**
+     * Create an empty heatmap covering the given city.
+     *
+     * @param city
+     *            The city covered by the heatmap.
+     */
+    public DemandHeatmap(City city) {
+        cityWidth = city.getWidth();
+        cityHeight = city.getHeight();
+        blocksX = (cityWidth + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        blocksY = (cityHeight + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        decay = Math.pow(.5, 1. / HALF_LIFE);
+        heat = new double[blocksX * blocksY];
+        lastUpdate = new int[blocksX * blocksY];
+    }
+
+    /**
+     * Record an event at the given position.
+     *
+     * @param x
+     *            The x coordinate of the event.
+     * @param y
+     *            The y coordinate of the event.
+     * @param weight
+     *            The weight of the event, for example the number of persons.
+     * @param time
+     *            The time of the event.
+     */
+    public void record(int x, int y, double weight, int time) {
+        int block = getBlock(x, y);
+        heat[block] = getHeat(block, time) + weight;
+        lastUpdate[block] = time;
+    }
+
+    /**
+     * @param block
+     *            The index of a block.
+     * @param time
+     *            The current time.
+     * @return The decayed count of the block at the given time.
+     */
+    public double getHeat(int block, int time) {
+        int elapsed = time - lastUpdate[block];
+        return elapsed <= 0 ? heat[block] : heat[block] * Math.pow(decay, elapsed);
+    }
+
+    /**
+     * @return The decayed count of a block turned into a number of events per
+     *         step.
+     */
+    public double getRate(int block, int time) {
+        return getHeat(block, time) * (1 - decay);
+    }
+
+    /**
+     * @return The index of the block containing the given position.
+     */
+    public int getBlock(int x, int y) {
+        return (y / BLOCK_SIZE) * blocksX + x / BLOCK_SIZE;
+    }
+
+    /**
+     * @return The number of blocks.
+     */
+    public int getNbBlocks() {
+        return heat.length;
+    }
+
+    /**
+     * @param block
+     *            The index of a block.
+     * @return The cell in the middle of the block.
+     */
+    public Location getCenter(int block) {
+        int x = (block % blocksX) * BLOCK_SIZE + BLOCK_SIZE / 2;
+        int y = (block / blocksX) * BLOCK_SIZE + BLOCK_SIZE / 2;
+        return new Location(Math.min(x, cityWidth - 1), Math.min(y, cityHeight - 1));
+    }
+}
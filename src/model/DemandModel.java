@@ -0,0 +1,51 @@
+package model;
+
+import java.util.Random;
+
+/**
+ * A model of the demand: where and when Passengers ask for a pickup.
+ *
+ * At every step, the PassengerSource asks its DemandModel for the trips of the
+ * step. The trips are written in bulk in a TripBuffer (plain arrays reused from
+ * one step to the next) rather than returned as objects, so a model can
+ * generate thousands of trips per step without pressure on the garbage
+ * collector.
+ *
+ * @author Bohao LI
+ * @version 2017.03.23
+ */
+public interface DemandModel {
+    /**
+     * Generate the trips requested at the given step.
+     *
+     * @param time
+     *            The current time of the city.
+     * @param rand
+     *            The random generator to use.
+     * @param trips
+     *            The buffer receiving the trips, already cleared.
+     */
+    public void generate(int time, Random rand, TripBuffer trips);
+
+    /**
+     * The part of the demand picked up in a district of the city, for the
+     * PassengerSource to generate the trips of every district on its own
+     * thread. The trips of the districts of a partition of the city make the
+     * same demand on average as the whole model, but with random numbers drawn
+     * differently.
+     *
+     * @param x0
+     *            The first column of the district.
+     * @param y0
+     *            The first row of the district.
+     * @param x1
+     *            The column after the district.
+     * @param y1
+     *            The row after the district.
+     * @return The demand of the trips picked up in the district, or null if the
+     *         model cannot be divided.
+     */
+    public default DemandModel district(int x0, int y0, int x1, int y1) {
+        return null;
+    }
+}
@@ -0,0 +1,199 @@
+package model;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import metrics.Counter;
+import metrics.MetricsRegistry;
+import metrics.Timer;
+
+/**
+ * Route the requests of the passengers to the TaxiCompany able to serve them
+ * best, instead of a company chosen at random: every company offers its best
+ * vehicle for the request (see TaxiCompany.makeOffer()), and the request goes
+ * to the offer whose vehicle arrives first.
+ *
+ * With more than SEQUENTIAL_LIMIT companies the offers are evaluated
+ * concurrently, one task per company, and only the offers received within the
+ * latency budget are considered: a late company simply loses the request.
+ * Under the limit, a task would cost more than the evaluation itself, so the
+ * offers are evaluated one after the other by the simulation thread.
+ *
+ * makeOffer() only reads its company, what it reads besides the vehicles being
+ * brought up to date by the simulation thread beforehand (see
+ * TaxiCompany.prepareOffers()). A late task is not cancelled, it runs to its
+ * end and its result is ignored; meanwhile its company makes no other offer
+ * (it is counted as late again), and must not be modified: the simulation
+ * thread waits for the late tasks in awaitLateOffers(), before the companies
+ * are modified outside the market (called by dispatch() when the request is
+ * left to the company of the passenger, and by the PassengerSource once the
+ * requests of the step are dispatched).
+ *
+ * @author Bohao LI
+ * @version 2017.03.23
+ */
+public class DispatchMarket implements Closeable {
+
+    // How a PassengerSource chooses the company of a request.
+    public enum Routing {
+        RANDOM, MARKET;
+    }
+
+    private static final int SEQUENTIAL_LIMIT = 4;
+
+    private final List<TaxiCompany> companies;
+    private final long budgetNanos;
+    // Null when the offers are evaluated sequentially.
+    private final ExecutorService executor;
+    // The last task evaluating the offer of each company, in the order of the
+    // companies (null if none is running).
+    private final List<Future<Offer>> running;
+
+    private final Timer dispatchTimer;
+    private final Counter lateOffers;
+
+    /**
+     * @param companies
+     *            The companies making offers.
+     * @param budgetMicros
+     *            How long the offers are waited for, in microseconds.
+     */
+    public DispatchMarket(List<TaxiCompany> companies, long budgetMicros) {
+        if (companies.isEmpty())
+            throw new IllegalArgumentException("No company on the market");
+        if (budgetMicros <= 0)
+            throw new IllegalArgumentException("Budget must be positive: " + budgetMicros);
+        this.companies = new ArrayList<>(companies);
+        budgetNanos = TimeUnit.MICROSECONDS.toNanos(budgetMicros);
+        running = new ArrayList<>();
+        if (companies.size() > SEQUENTIAL_LIMIT) {
+            int nbThreads = Math.min(companies.size(), Runtime.getRuntime().availableProcessors());
+            executor = Executors.newFixedThreadPool(nbThreads, runnable -> {
+                Thread thread = new Thread(runnable, "dispatch-market");
+                thread.setDaemon(true);
+                return thread;
+            });
+            for (int i = 0; i < companies.size(); i++)
+                running.add(null);
+        } else
+            executor = null;
+        MetricsRegistry metrics = MetricsRegistry.getDefault();
+        dispatchTimer = metrics.timer("market.dispatch");
+        lateOffers = metrics.counter("market.lateOffers");
+    }
+
+    /**
+     * Assign the request of a passenger to the company making the best offer.
+     * 
+     * @param passenger
+     *            The passenger requesting a pickup.
+     * @return The company serving the passenger, or null if no company made an
+     *         offer in time (the late offers are then waited for).
+     */
+    public TaxiCompany dispatch(Passenger passenger) {
+        long start = dispatchTimer.start();
+        try {
+            Offer best = executor == null ? bestOffer(passenger) : bestOfferConcurrently(passenger);
+            if (best == null) {
+                awaitLateOffers();
+                return null;
+            }
+            best.getCompany().acceptOffer(best, passenger);
+            return best.getCompany();
+        } finally {
+            dispatchTimer.stop(start);
+        }
+    }
+
+    private Offer bestOffer(Passenger passenger) {
+        Offer best = null;
+        for (TaxiCompany company : companies) {
+            company.prepareOffers();
+            Offer offer = company.makeOffer(passenger);
+            if (offer != null && offer.isBetterThan(best))
+                best = offer;
+        }
+        return best;
+    }
+
+    private Offer bestOfferConcurrently(Passenger passenger) {
+        long deadline = System.nanoTime() + budgetNanos;
+        // The tasks of this request, null for a company still busy with a
+        // late task.
+        List<Future<Offer>> futures = new ArrayList<>(companies.size());
+        for (int i = 0; i < companies.size(); i++) {
+            Future<Offer> previous = running.get(i);
+            if (previous != null && !previous.isDone()) {
+                lateOffers.increment();
+                futures.add(null);
+                continue;
+            }
+            TaxiCompany company = companies.get(i);
+            company.prepareOffers();
+            Future<Offer> future = executor.submit(() -> company.makeOffer(passenger));
+            running.set(i, future);
+            futures.add(future);
+        }
+        // The futures are in the order of the companies, the first of two
+        // equal offers wins as in bestOffer().
+        Offer best = null;
+        for (Future<Offer> future : futures) {
+            if (future == null)
+                continue;
+            try {
+                Offer offer = future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                if (offer != null && offer.isBetterThan(best))
+                    best = offer;
+            } catch (TimeoutException e) {
+                lateOffers.increment();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("An offer failed", e.getCause());
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Wait for the late tasks still evaluating an offer, so that the
+     * companies can be modified.
+     */
+    public void awaitLateOffers() {
+        for (int i = 0; i < running.size(); i++) {
+            Future<Offer> future = running.get(i);
+            if (future == null)
+                continue;
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("An offer failed", e.getCause());
+            } finally {
+                if (future.isDone())
+                    running.set(i, null);
+            }
+        }
+    }
+
+    /**
+     * Stop the threads evaluating the offers.
+     */
+    @Override
+    public void close() {
+        if (executor != null) {
+            awaitLateOffers();
+            executor.shutdownNow();
+        }
+    }
+}
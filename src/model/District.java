@@ -0,0 +1,94 @@
+package model;
+
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+/**
+ * A district of the city: a rectangle of cells whose trips are generated by
+ * its own part of the DemandModel, with its own random generator, in its own
+ * TripBuffer. The PassengerSource generates the trips of all its districts at
+ * the same time on a pool of threads, then takes them district by district:
+ * the trips of a step depend on the seed only, not on the threads.
+ *
+ * @author Bohao LI
+ * @version 2017.03.23
+ */
+final class District implements Callable<Void> {
+
+    private final int index;
+    private final int x0;
+    private final int y0;
+    private final int x1;
+    private final int y1;
+    private final DemandModel demandModel;
+    private final Random rand;
+    private final TripBuffer trips;
+    // The step whose trips are generated.
+    private int time;
+
+    /**
+     * @param index
+     *            The index of the district, row by row.
+     * @param x0
+     *            The first column of the district.
+     * @param y0
+     *            The first row of the district.
+     * @param x1
+     *            The column after the district.
+     * @param y1
+     *            The row after the district.
+     * @param demandModel
+     *            The demand of the district.
+     * @param seed
+     *            The seed of the PassengerSource.
+     */
+    District(int index, int x0, int y0, int x1, int y1, DemandModel demandModel, long seed) {
+        this.index = index;
+        this.x0 = x0;
+        this.y0 = y0;
+        this.x1 = x1;
+        this.y1 = y1;
+        this.demandModel = demandModel;
+        rand = new Random();
+        trips = new TripBuffer();
+        setSeed(seed);
+    }
+
+    /**
+     * Derive the seed of the district from the seed of the PassengerSource,
+     * every district drawing its own sequence of numbers.
+     */
+    void setSeed(long seed) {
+        rand.setSeed(seed + (index + 1) * 0x9E3779B97F4A7C15L);
+    }
+
+    /**
+     * @param time
+     *            The step whose trips are generated by call().
+     */
+    void setTime(int time) {
+        this.time = time;
+    }
+
+    /**
+     * Generate the trips of the step.
+     */
+    @Override
+    public Void call() {
+        trips.clear();
+        demandModel.generate(time, rand, trips);
+        return null;
+    }
+
+    /**
+     * @return The trips generated during the step.
+     */
+    TripBuffer getTrips() {
+        return trips;
+    }
+
+    @Override
+    public String toString() {
+        return "District " + index + " (" + x0 + ", " + y0 + ") to (" + x1 + ", " + y1 + ")";
+    }
+}
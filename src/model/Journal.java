@@ -0,0 +1,423 @@
+package model;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * An append-only binary journal of everything that changes the state of a
+ * City: the vehicles entering service, moving, taking and dropping persons;
+ * the passengers appearing on the map and leaving it; the outcome of the
+ * requests, the missed pickups and the dials. A JournalReplay rebuilds the
+ * state of the City at any step from it.
+ *
+ * The file starts with a header (the MAGIC number, the VERSION, the width and
+ * the height of the City, the keyframe period), followed by records. A record
+ * is a tag byte followed by its fields, every integer being written as a
+ * variable-length quantity (7 bits per byte, the lowest first) and every
+ * string as its length followed by its UTF-8 bytes:
+ *
+ * KEYFRAME time, missed pickups, requests, deferred requests, dials, the
+ * vehicles (slot, kind, ID, x, y, persons aboard) and the waiting passengers
+ * (id, x, y, choice, persons, waiting time), each list preceded by its size;
+ * TICK time; VEHICLE_IN slot, kind, ID, x, y; VEHICLE_OUT slot; MOVE slot, x,
+ * y; APPEAR id, x, y, choice, persons, waiting time; LEAVE id; BOARD slot,
+ * persons; ALIGHT slot, persons; REQUEST outcome, persons; MISSED persons; DIAL
+ * slot + 1 (0 for a wrong number), outcome.
+ *
+ * A keyframe, the whole state of the City, is written when the journal is
+ * opened and then every keyframePeriod steps, so that a step is rebuilt from
+ * the nearest keyframe before it and at most keyframePeriod steps of records.
+ * The journal ends with the index of the keyframes (INDEX, the last step, the
+ * number of keyframes, then the time and the position (long) of every
+ * keyframe), and a trailer: the position of the index (long) and the MAGIC
+ * number (int).
+ *
+ * The records are encoded in a buffer, written to the file when it is full,
+ * when a replay needs them (see flush()) and when the journal is closed.
+ * Everything is synchronized, a user may dial from the Swing thread.
+ *
+ * @author Bohao LI
+ * @version 2017.03.23
+ */
+public class Journal implements Closeable {
+
+    public static final int MAGIC = 0x4A524E4C; // "JRNL"
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 20;
+    public static final int TRAILER_SIZE = 12;
+
+    // Tags of the records.
+    public static final byte KEYFRAME = 1;
+    public static final byte TICK = 2;
+    public static final byte VEHICLE_IN = 3;
+    public static final byte VEHICLE_OUT = 4;
+    public static final byte MOVE = 5;
+    public static final byte APPEAR = 6;
+    public static final byte LEAVE = 7;
+    public static final byte BOARD = 8;
+    public static final byte ALIGHT = 9;
+    public static final byte REQUEST = 10;
+    public static final byte MISSED = 11;
+    public static final byte DIAL = 12;
+    public static final byte INDEX = 13;
+
+    // Kinds of vehicles.
+    public static final int TAXI = 1;
+    public static final int SHUTTLE = 2;
+
+    // Outcomes of the requests.
+    public static final int SERVED = 0;
+    public static final int DEFERRED = 1;
+
+    // Outcomes of the dials.
+    public static final int DIAL_SUCCESS = 0;
+    public static final int DIAL_BUSY = 1;
+    public static final int DIAL_WRONG_NUMBER = 2;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    // The longest record but a keyframe: a VEHICLE_IN with its ID.
+    private static final int MAX_RECORD_SIZE = 1024;
+
+    private final Path path;
+    private final City city;
+    private final FileChannel channel;
+    private final int keyframePeriod;
+
+    private final ByteBuffer buffer;
+    // Position in the file of the first byte of the buffer.
+    private long flushed;
+
+    // The time and the position of the keyframes written so far.
+    private int[] keyframeTimes;
+    private long[] keyframePositions;
+    private int nbKeyframes;
+
+    private int time;
+    private int nextPassengerId;
+    // Counters kept in the keyframes.
+    private int missedPickups;
+    private int requests;
+    private int deferred;
+    private int dials;
+    private boolean closed;
+
+    /**
+     * Create a journal, an existing file is overwritten.
+     *
+     * @param path
+     *            The journal file.
+     * @param city
+     *            The City to journal, the journal is attached to it.
+     * @param keyframePeriod
+     *            The number of steps between two keyframes.
+     * @throws IOException
+     *             If the file cannot be written.
+     */
+    public Journal(Path path, City city, int keyframePeriod) throws IOException {
+        if (city == null)
+            throw new NullPointerException("city");
+        if (keyframePeriod < 1)
+            throw new IllegalArgumentException("Keyframe period must be positive: " + keyframePeriod);
+        this.path = path;
+        this.city = city;
+        this.keyframePeriod = keyframePeriod;
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        flushed = 0;
+        keyframeTimes = new int[16];
+        keyframePositions = new long[16];
+        nbKeyframes = 0;
+        nextPassengerId = 0;
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(city.getWidth());
+        buffer.putInt(city.getHeight());
+        buffer.putInt(keyframePeriod);
+        time = city.getTime();
+        for (Item item : city.getItems())
+            if (item instanceof Passenger)
+                ((Passenger) item).setJournalId(nextPassengerId++);
+        keyframe(city);
+        city.setJournal(this);
+    }
+
+    /**
+     * The City has advanced by one step, a keyframe is written every
+     * keyframePeriod steps.
+     */
+    synchronized void tick(City city) {
+        time = city.getTime();
+        record(TICK);
+        putInt(time);
+        if (time % keyframePeriod == 0)
+            keyframe(city);
+    }
+
+    /**
+     * An item has been added to the City: a vehicle entering service, or a
+     * passenger put on the map.
+     */
+    synchronized void itemAdded(Item item) {
+        if (item instanceof Vehicle) {
+            Vehicle vehicle = (Vehicle) item;
+            record(VEHICLE_IN);
+            putInt(vehicle.getSlot());
+            putInt(vehicle instanceof Shuttle ? SHUTTLE : TAXI);
+            putString(vehicle.getID());
+            putInt(vehicle.getLocation().getX());
+            putInt(vehicle.getLocation().getY());
+        } else if (item instanceof Passenger) {
+            Passenger passenger = (Passenger) item;
+            passenger.setJournalId(nextPassengerId++);
+            record(APPEAR);
+            putInt(passenger.getJournalId());
+            putInt(passenger.getPickupX());
+            putInt(passenger.getPickupY());
+            putInt(passenger.getChoice().ordinal());
+            putInt(passenger.getNb_persons());
+            putInt(passenger.getWaitingTime());
+        }
+    }
+
+    /**
+     * An item has been removed from the City: a retired vehicle, or a passenger
+     * picked up or giving up on the map.
+     */
+    synchronized void itemRemoved(Item item) {
+        if (item instanceof Vehicle) {
+            record(VEHICLE_OUT);
+            putInt(((Vehicle) item).getSlot());
+        } else if (item instanceof Passenger) {
+            record(LEAVE);
+            putInt(((Passenger) item).getJournalId());
+        }
+    }
+
+    /**
+     * A vehicle in the City has moved.
+     */
+    synchronized void vehicleMoved(Vehicle vehicle, Location location) {
+        record(MOVE);
+        putInt(vehicle.getSlot());
+        putInt(location.getX());
+        putInt(location.getY());
+    }
+
+    /**
+     * Persons have got on a vehicle.
+     */
+    synchronized void boarded(Vehicle vehicle, Passenger passenger) {
+        record(BOARD);
+        putInt(vehicle.getSlot());
+        putInt(passenger.getNb_persons());
+    }
+
+    /**
+     * Persons have got off a vehicle, at their destination or giving up.
+     */
+    synchronized void alighted(Vehicle vehicle, Passenger passenger) {
+        record(ALIGHT);
+        putInt(vehicle.getSlot());
+        putInt(passenger.getNb_persons());
+    }
+
+    /**
+     * The request of a new passenger has been served (SERVED) or put in the
+     * backlog of a company (DEFERRED).
+     */
+    synchronized void requested(Passenger passenger, int outcome) {
+        requests++;
+        if (outcome == DEFERRED)
+            deferred++;
+        record(REQUEST);
+        putInt(outcome);
+        putInt(passenger.getNb_persons());
+    }
+
+    /**
+     * Persons gave up before any vehicle could be assigned to them.
+     */
+    synchronized void missed(int nbPersons) {
+        missedPickups += nbPersons;
+        record(MISSED);
+        putInt(nbPersons);
+    }
+
+    /**
+     * A user has dialed a vehicle, null for a wrong number.
+     */
+    synchronized void dialed(Vehicle vehicle, int outcome) {
+        dials++;
+        record(DIAL);
+        putInt(vehicle == null ? 0 : vehicle.getSlot() + 1);
+        putInt(outcome);
+    }
+
+    /**
+     * Write the whole state of the City, and index it.
+     */
+    private void keyframe(City city) {
+        if (nbKeyframes == keyframeTimes.length) {
+            keyframeTimes = Arrays.copyOf(keyframeTimes, 2 * nbKeyframes);
+            keyframePositions = Arrays.copyOf(keyframePositions, 2 * nbKeyframes);
+        }
+        record(KEYFRAME);
+        keyframeTimes[nbKeyframes] = time;
+        keyframePositions[nbKeyframes] = flushed + buffer.position() - 1;
+        nbKeyframes++;
+        putInt(time);
+        putInt(missedPickups);
+        putInt(requests);
+        putInt(deferred);
+        putInt(dials);
+        putInt(city.getNbTaxis() + city.getNbShuttles());
+        int nbPassengers = 0;
+        for (Item item : city.getItems())
+            if (item instanceof Vehicle) {
+                Vehicle vehicle = (Vehicle) item;
+                ensure(MAX_RECORD_SIZE);
+                putInt(vehicle.getSlot());
+                putInt(vehicle instanceof Shuttle ? SHUTTLE : TAXI);
+                putString(vehicle.getID());
+                putInt(vehicle.getLocation().getX());
+                putInt(vehicle.getLocation().getY());
+                putInt(vehicle.getNbAboard());
+            } else if (item instanceof Passenger)
+                nbPassengers++;
+        putInt(nbPassengers);
+        for (Item item : city.getItems())
+            if (item instanceof Passenger) {
+                Passenger passenger = (Passenger) item;
+                ensure(MAX_RECORD_SIZE);
+                putInt(passenger.getJournalId());
+                putInt(passenger.getPickupX());
+                putInt(passenger.getPickupY());
+                putInt(passenger.getChoice().ordinal());
+                putInt(passenger.getNb_persons());
+                putInt(passenger.getWaitingTime());
+            }
+    }
+
+    /**
+     * Start a record, making room for it in the buffer.
+     */
+    private void record(byte tag) {
+        if (closed)
+            throw new IllegalStateException("Journal " + path + " is closed");
+        ensure(MAX_RECORD_SIZE);
+        buffer.put(tag);
+    }
+
+    /**
+     * Write the buffer to the file if less than the given number of bytes is
+     * left in it.
+     */
+    private void ensure(int nbBytes) {
+        if (buffer.remaining() < nbBytes)
+            writeBuffer();
+    }
+
+    private void putInt(int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private void putString(String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_RECORD_SIZE / 2)
+            throw new IllegalArgumentException("String too long for the journal: " + s);
+        putInt(bytes.length);
+        buffer.put(bytes);
+    }
+
+    private void writeBuffer() {
+        try {
+            buffer.flip();
+            while (buffer.hasRemaining())
+                flushed += channel.write(buffer);
+            buffer.clear();
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot write the journal " + path, e);
+        }
+    }
+
+    /**
+     * Write the records still in the buffer to the file, so that a replay can
+     * read them.
+     */
+    public synchronized void flush() {
+        if (!closed)
+            writeBuffer();
+    }
+
+    /**
+     * @return The journal file.
+     */
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * @return The number of steps between two keyframes.
+     */
+    public int getKeyframePeriod() {
+        return keyframePeriod;
+    }
+
+    /**
+     * @return The last step journaled.
+     */
+    public synchronized int getTime() {
+        return time;
+    }
+
+    /**
+     * @return The time of the keyframes written so far.
+     */
+    public synchronized int[] getKeyframeTimes() {
+        return Arrays.copyOf(keyframeTimes, nbKeyframes);
+    }
+
+    /**
+     * @return The position in the file of the keyframes written so far.
+     */
+    public synchronized long[] getKeyframePositions() {
+        return Arrays.copyOf(keyframePositions, nbKeyframes);
+    }
+
+    /**
+     * Write the index of the keyframes and the trailer, and close the file.
+     * The City stops being journaled.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed)
+            return;
+        long indexPosition = flushed + buffer.position();
+        record(INDEX);
+        putInt(time);
+        putInt(nbKeyframes);
+        for (int i = 0; i < nbKeyframes; i++) {
+            ensure(MAX_RECORD_SIZE);
+            putInt(keyframeTimes[i]);
+            buffer.putLong(keyframePositions[i]);
+        }
+        ensure(TRAILER_SIZE);
+        buffer.putLong(indexPosition);
+        buffer.putInt(MAGIC);
+        writeBuffer();
+        closed = true;
+        city.setJournal(null);
+        channel.close();
+    }
+}
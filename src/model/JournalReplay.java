@@ -0,0 +1,394 @@
+package model;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Rebuild the state of a City at any step from a Journal (see Journal for the
+ * format): the nearest keyframe before the step is read, then the records up
+ * to the step are applied to it. Seeking reads at most one keyframe and
+ * keyframePeriod steps of records, whatever the length of the run.
+ *
+ * A replay is opened either on a closed journal file, whose keyframes are
+ * found in the index at its end (or by scanning the file if the simulation
+ * did not close it), or on the Journal of a running simulation, in which case
+ * the records are flushed and the new keyframes are picked up at every seek.
+ *
+ * @author Bohao LI
+ * @version 2017.03.23
+ */
+public class JournalReplay implements Closeable {
+
+    /**
+     * Count the bytes read from a stream.
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+        private long count;
+
+        private CountingInputStream(InputStream in, long count) {
+            super(in);
+            this.count = count;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0)
+                count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0)
+                count += n;
+            return n;
+        }
+    }
+
+    private final Path path;
+    private final FileChannel channel;
+    private final int width;
+    private final int height;
+    private final int keyframePeriod;
+    // The journal of a running simulation, null if the file is closed.
+    private final Journal journal;
+
+    private int[] keyframeTimes;
+    private long[] keyframePositions;
+    private int lastTime;
+
+    /**
+     * Replay the Journal of a running simulation.
+     *
+     * @param journal
+     *            The Journal.
+     * @throws IOException
+     *             If the journal file cannot be read.
+     */
+    public JournalReplay(Journal journal) throws IOException {
+        this(journal.getPath(), journal);
+    }
+
+    /**
+     * Replay a journal file.
+     *
+     * @param path
+     *            The journal file.
+     * @throws IOException
+     *             If the file cannot be read or is not a journal.
+     */
+    public JournalReplay(Path path) throws IOException {
+        this(path, null);
+    }
+
+    private JournalReplay(Path path, Journal journal) throws IOException {
+        this.path = path;
+        this.journal = journal;
+        if (journal != null)
+            journal.flush();
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            ByteBuffer header = read(0, Journal.HEADER_SIZE);
+            if (header.getInt() != Journal.MAGIC || header.getInt() != Journal.VERSION)
+                throw new IOException(path + " is not a journal");
+            width = header.getInt();
+            height = header.getInt();
+            keyframePeriod = header.getInt();
+            if (journal != null)
+                refresh();
+            else if (!readIndex())
+                scan();
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Rebuild the state of the City at the given step.
+     *
+     * @param time
+     *            The step, between getFirstTime() and getLastTime().
+     * @return The state of the City after the given step.
+     * @throws IllegalArgumentException
+     *             If the step is not in the journal.
+     */
+    public synchronized CitySnapshot seek(int time) {
+        CitySnapshot[] snapshot = new CitySnapshot[1];
+        replay(time, time, s -> snapshot[0] = s);
+        return snapshot[0];
+    }
+
+    /**
+     * Rebuild the state of the City at every step of a range, reading the
+     * journal once. The same snapshot is updated from one step to the next:
+     * what is kept of it must be copied (see CitySnapshot.getItems()).
+     *
+     * @param from
+     *            The first step, not before getFirstTime().
+     * @param to
+     *            The last step, not after getLastTime().
+     * @param consumer
+     *            Called with the state of the City after every step.
+     * @throws IllegalArgumentException
+     *             If the range is not in the journal.
+     */
+    public synchronized void replay(int from, int to, Consumer<CitySnapshot> consumer) {
+        if (journal != null)
+            refresh();
+        if (from < getFirstTime() || to > lastTime || from > to)
+            throw new IllegalArgumentException(
+                    "Steps " + from + " to " + to + " not in the journal (" + getFirstTime() + " to " + lastTime + ")");
+        int i = Arrays.binarySearch(keyframeTimes, from);
+        // The last keyframe before the step if there is none at the step.
+        if (i < 0)
+            i = -i - 2;
+        try {
+            DataInputStream in = open(keyframePositions[i]);
+            if (in.readByte() != Journal.KEYFRAME)
+                throw new IllegalStateException("No keyframe at " + keyframePositions[i] + " in " + path);
+            CitySnapshot snapshot = readKeyframe(in);
+            for (int time = from; time <= to; time++) {
+                while (snapshot.getTime() < time)
+                    apply(in.readByte(), in, snapshot);
+                consumer.accept(snapshot);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot read the journal " + path, e);
+        }
+    }
+
+    /**
+     * @return The first step that can be rebuilt.
+     */
+    public synchronized int getFirstTime() {
+        return keyframeTimes[0];
+    }
+
+    /**
+     * @return The last step that can be rebuilt.
+     */
+    public synchronized int getLastTime() {
+        if (journal != null)
+            refresh();
+        return lastTime;
+    }
+
+    /**
+     * @return The number of keyframes in the journal.
+     */
+    public synchronized int getNbKeyframes() {
+        return keyframeTimes.length;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getKeyframePeriod() {
+        return keyframePeriod;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Pick up the keyframes and the steps written by the running simulation.
+     */
+    private void refresh() {
+        journal.flush();
+        // Read the time first: the keyframes can only be more recent.
+        lastTime = journal.getTime();
+        keyframeTimes = journal.getKeyframeTimes();
+        keyframePositions = journal.getKeyframePositions();
+    }
+
+    /**
+     * Read the index at the end of a closed journal.
+     *
+     * @return False if the journal has not been closed.
+     */
+    private boolean readIndex() throws IOException {
+        long size = channel.size();
+        if (size < Journal.HEADER_SIZE + Journal.TRAILER_SIZE)
+            return false;
+        ByteBuffer trailer = read(size - Journal.TRAILER_SIZE, Journal.TRAILER_SIZE);
+        long indexPosition = trailer.getLong();
+        if (trailer.getInt() != Journal.MAGIC || indexPosition < Journal.HEADER_SIZE || indexPosition >= size)
+            return false;
+        DataInputStream in = open(indexPosition);
+        if (in.readByte() != Journal.INDEX)
+            return false;
+        lastTime = getInt(in);
+        int nbKeyframes = getInt(in);
+        keyframeTimes = new int[nbKeyframes];
+        keyframePositions = new long[nbKeyframes];
+        for (int i = 0; i < nbKeyframes; i++) {
+            keyframeTimes[i] = getInt(in);
+            keyframePositions[i] = in.readLong();
+        }
+        return nbKeyframes > 0;
+    }
+
+    /**
+     * Find the keyframes of a journal that has not been closed by reading it
+     * through, up to the last complete step.
+     */
+    private void scan() throws IOException {
+        System.out.println("No index in " + path + ", scanning the journal");
+        keyframeTimes = new int[16];
+        keyframePositions = new long[16];
+        int nbKeyframes = 0;
+        CountingInputStream counter = new CountingInputStream(
+                new BufferedInputStream(Channels.newInputStream(channel.position(Journal.HEADER_SIZE)), 1 << 16),
+                Journal.HEADER_SIZE);
+        DataInputStream in = new DataInputStream(counter);
+        CitySnapshot snapshot = null;
+        try {
+            while (true) {
+                long position = counter.count;
+                byte tag = in.readByte();
+                if (tag == Journal.KEYFRAME) {
+                    if (nbKeyframes == keyframeTimes.length) {
+                        keyframeTimes = Arrays.copyOf(keyframeTimes, 2 * nbKeyframes);
+                        keyframePositions = Arrays.copyOf(keyframePositions, 2 * nbKeyframes);
+                    }
+                    keyframePositions[nbKeyframes] = position;
+                    snapshot = readKeyframe(in);
+                    keyframeTimes[nbKeyframes++] = snapshot.getTime();
+                } else if (snapshot == null)
+                    throw new IOException(path + " does not start with a keyframe");
+                else
+                    apply(tag, in, snapshot);
+                lastTime = snapshot.getTime();
+            }
+        } catch (EOFException e) {
+            // The last record may be incomplete, the steps before are not.
+        }
+        if (nbKeyframes == 0)
+            throw new IOException(path + " has no keyframe");
+        keyframeTimes = Arrays.copyOf(keyframeTimes, nbKeyframes);
+        keyframePositions = Arrays.copyOf(keyframePositions, nbKeyframes);
+    }
+
+    /**
+     * Read a keyframe, its tag already read.
+     */
+    private CitySnapshot readKeyframe(DataInputStream in) throws IOException {
+        CitySnapshot snapshot = new CitySnapshot(width, height, getInt(in));
+        snapshot.setCounters(getInt(in), getInt(in), getInt(in), getInt(in));
+        for (int n = getInt(in); n > 0; n--)
+            snapshot.addVehicle(getInt(in), getInt(in), getString(in), getInt(in), getInt(in), getInt(in));
+        for (int n = getInt(in); n > 0; n--)
+            snapshot.addWaiting(getInt(in), getInt(in), getInt(in), getChoice(in), getInt(in), getInt(in));
+        return snapshot;
+    }
+
+    /**
+     * Apply a record to a snapshot, its tag already read.
+     */
+    private void apply(byte tag, DataInputStream in, CitySnapshot snapshot) throws IOException {
+        switch (tag) {
+        case Journal.TICK:
+            snapshot.setTime(getInt(in));
+            break;
+        case Journal.KEYFRAME:
+            // The state is already known, the keyframe is only skipped.
+            readKeyframe(in);
+            break;
+        case Journal.VEHICLE_IN:
+            snapshot.addVehicle(getInt(in), getInt(in), getString(in), getInt(in), getInt(in), 0);
+            break;
+        case Journal.VEHICLE_OUT:
+            snapshot.removeVehicle(getInt(in));
+            break;
+        case Journal.MOVE:
+            snapshot.moveVehicle(getInt(in), getInt(in), getInt(in));
+            break;
+        case Journal.APPEAR:
+            snapshot.addWaiting(getInt(in), getInt(in), getInt(in), getChoice(in), getInt(in), getInt(in));
+            break;
+        case Journal.LEAVE:
+            snapshot.removeWaiting(getInt(in));
+            break;
+        case Journal.BOARD:
+            snapshot.board(getInt(in), getInt(in));
+            break;
+        case Journal.ALIGHT:
+            snapshot.board(getInt(in), -getInt(in));
+            break;
+        case Journal.REQUEST:
+            snapshot.countRequest(getInt(in) == Journal.DEFERRED);
+            getInt(in);
+            break;
+        case Journal.MISSED:
+            snapshot.countMissed(getInt(in));
+            break;
+        case Journal.DIAL:
+            getInt(in);
+            getInt(in);
+            snapshot.countDial();
+            break;
+        default:
+            throw new IOException("Unknown record " + tag + " in " + path);
+        }
+    }
+
+    /**
+     * @return A stream reading the journal from the given position.
+     */
+    private DataInputStream open(long position) throws IOException {
+        return new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(position)),
+                1 << 16));
+    }
+
+    private ByteBuffer read(long position, int size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        while (buffer.hasRemaining())
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new EOFException(path + " is truncated");
+        buffer.flip();
+        return buffer;
+    }
+
+    private static int getInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0;; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+    }
+
+    private static String getString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[getInt(in)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static Passenger.Choice getChoice(DataInputStream in) throws IOException {
+        return Passenger.Choice.values()[getInt(in)];
+    }
+}
@@ -0,0 +1,134 @@
+package model;
+
+/**
+ * A histogram of durations (in steps) with logarithmic buckets, in the manner
+ * of an HDR histogram: the values below SUB_BUCKETS are counted exactly, above
+ * that every power of two is divided in SUB_BUCKETS / 2 buckets, so the
+ * relative error of a percentile is at most 2 / SUB_BUCKETS whatever the
+ * magnitude of the values.
+ *
+ * The buckets are allocated once, recording a value is a few arithmetic
+ * operations and never allocates.
+ *
+ * @author Bohao LI
+ * @version 2017.03.23
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int HALF = SUB_BUCKETS / 2;
+    private static final int NB_BUCKETS = SUB_BUCKETS + (31 - SUB_BITS) * HALF;
+
+    private final long[] counts;
+    private long count;
+    private long sum;
+    private int max;
+
+    /**
+     * Create an empty histogram.
+     */
+    public LatencyHistogram() {
+        counts = new long[NB_BUCKETS];
+    }
+
+    /**
+     * Record a duration.
+     *
+     * @param value
+     *            The duration, a negative duration counts as 0.
+     */
+    public void record(int value) {
+        if (value < 0)
+            value = 0;
+        counts[bucket(value)]++;
+        count++;
+        sum += value;
+        if (value > max)
+            max = value;
+    }
+
+    /**
+     * Add all the values of another histogram to the current one.
+     *
+     * @param other
+     *            The histogram to add.
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < NB_BUCKETS; i++)
+            counts[i] += other.counts[i];
+        count += other.count;
+        sum += other.sum;
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * @return The number of values recorded.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return The mean of the values, 0 if there is none.
+     */
+    public double getMean() {
+        return count == 0 ? 0 : sum / (double) count;
+    }
+
+    /**
+     * @return The highest value recorded.
+     */
+    public int getMax() {
+        return max;
+    }
+
+    /**
+     * @param percentile
+     *            A percentile between 0 and 100.
+     * @return The highest value of the bucket holding the given percentile, 0
+     *         if there is no value.
+     */
+    public int getPercentile(double percentile) {
+        if (count == 0)
+            return 0;
+        long rank = (long) Math.ceil(percentile / 100 * count);
+        if (rank < 1)
+            rank = 1;
+        long seen = 0;
+        for (int i = 0; i < NB_BUCKETS; i++)
+            if ((seen += counts[i]) >= rank)
+                return Math.min(highestValue(i), max);
+        return max;
+    }
+
+    /**
+     * @return A summary of the histogram.
+     */
+    @Override
+    public String toString() {
+        return String.format("n=%d mean=%.1f p50=%d p90=%d p99=%d max=%d", count, getMean(), getPercentile(50),
+                getPercentile(90), getPercentile(99), max);
+    }
+
+    /**
+     * @return The index of the bucket of the given value.
+     */
+    private static int bucket(int value) {
+        if (value < SUB_BUCKETS)
+            return value;
+        int shift = 31 - Integer.numberOfLeadingZeros(value) - (SUB_BITS - 1);
+        return SUB_BUCKETS + (shift - 1) * HALF + (value >> shift) - HALF;
+    }
+
+    /**
+     * @return The highest value falling in the given bucket.
+     */
+    private static int highestValue(int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+        int shift = (bucket - SUB_BUCKETS) / HALF + 1;
+        long lowest = (long) ((bucket - SUB_BUCKETS) % HALF + HALF) << shift;
+        return (int) Math.min(Integer.MAX_VALUE, lowest + (1L << shift) - 1);
+    }
+}
@@ -0,0 +1,27 @@
+package model;
+
+/**
+ * Deliver the calls an actor makes to another part of the simulation (a
+ * Vehicle arriving somewhere to its TaxiCompany, the PassengerSource passing a
+ * request to a TaxiCompany) as messages, for a runtime where every actor
+ * handles its messages on its own thread. Without a Messenger in the City, the
+ * calls are made directly.
+ *
+ * @author Bohao LI
+ * @version 2017.03.23
+ */
+public interface Messenger {
+    /**
+     * Send a message.
+     *
+     * @param target
+     *            The object receiving the message, the message being handled
+     *            by the thread of its actor.
+     * @param message
+     *            The call to make.
+     * @param delay
+     *            The number of steps before the message is delivered, 0 to
+     *            deliver it during the current step.
+     */
+    public void send(Object target, Runnable message, int delay);
+}
@@ -0,0 +1,72 @@
+package model;
+
+/**
+ * The best vehicle a TaxiCompany can send to a passenger, offered on the
+ * DispatchMarket. An offer does not reserve the vehicle: it is only assigned
+ * when the company is chosen.
+ *
+ * @author Bohao LI
+ * @version 2017.03.23
+ */
+public class Offer {
+
+    private final TaxiCompany company;
+    private final Vehicle vehicle;
+    private final int eta;
+    private final double restCapacity;
+    private final int nbCandidates;
+
+    /**
+     * @param company
+     *            The company making the offer.
+     * @param vehicle
+     *            The vehicle it would send.
+     * @param eta
+     *            The number of steps for the vehicle to reach the passenger.
+     * @param restCapacity
+     *            The share of the capacity of the vehicle still available.
+     * @param nbCandidates
+     *            The number of vehicles of the company able to take the
+     *            passenger.
+     */
+    public Offer(TaxiCompany company, Vehicle vehicle, int eta, double restCapacity, int nbCandidates) {
+        this.company = company;
+        this.vehicle = vehicle;
+        this.eta = eta;
+        this.restCapacity = restCapacity;
+        this.nbCandidates = nbCandidates;
+    }
+
+    public TaxiCompany getCompany() {
+        return company;
+    }
+
+    public Vehicle getVehicle() {
+        return vehicle;
+    }
+
+    public int getEta() {
+        return eta;
+    }
+
+    public double getRestCapacity() {
+        return restCapacity;
+    }
+
+    public int getNbCandidates() {
+        return nbCandidates;
+    }
+
+    /**
+     * @return True if the current offer is better than the other one: the
+     *         vehicle arrives sooner, or at the same time with more room left.
+     */
+    public boolean isBetterThan(Offer other) {
+        return other == null || eta < other.eta || (eta == other.eta && restCapacity > other.restCapacity);
+    }
+
+    @Override
+    public String toString() {
+        return company.getName() + " offers " + vehicle.getID() + " (eta " + eta + ")";
+    }
+}
@@ -1,7 +1,6 @@
 package model;
 
 import java.awt.Image;
-import javax.swing.ImageIcon;
 
 /**
  * A Passenger always has a pickup location and a destination, these two
@@ -35,6 +34,11 @@ import javax.swing.ImageIcon;
  * (for more details, see the implementation of PassengerSource class and
  * Shuttle class.)
  * 
+ * A Passenger is kept compact because they are created at a high rate: the
+ * coordinates are primitives, the images are the shared Sprites, and the
+ * Passengers generated by the PassengerSource are recycled by a PassengerPool
+ * once their trip is over.
+ * 
  * @author David J. Barnes and Michael Kolling. Modified Bohao LI.
  * @version 2017.03.23
  */
@@ -44,17 +48,35 @@ public class Passenger implements DrawableItem {
     // Image becomes yellow on the map is this limit is achieved.
     public static final int ANGRY_LIMIT = 30;
 
-    private Location pickup;
-    private Location destination;
+    // States of the lifecycle of a passenger.
+    public static final byte NEW = 0;
+    public static final byte REQUESTED = 1;
+    public static final byte ASSIGNED = 2;
+    public static final byte PICKED_UP = 3;
+    public static final byte DROPPED_OFF = 4;
+    public static final byte ABANDONED = 5;
+    // In a PassengerPool, waiting to be reused.
+    public static final byte RECYCLED = 6;
 
-    // When Passenger chooses to take a Taxi, his Image is black on the map.
-    private final Image choose_taxi;
-    // When Passenger chooses to take a Shuttle, his Image is red on the map.
-    private final Image choose_shuttle;
-    // When Passenger gets angry, his Image is red on the map.
-    private final Image angry_person;
+    private int pickupX;
+    private int pickupY;
+    private int destinationX;
+    private int destinationY;
+    private int nbPersons;
+    private byte state;
 
     private int waiting_time;
+    // Identifies the passenger in the Journal of the City, if any.
+    private int journalId;
+
+    // Time (of the City) of every step of the lifecycle of the passenger,
+    // NO_TIME if the step has not happened.
+    public static final int NO_TIME = -1;
+    private int requestTime;
+    private int assignmentTime;
+    private int pickupTime;
+    private int dropOffTime;
+    private int abandonmentTime;
 
     // Passengers can choos to take a Taxi or a Shuttle.
     public enum Choice {
@@ -92,13 +114,34 @@ public class Passenger implements DrawableItem {
             throw new NullPointerException("Pickup location");
         if (destination == null)
             throw new NullPointerException("Destination location");
+        reset(pickup.getX(), pickup.getY(), destination.getX(), destination.getY(), choice, 1);
+    }
+
+    /**
+     * Create a passenger from the coordinates of his trip, used by the
+     * PassengerPool.
+     */
+    Passenger(int pickupX, int pickupY, int destinationX, int destinationY, Choice choice, int nbPersons) {
+        reset(pickupX, pickupY, destinationX, destinationY, choice, nbPersons);
+    }
 
-        this.pickup = pickup;
-        this.destination = destination;
-        choose_taxi = new ImageIcon(getClass().getResource("/images/person.jpg")).getImage();
-        choose_shuttle = new ImageIcon(getClass().getResource("/images/red_person.jpg")).getImage();
-        angry_person = new ImageIcon(getClass().getResource("/images/angry_person.jpg")).getImage();
+    /**
+     * Start a new lifecycle for a trip, with all the timestamps cleared.
+     */
+    final void reset(int pickupX, int pickupY, int destinationX, int destinationY, Choice choice, int nbPersons) {
+        this.pickupX = pickupX;
+        this.pickupY = pickupY;
+        this.destinationX = destinationX;
+        this.destinationY = destinationY;
         this.choice = choice;
+        this.nbPersons = nbPersons;
+        state = NEW;
+        waiting_time = 0;
+        requestTime = NO_TIME;
+        assignmentTime = NO_TIME;
+        pickupTime = NO_TIME;
+        dropOffTime = NO_TIME;
+        abandonmentTime = NO_TIME;
     }
 
     /**
@@ -109,12 +152,36 @@ public class Passenger implements DrawableItem {
     }
 
     /**
-     * @return The number of people associated with one passenger, here 1. in
-     *         subclass of Passenger --> PassengerSource, this number is bigger
-     *         than 1.
+     * @return The number of people associated with one passenger, 1 for a
+     *         single Passenger, more for a PassengerGroup.
+     */
+    public final int getNb_persons() {
+        return nbPersons;
+    }
+
+    /**
+     * @param nbPersons
+     *            The number of persons left, once the others have been split
+     *            off to another vehicle (see PassengerGroup.split()).
+     */
+    final void setNb_persons(int nbPersons) {
+        this.nbPersons = nbPersons;
+    }
+
+    /**
+     * @return The state of the lifecycle of the passenger (NEW, REQUESTED,
+     *         ASSIGNED, PICKED_UP, DROPPED_OFF, ABANDONED or RECYCLED).
+     */
+    public byte getState() {
+        return state;
+    }
+
+    /**
+     * @param state
+     *            The new state of the lifecycle of the passenger.
      */
-    public int getNb_persons() {
-        return 1;
+    void setState(byte state) {
+        this.state = state;
     }
 
     /**
@@ -122,7 +189,7 @@ public class Passenger implements DrawableItem {
      */
     @Override
     public String toString() {
-        return "Passenger travelling from " + pickup + " to " + destination;
+        return "Passenger travelling from " + getPickupLocation() + " to " + getDestination();
     }
 
     /**
@@ -130,8 +197,8 @@ public class Passenger implements DrawableItem {
      */
     public Image getImage() {
         if (isAngry())
-            return angry_person;
-        return choice == Choice.TAXI ? choose_taxi : choose_shuttle;
+            return Sprites.ANGRY_PERSON;
+        return choice == Choice.TAXI ? Sprites.PERSON : Sprites.RED_PERSON;
     }
 
     /**
@@ -147,21 +214,51 @@ public class Passenger implements DrawableItem {
      * @return The passenger's pickup location.
      */
     public Location getLocation() {
-        return pickup;
+        return getPickupLocation();
     }
 
     /**
-     * @return The pickup location.
+     * @return The pickup location, a new Location at each call.
      */
     public Location getPickupLocation() {
-        return pickup;
+        return new Location(pickupX, pickupY);
     }
 
     /**
-     * @return The destination location.
+     * @return The destination location, a new Location at each call.
      */
     public Location getDestination() {
-        return destination;
+        return new Location(destinationX, destinationY);
+    }
+
+    public int getPickupX() {
+        return pickupX;
+    }
+
+    public int getPickupY() {
+        return pickupY;
+    }
+
+    public int getDestinationX() {
+        return destinationX;
+    }
+
+    public int getDestinationY() {
+        return destinationY;
+    }
+
+    /**
+     * @return True if the passenger is waiting at the given Location.
+     */
+    public boolean isAt(Location location) {
+        return location.getX() == pickupX && location.getY() == pickupY;
+    }
+
+    /**
+     * @return True if the given Location is the destination of the passenger.
+     */
+    public boolean isGoingTo(Location location) {
+        return location.getX() == destinationX && location.getY() == destinationY;
     }
 
     /**
@@ -178,11 +275,100 @@ public class Passenger implements DrawableItem {
         waiting_time++;
     }
 
+    /**
+     * @return The number of steps the passenger has waited so far.
+     */
+    public int getWaitingTime() {
+        return waiting_time;
+    }
+
+    /**
+     * @param waiting_time
+     *            The number of steps the passenger has already waited.
+     */
+    void setWaitingTime(int waiting_time) {
+        this.waiting_time = waiting_time;
+    }
+
+    int getJournalId() {
+        return journalId;
+    }
+
+    void setJournalId(int journalId) {
+        this.journalId = journalId;
+    }
+
     /**
      * Reset the waiting time of the passenger to zero. This method is used when
-     * a passenger gets on a Shuttle(but not a Taxi).
+     * a passenger gets on a Shuttle(but not a Taxi). The time waited for the
+     * pickup is still known from the timestamps of the passenger.
      */
     public void resetWaitingTime() {
         waiting_time = 0;
     }
+
+    /**
+     * @param time
+     *            The time when the passenger asks for a pickup.
+     */
+    public void markRequested(int time) {
+        requestTime = time;
+        state = REQUESTED;
+    }
+
+    /**
+     * @param time
+     *            The time when a vehicle is assigned to the passenger.
+     */
+    public void markAssigned(int time) {
+        assignmentTime = time;
+        state = ASSIGNED;
+    }
+
+    /**
+     * @param time
+     *            The time when the passenger is picked up.
+     */
+    public void markPickedUp(int time) {
+        pickupTime = time;
+        state = PICKED_UP;
+    }
+
+    /**
+     * @param time
+     *            The time when the passenger arrives at his destination.
+     */
+    public void markDroppedOff(int time) {
+        dropOffTime = time;
+        state = DROPPED_OFF;
+    }
+
+    /**
+     * @param time
+     *            The time when the passenger gives up.
+     */
+    public void markAbandoned(int time) {
+        abandonmentTime = time;
+        state = ABANDONED;
+    }
+
+    public int getRequestTime() {
+        return requestTime;
+    }
+
+    public int getAssignmentTime() {
+        return assignmentTime;
+    }
+
+    public int getPickupTime() {
+        return pickupTime;
+    }
+
+    public int getDropOffTime() {
+        return dropOffTime;
+    }
+
+    public int getAbandonmentTime() {
+        return abandonmentTime;
+    }
 }
@@ -3,8 +3,6 @@ package model;
 import java.awt.Image;
 import java.util.Random;
 
-import javax.swing.ImageIcon;
-
 /**
  * A PassengerGroup is a group of passengers. The number of persons in the group
  * will be generated at creation time of the object of the class, it's a random
@@ -31,37 +29,70 @@ import javax.swing.ImageIcon;
  */
 public class PassengerGroup extends Passenger implements DrawableItem {
 
-    private static final int NB_MIN = 2;
-    private static final int NB_MAX = 10;
+    static final int NB_MIN = 2;
+    static final int NB_MAX = 10;
 
-    private final int nbPassengers;
+    public PassengerGroup(Location pickup, Location destination) {
+        this(pickup, destination, new Random(23456).nextInt(NB_MAX + 1 - NB_MIN) + NB_MIN);
+    }
 
-    private Location pickup;
-    private Location destination;
+    /**
+     * Create a group with a given number of persons, chosen by the DemandModel
+     * of the PassengerSource.
+     * 
+     * @param pickup
+     *            The pickup location of the group.
+     * @param destination
+     *            The destination of the group.
+     * @param nbPassengers
+     *            The number of persons in the group, at least 2.
+     */
+    public PassengerGroup(Location pickup, Location destination, int nbPassengers) {
+        super(pickup, destination, Choice.SHUTTLE);
+        if (nbPassengers < NB_MIN)
+            throw new IllegalArgumentException("A group of " + nbPassengers + " persons");
+        reset(pickup.getX(), pickup.getY(), destination.getX(), destination.getY(), Choice.SHUTTLE, nbPassengers);
+    }
 
-    private final Image group;
-    private final Image angry_group;
+    /**
+     * Create a group from the coordinates of its trip, used by the
+     * PassengerPool.
+     */
+    PassengerGroup(int pickupX, int pickupY, int destinationX, int destinationY, int nbPassengers) {
+        super(pickupX, pickupY, destinationX, destinationY, Choice.SHUTTLE, nbPassengers);
+    }
 
-    public PassengerGroup(Location pickup, Location destination) {
-        super(pickup, destination, Choice.SHUTTLE);
-        group = new ImageIcon(getClass().getResource("/images/persons.jpg")).getImage();
-        angry_group = new ImageIcon(getClass().getResource("/images/angry_persons.jpg")).getImage();
-        Random r = new Random(23456);
-        nbPassengers = r.nextInt(NB_MAX + 1 - NB_MIN) + NB_MIN;
+    /**
+     * Split persons off the group, to be carried by another Shuttle when no
+     * Shuttle can take the whole group (see TaxiCompany.setGroupSplitting()).
+     * The part makes the same trip and has been requested at the same time as
+     * the group, which keeps the other persons (possibly a single one).
+     * 
+     * @param nbPersons
+     *            The number of persons of the part.
+     * @param pool
+     *            The pool the part is acquired from.
+     * @return The part, a Passenger for a single person.
+     */
+    Passenger split(int nbPersons, PassengerPool pool) {
+        if (nbPersons < 1 || nbPersons >= getNb_persons())
+            throw new IllegalArgumentException("A part of " + nbPersons + " persons of " + this);
+        Passenger part = nbPersons == 1
+                ? pool.acquire(getPickupX(), getPickupY(), getDestinationX(), getDestinationY(), Choice.SHUTTLE)
+                : pool.acquireGroup(getPickupX(), getPickupY(), getDestinationX(), getDestinationY(), nbPersons);
+        part.markRequested(getRequestTime());
+        part.setWaitingTime(getWaitingTime());
+        setNb_persons(getNb_persons() - nbPersons);
+        return part;
     }
 
     @Override
     public String toString() {
-        return "Passenger group of " + nbPassengers + " from " + pickup + " to " + destination;
+        return "Passenger group of " + getNb_persons() + " from " + getPickupLocation() + " to " + getDestination();
     }
 
     @Override
     public Image getImage() {
-        return isAngry() ? angry_group : group;
-    }
-
-    @Override
-    public int getNb_persons() {
-        return nbPassengers;
+        return isAngry() ? Sprites.ANGRY_PERSONS : Sprites.PERSONS;
     }
 }
@@ -0,0 +1,102 @@
+package model;
+
+/**
+ * Recycle the Passengers and PassengerGroups whose trip is over (dropped off or
+ * abandoned) for the next trips, so that the continuous creation of
+ * passengers during a long run leaves little garbage behind.
+ *
+ * The single passengers and the groups are kept in two separate stacks of at
+ * most MAX_FREE objects each, an object released when its stack is full is
+ * left to the garbage collector. A pool is used by the simulation thread only.
+ *
+ * @author Bohao LI
+ * @version 2017.03.23
+ */
+public class PassengerPool {
+
+    private static final int MAX_FREE = 4096;
+
+    private final Passenger[] singles;
+    private int nbSingles;
+    private final PassengerGroup[] groups;
+    private int nbGroups;
+
+    private long nbCreated;
+    private long nbReused;
+
+    /**
+     * Create an empty pool.
+     */
+    public PassengerPool() {
+        singles = new Passenger[MAX_FREE];
+        groups = new PassengerGroup[MAX_FREE];
+    }
+
+    /**
+     * @return A Passenger making the given trip, recycled if possible.
+     */
+    public Passenger acquire(int pickupX, int pickupY, int destinationX, int destinationY, Passenger.Choice choice) {
+        if (nbSingles == 0) {
+            nbCreated++;
+            return new Passenger(pickupX, pickupY, destinationX, destinationY, choice, 1);
+        }
+        nbReused++;
+        Passenger passenger = singles[--nbSingles];
+        singles[nbSingles] = null;
+        passenger.reset(pickupX, pickupY, destinationX, destinationY, choice, 1);
+        return passenger;
+    }
+
+    /**
+     * @return A PassengerGroup of the given size making the given trip,
+     *         recycled if possible.
+     */
+    public PassengerGroup acquireGroup(int pickupX, int pickupY, int destinationX, int destinationY,
+            int nbPersons) {
+        if (nbPersons < PassengerGroup.NB_MIN)
+            throw new IllegalArgumentException("A group of " + nbPersons + " persons");
+        if (nbGroups == 0) {
+            nbCreated++;
+            return new PassengerGroup(pickupX, pickupY, destinationX, destinationY, nbPersons);
+        }
+        nbReused++;
+        PassengerGroup group = groups[--nbGroups];
+        groups[nbGroups] = null;
+        group.reset(pickupX, pickupY, destinationX, destinationY, Passenger.Choice.SHUTTLE, nbPersons);
+        return group;
+    }
+
+    /**
+     * Give back a Passenger whose trip is over. Nothing may refer to him
+     * anymore: he will make another trip.
+     * 
+     * @param passenger
+     *            The Passenger, dropped off, abandoned or missed.
+     * @throws IllegalStateException
+     *             If the Passenger is already in the pool.
+     */
+    public void release(Passenger passenger) {
+        if (passenger.getState() == Passenger.RECYCLED)
+            throw new IllegalStateException(passenger + " recycled twice");
+        passenger.setState(Passenger.RECYCLED);
+        if (passenger instanceof PassengerGroup) {
+            if (nbGroups < MAX_FREE)
+                groups[nbGroups++] = (PassengerGroup) passenger;
+        } else if (nbSingles < MAX_FREE)
+            singles[nbSingles++] = passenger;
+    }
+
+    /**
+     * @return The number of passengers created because the pool was empty.
+     */
+    public long getNbCreated() {
+        return nbCreated;
+    }
+
+    /**
+     * @return The number of passengers recycled.
+     */
+    public long getNbReused() {
+        return nbReused;
+    }
+}
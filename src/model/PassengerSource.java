@@ -3,19 +3,35 @@ package model;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.swing.JOptionPane;
 
+import metrics.MetricsRegistry;
+import metrics.Timer;
+
 /**
  * Randomly put generate Passengers or PassengerGroups on the map. Internally
  * pass requests of Passengers or PassengerGroups to one of the exsisting
- * TaxiCompanies (the choice of TaxiComany is random), if the selected
+ * TaxiCompanies (the choice of TaxiComany is random, unless the requests are
+ * routed by a DispatchMarket to the company offering the nearest vehicle), if
+ * the selected
  * TaxiCompany can provide the service (has available vehicles) for the client
  * (Passenger or PassengerGroup), then requests are registered in the selected
  * TaxiCompany; if the selected comany cannot provide the service, then we won't
  * put the Passenger or PassengerGroup on the map, in this case, a missed pickup
  * is registered.
  * 
+ * Where and when the Passengers appear is decided by a DemandModel, by default
+ * the UniformDemand (see PoissonDemand for a high-volume demand). On a large
+ * city, the trips can be generated district by district on several threads
+ * (see setDistricts()): every District draws its own random numbers, and the
+ * trips of the districts are dispatched in the order of the districts, so a
+ * seeded run gives the same results whatever the number of threads.
+ * 
  * @author David J. Barnes and Michael Kolling. Modified A.Morelle. Modified
  *         Bohao LI
  * @version 2017.03.21
@@ -42,8 +58,6 @@ public class PassengerSource implements Actor {
         }
     }
 
-    private static final float CREATION_PROBABILITY = .35f;
-
     /**
      * The maximu number of persons on the map nb_max_passengers >=
      * passengers_on_map + passengers_in_shuttles
@@ -68,6 +82,43 @@ public class PassengerSource implements Actor {
     private Random rand;
     private int missedPickups;
 
+    // The model of the demand, and the trips it generated during the step.
+    private DemandModel demandModel;
+    private TripBuffer trips;
+    // The seed of the districts, and the districts generating the trips with
+    // the threads running them (empty if the trips are generated here).
+    private long seed;
+    private int districtsX;
+    private int districtsY;
+    private int districtThreads;
+    private List<District> districts;
+    private ExecutorService districtExecutor;
+    // The trips of the step suppliedTime generated ahead by a StepPipeline,
+    // null if the trips are generated by act().
+    private TripBuffer suppliedTrips;
+    private int suppliedTime;
+    // Recycles the generated passengers once their trip is over.
+    private PassengerPool pool;
+
+    // How the company of a request is chosen, and the market routing the
+    // requests (null if they are routed at random).
+    private DispatchMarket.Routing routing;
+    private long marketBudgetMicros;
+    private DispatchMarket market;
+
+    // Where the passengers appear (or are missed), and the Rebalancer sending
+    // idle Taxis there.
+    private DemandHeatmap heatmap;
+    private Rebalancer rebalancer;
+    private boolean rebalancing;
+
+    // Time spent in the phases of act().
+    private final Timer waitingTimer;
+    private final Timer rebalancingTimer;
+    private final Timer statusTimer;
+    private final Timer generationTimer;
+    private final Timer dispatchTimer;
+
     /**
      * Create a PassengerSource object with the given city model.
      * 
@@ -84,6 +135,21 @@ public class PassengerSource implements Actor {
         passengers_in_shuttles = 0;
         missedPickups = 0;
         rand = new Random();
+        demandModel = new UniformDemand(city);
+        trips = new TripBuffer();
+        seed = new Random().nextLong();
+        districts = new ArrayList<>();
+        pool = new PassengerPool();
+        routing = DispatchMarket.Routing.RANDOM;
+        heatmap = new DemandHeatmap(city);
+        rebalancer = new Rebalancer(heatmap);
+        rebalancing = false;
+        MetricsRegistry metrics = MetricsRegistry.getDefault();
+        waitingTimer = metrics.timer("source.waitingTime", 1);
+        rebalancingTimer = metrics.timer("source.rebalancing", 1);
+        statusTimer = metrics.timer("source.showStatus", 1);
+        generationTimer = metrics.timer("source.generation", 1);
+        dispatchTimer = metrics.timer("source.dispatch", 1);
     }
 
     /**
@@ -121,31 +187,348 @@ public class PassengerSource implements Actor {
             count += v.getCapacity();
         nb_max_passengers += count;
         newCompany.setPassengerSource(this);
+        if (routing == DispatchMarket.Routing.MARKET)
+            setRouting(routing, marketBudgetMicros);
     }
 
     /**
-     * Randomly generate a new passenger. Keep a count of missed pickups.
+     * Choose how the company of a request is chosen: at random, or on a
+     * DispatchMarket among all the companies.
+     * 
+     * @param routing
+     *            RANDOM or MARKET.
+     * @param budgetMicros
+     *            How long the offers of the companies are waited for on the
+     *            market, in microseconds.
+     */
+    public void setRouting(DispatchMarket.Routing routing, long budgetMicros) {
+        if (routing == null)
+            throw new NullPointerException("routing");
+        if (market != null)
+            market.close();
+        market = routing == DispatchMarket.Routing.MARKET ? new DispatchMarket(companyList, budgetMicros) : null;
+        this.routing = routing;
+        marketBudgetMicros = budgetMicros;
+    }
+
+    /**
+     * @return How the company of a request is chosen.
+     */
+    public DispatchMarket.Routing getRouting() {
+        return routing;
+    }
+
+    /**
+     * Generate the new passengers of the step with the DemandModel, and pass
+     * their requests to the companies. Keep a count of missed pickups.
      */
     public void act() {
+        long start = waitingTimer.start();
         for (TaxiCompany company : companyList) {
             company.incrementWaitingTime();
             company.checkWaitingTime();
         }
+        waitingTimer.stop(start);
+        start = rebalancingTimer.start();
+        if (rebalancing)
+            rebalancer.rebalance(companyList, city.getTime());
+        rebalancingTimer.stop(start);
+        start = statusTimer.start();
         showStatus();
-        if (rand.nextDouble() <= CREATION_PROBABILITY) {
-            Passenger passenger = createPassenger();
-            if (passenger == null)
+        statusTimer.stop(start);
+        TripBuffer stepTrips = suppliedTrips;
+        if (stepTrips == null) {
+            stepTrips = trips;
+            start = generationTimer.start();
+            trips.clear();
+            if (districts.isEmpty())
+                demandModel.generate(city.getTime(), rand, trips);
+            else
+                generateByDistrict(city.getTime(), trips);
+            generationTimer.stop(start);
+        } else if (suppliedTime != city.getTime())
+            throw new IllegalStateException("Trips of step " + suppliedTime + " at step " + city.getTime());
+        suppliedTrips = null;
+        start = dispatchTimer.start();
+        // The requests waiting for a vehicle go first.
+        for (TaxiCompany company : companyList)
+            company.dispatchBacklog();
+        for (int i = 0; i < stepTrips.size(); i++) {
+            Passenger passenger = createPassenger(stepTrips, i);
+            if (passenger != null)
+                requestPickup(passenger);
+        }
+        // The vehicles must not move while an offer is still evaluated.
+        if (market != null)
+            market.awaitLateOffers();
+        dispatchTimer.stop(start);
+    }
+
+    /**
+     * @return True if the trips can be generated ahead of their step, by
+     *         generateAhead(): only the districts generate trips without the
+     *         random generator of the dispatch.
+     */
+    public boolean canGenerateAhead() {
+        return !districts.isEmpty();
+    }
+
+    /**
+     * Generate the trips of a step ahead of it, for a StepPipeline generating
+     * the trips of the next step while the current step runs. The trips of
+     * every step must be generated once, in the order of the steps, and be
+     * supplied to act() by supplyTrips(); the districts must not change
+     * meanwhile.
+     * 
+     * @param time
+     *            The step of the trips.
+     * @param trips
+     *            The buffer receiving the trips.
+     * @throws IllegalStateException
+     *             If the trips cannot be generated ahead.
+     */
+    public void generateAhead(int time, TripBuffer trips) {
+        if (!canGenerateAhead())
+            throw new IllegalStateException("The trips can only be generated ahead by districts");
+        trips.clear();
+        generateByDistrict(time, trips);
+    }
+
+    /**
+     * Give the trips of the next step, generated by generateAhead(), to act().
+     * 
+     * @param time
+     *            The step of the trips, the current time of the city.
+     * @param trips
+     *            The trips, used by act() instead of generating them.
+     */
+    public void supplyTrips(int time, TripBuffer trips) {
+        suppliedTime = time;
+        suppliedTrips = trips;
+    }
+
+    /**
+     * Generate the trips of every district, on the threads of the districts if
+     * any, then gather them in the order of the districts.
+     */
+    private void generateByDistrict(int time, TripBuffer trips) {
+        for (District district : districts)
+            district.setTime(time);
+        if (districtExecutor == null)
+            for (District district : districts)
+                district.call();
+        else {
+            List<Future<Void>> futures;
+            try {
+                futures = districtExecutor.invokeAll(districts);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
                 return;
-            TaxiCompany company = companyList.get(new Random().nextInt(companyList.size()));
-            if (company.requestPickup(passenger)) {
-                System.out.println(passenger + " appears");
-                incrementPassengersOnMap(passenger.getNb_persons());
-                city.addItem(passenger);
-            } else {
-                System.out.println("Pickup missed for " + passenger);
-                missedPickups += passenger.getNb_persons();
             }
+            for (Future<Void> future : futures)
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException("The generation of a district failed", e.getCause());
+                }
         }
+        for (District district : districts)
+            trips.addAll(district.getTrips());
+    }
+
+    /**
+     * Pass the request of a new Passenger to the company winning the
+     * DispatchMarket, if any, or to a randomly chosen company. If the company
+     * can serve him, the Passenger is put on the map; otherwise he waits in the
+     * backlog of the company for a vehicle to become free, and a missed pickup
+     * is registered if he gives up first.
+     * 
+     * @param passenger
+     *            The new Passenger.
+     */
+    private void requestPickup(Passenger passenger) {
+        // Drawn whatever the routing, so that both routings see the same
+        // demand for the same seed.
+        TaxiCompany company = companyList.get(rand.nextInt(companyList.size()));
+        recordDemand(passenger);
+        passenger.markRequested(city.getTime());
+        city.send(company, () -> dispatch(passenger, company), company.getDispatchLatency());
+    }
+
+    /**
+     * Pass the request of a new Passenger to the DispatchMarket, if any, or to
+     * the given company.
+     */
+    private void dispatch(Passenger passenger, TaxiCompany company) {
+        Journal journal = city.getJournal();
+        if (market != null && market.dispatch(passenger) != null) {
+            if (journal != null)
+                journal.requested(passenger, Journal.SERVED);
+            passengerServed(passenger);
+            return;
+        }
+        if (company.requestPickup(passenger)) {
+            if (journal != null)
+                journal.requested(passenger, Journal.SERVED);
+            passengerServed(passenger);
+        } else {
+            if (journal != null)
+                journal.requested(passenger, Journal.DEFERRED);
+            company.defer(passenger);
+        }
+    }
+
+    /**
+     * A vehicle has been assigned to a Passenger, he is put on the map.
+     */
+    void passengerServed(Passenger passenger) {
+        System.out.println(passenger + " appears");
+        incrementPassengersOnMap(passenger.getNb_persons());
+        city.addItem(passenger);
+    }
+
+    /**
+     * A Passenger gave up before any vehicle could be assigned to him.
+     */
+    void passengerMissed(Passenger passenger) {
+        System.out.println("Pickup missed for " + passenger);
+        missedPickups += passenger.getNb_persons();
+        if (city.getJournal() != null)
+            city.getJournal().missed(passenger.getNb_persons());
+        pool.release(passenger);
+    }
+
+    /**
+     * @param demandModel
+     *            The model generating the trips of every step.
+     */
+    public void setDemandModel(DemandModel demandModel) {
+        if (demandModel == null)
+            throw new NullPointerException("demandModel");
+        this.demandModel = demandModel;
+        if (districtsX * districtsY > 1)
+            createDistricts();
+    }
+
+    /**
+     * Divide the city in districtsX x districtsY districts of about the same
+     * size, whose trips are generated at the same time by the given number of
+     * threads. The districts draw other random numbers than the
+     * PassengerSource: a seeded run with districts does not give the same
+     * trips as without, but the same trips whatever the number of threads.
+     * 
+     * If the DemandModel cannot be divided (see DemandModel.district()), the
+     * trips are generated as if there was a single district.
+     * 
+     * @param districtsX
+     *            The number of districts along the width of the city.
+     * @param districtsY
+     *            The number of districts along the height of the city.
+     * @param nbThreads
+     *            The number of threads generating the trips, 1 to generate
+     *            them all in act().
+     */
+    public void setDistricts(int districtsX, int districtsY, int nbThreads) {
+        if (districtsX < 1 || districtsY < 1 || districtsX > city.getWidth() || districtsY > city.getHeight())
+            throw new IllegalArgumentException(districtsX + " x " + districtsY + " districts in a "
+                    + city.getWidth() + " x " + city.getHeight() + " city");
+        if (nbThreads < 1)
+            throw new IllegalArgumentException("Number of threads must be positive: " + nbThreads);
+        this.districtsX = districtsX;
+        this.districtsY = districtsY;
+        districtThreads = nbThreads;
+        createDistricts();
+    }
+
+    private void createDistricts() {
+        if (districtExecutor != null)
+            districtExecutor.shutdownNow();
+        districtExecutor = null;
+        districts = new ArrayList<>();
+        if (districtsX * districtsY <= 1)
+            return;
+        int width = city.getWidth();
+        int height = city.getHeight();
+        for (int row = 0; row < districtsY; row++)
+            for (int column = 0; column < districtsX; column++) {
+                int x0 = column * width / districtsX;
+                int y0 = row * height / districtsY;
+                int x1 = (column + 1) * width / districtsX;
+                int y1 = (row + 1) * height / districtsY;
+                DemandModel demand = demandModel.district(x0, y0, x1, y1);
+                if (demand == null) {
+                    System.out.println(demandModel.getClass().getSimpleName()
+                            + " cannot be divided in districts, the trips are generated as a whole");
+                    districts = new ArrayList<>();
+                    return;
+                }
+                districts.add(new District(districts.size(), x0, y0, x1, y1, demand, seed));
+            }
+        int nbThreads = Math.min(districtThreads, districts.size());
+        if (nbThreads > 1)
+            districtExecutor = Executors.newFixedThreadPool(nbThreads, runnable -> {
+                Thread thread = new Thread(runnable, "district-source");
+                thread.setDaemon(true);
+                return thread;
+            });
+    }
+
+    /**
+     * @return The number of districts generating the trips, 0 if the trips
+     *         are generated as a whole.
+     */
+    public int getNbDistricts() {
+        return districts.size();
+    }
+
+    /**
+     * Record the demand of a Passenger in the heatmap, whether he can be served
+     * or not.
+     * 
+     * @param passenger
+     *            The Passenger asking for a pickup.
+     */
+    private void recordDemand(Passenger passenger) {
+        heatmap.record(passenger.getPickupX(), passenger.getPickupY(), passenger.getNb_persons(), city.getTime());
+    }
+
+    /**
+     * Reset the random generator of the demand, so that a run can be
+     * reproduced.
+     * 
+     * @param seed
+     *            The seed of the random generator.
+     */
+    public void setSeed(long seed) {
+        rand.setSeed(seed);
+        this.seed = seed;
+        for (District district : districts)
+            district.setSeed(seed);
+    }
+
+    /**
+     * @param rebalancing
+     *            True if idle Taxis are to be sent where the demand is (false
+     *            by default).
+     */
+    public void setRebalancing(boolean rebalancing) {
+        this.rebalancing = rebalancing;
+    }
+
+    /**
+     * @return The pool recycling the passengers whose trip is over.
+     */
+    public PassengerPool getPassengerPool() {
+        return pool;
+    }
+
+    /**
+     * @return The map of the demand in the city.
+     */
+    public DemandHeatmap getHeatmap() {
+        return heatmap;
     }
 
     /**
@@ -161,7 +544,7 @@ public class PassengerSource implements Actor {
     /**
      * When the simulation is running, handle the dial of the user For
      * simplicity, we consider the ID of a Taxi as the telephone number of the
-     * Taxi
+     * Taxi. The dialed Taxi is found in the VehicleRegistry of the City.
      */
     public void handleDial(String telephone, int x, int y) {
         Passenger passenger = createPassenger(new Location(x, y));
@@ -169,16 +552,23 @@ public class PassengerSource implements Actor {
             JOptionPane.showMessageDialog(null, "City is too crowded!", "Inane warning", JOptionPane.WARNING_MESSAGE);
             return;
         }
-        for (TaxiCompany company : companyList) {
-            String result = company.handleDial(telephone, passenger);
+        recordDemand(passenger);
+        passenger.markRequested(city.getTime());
+        Vehicle vehicle = city.getVehicleRegistry().lookup(telephone);
+        if (vehicle != null) {
+            String result = vehicle.getCompany().handleDial(vehicle, passenger);
             if (result.equals("isBusy")) {
                 System.out.println(passenger + " dialing taxi failed because taxi is busy");
+                if (city.getJournal() != null)
+                    city.getJournal().dialed(vehicle, Journal.DIAL_BUSY);
                 JOptionPane.showMessageDialog(null, "The taxi you've dialed is busy, " + "please dial again later",
                         "Inane warning", JOptionPane.WARNING_MESSAGE);
                 return;
             }
             if (result.equals("success")) {
                 System.out.println(passenger + " dialing taxi successfully");
+                if (city.getJournal() != null)
+                    city.getJournal().dialed(vehicle, Journal.DIAL_SUCCESS);
                 JOptionPane.showMessageDialog(null, "Success!", "Inane warning", JOptionPane.WARNING_MESSAGE);
                 incrementPassengersOnMap(passenger.getNb_persons());
                 city.addItem(passenger);
@@ -187,6 +577,10 @@ public class PassengerSource implements Actor {
         }
         System.out.println(passenger + " dialing the wrong number");
         missedPickups += passenger.getNb_persons();
+        if (city.getJournal() != null) {
+            city.getJournal().dialed(null, Journal.DIAL_WRONG_NUMBER);
+            city.getJournal().missed(passenger.getNb_persons());
+        }
         JOptionPane.showMessageDialog(null, "You've dialed the wrong number", "Inane warning",
                 JOptionPane.WARNING_MESSAGE);
     }
@@ -272,6 +666,20 @@ public class PassengerSource implements Actor {
         passengers_in_shuttles -= nb;
     }
 
+    /**
+     * @return The number of persons waiting for a pickup on the map.
+     */
+    public int getPassengersOnMap() {
+        return passengers_on_map;
+    }
+
+    /**
+     * @return The number of persons in the Shuttles.
+     */
+    public int getPassengersInShuttles() {
+        return passengers_in_shuttles;
+    }
+
     public int getMissedPickups() {
         return missedPickups;
     }
@@ -296,21 +704,24 @@ public class PassengerSource implements Actor {
     }
 
     /**
-     * If the limit number of persons on the map is not achieved yet, randomly
-     * create a Passenger or a PassengerGroup.
+     * If the limit number of persons on the map is not achieved yet, create the
+     * Passenger or the PassengerGroup making a trip of the TripBuffer, recycled
+     * from the PassengerPool if possible.
      * 
-     * @return The Passenger or PassengerGroup created.
+     * @param trips
+     *            The trips generated during the step.
+     * @param i
+     *            The index of the trip.
+     * @return The Passenger or PassengerGroup created, or null.
      */
-    private Passenger createPassenger() {
-        int cityWidth = city.getWidth();
-        int cityHeight = city.getHeight();
-        Location pickupLocation = new Location(rand.nextInt(cityWidth), rand.nextInt(cityHeight));
-        Location destination;
-        do {
-            destination = new Location(rand.nextInt(cityWidth), rand.nextInt(cityHeight));
-        } while (pickupLocation.isEqualTo(destination));
-        Passenger passenger = Math.random() < .5 ? new Passenger(pickupLocation, destination)
-                : new PassengerGroup(pickupLocation, destination);
-        return cannotAddPassengersAnymore(passenger.getNb_persons()) ? null : passenger;
+    private Passenger createPassenger(TripBuffer trips, int i) {
+        int nbPersons = trips.getGroupSize(i);
+        if (cannotAddPassengersAnymore(nbPersons))
+            return null;
+        if (nbPersons > 1)
+            return pool.acquireGroup(trips.getPickupX(i), trips.getPickupY(i), trips.getDestinationX(i),
+                    trips.getDestinationY(i), nbPersons);
+        return pool.acquire(trips.getPickupX(i), trips.getPickupY(i), trips.getDestinationX(i),
+                trips.getDestinationY(i), trips.getChoice(i));
     }
 }
\ No newline at end of file
@@ -0,0 +1,366 @@
+package model;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * A configurable high-volume demand: the number of trips of a step follows a
+ * Poisson distribution, so many trips can be requested during the same step.
+ *
+ * The model can be tuned with:
+ *
+ * 1. A rate curve: the mean number of trips per step is multiplied by the
+ * entry of the curve for the current time of day (the day lasts
+ * dayLength steps and is divided in as many periods as the curve has entries).
+ *
+ * 2. Hotspots: the city is divided in zonesX x zonesY zones, and a pickup
+ * happens in a zone with a probability proportional to the weight of the zone.
+ *
+ * 3. An origin-destination matrix: the destination zone of a trip is chosen
+ * with the weights of the row of its pickup zone. Without a matrix, the
+ * destination is chosen uniformly in the city.
+ *
+ * 4. A group-size distribution: entry i is the weight of a trip of i + 1
+ * persons. A single Passenger takes a Taxi with the probability taxiShare,
+ * groups always take a Shuttle.
+ *
+ * By default the rate is constant, the pickups and destinations are uniform and
+ * the trips are made by single Passengers.
+ *
+ * The demand of a district is the one of the pickups in the district: its rate
+ * is the share of the rate of the zones it covers, the destinations are still
+ * chosen in the whole city. A sum of Poisson numbers being a Poisson number,
+ * the districts of a partition of the city make exactly the same demand.
+ *
+ * @author Bohao LI
+ * @version 2017.03.23
+ */
+public class PoissonDemand implements DemandModel {
+
+    // Above this mean, the Poisson distribution is approximated by a normal
+    // one.
+    private static final double NORMAL_APPROXIMATION = 30;
+
+    private final int cityWidth;
+    private final int cityHeight;
+    private double rate;
+
+    private double[] rateCurve;
+    private int dayLength;
+
+    private int zonesX;
+    private int zonesY;
+    // Cumulative weights of the pickup zones, null if pickups are uniform.
+    private double[] pickupWeights;
+    // Cumulative weights of the destination zones per pickup zone.
+    private double[][] destinationWeights;
+
+    // Cumulative weights of the group sizes.
+    private double[] groupSizes;
+    private double taxiShare;
+
+    // The area of the pickups, the whole city unless the demand is the one of
+    // a district.
+    private int x0;
+    private int y0;
+    private int x1;
+    private int y1;
+
+    /**
+     * @param city
+     *            The city where the trips happen.
+     * @param rate
+     *            The mean number of trips per step.
+     */
+    public PoissonDemand(City city, double rate) {
+        if (rate < 0)
+            throw new IllegalArgumentException("Negative rate: " + rate);
+        cityWidth = city.getWidth();
+        cityHeight = city.getHeight();
+        this.rate = rate;
+        zonesX = 1;
+        zonesY = 1;
+        groupSizes = new double[] { 1 };
+        taxiShare = .5;
+        x1 = cityWidth;
+        y1 = cityHeight;
+    }
+
+    /**
+     * Create the demand of a district of the given demand.
+     */
+    private PoissonDemand(PoissonDemand demand, int x0, int y0, int x1, int y1) {
+        cityWidth = demand.cityWidth;
+        cityHeight = demand.cityHeight;
+        rateCurve = demand.rateCurve;
+        dayLength = demand.dayLength;
+        zonesX = demand.zonesX;
+        zonesY = demand.zonesY;
+        destinationWeights = demand.destinationWeights;
+        groupSizes = demand.groupSizes;
+        taxiShare = demand.taxiShare;
+        this.x0 = x0;
+        this.y0 = y0;
+        this.x1 = x1;
+        this.y1 = y1;
+        // The weight of a zone is shared by its cells in the area of the
+        // given demand.
+        int nbZones = zonesX * zonesY;
+        double[] weights = new double[nbZones];
+        double total = 0;
+        double share = 0;
+        for (int zone = 0; zone < nbZones; zone++) {
+            double weight = demand.pickupWeights == null ? 1
+                    : demand.pickupWeights[zone] - (zone == 0 ? 0 : demand.pickupWeights[zone - 1]);
+            double cells = (double) demand.overlapX(zone) * demand.overlapY(zone);
+            if (weight > 0 && cells > 0)
+                weights[zone] = weight * overlapX(zone) * overlapY(zone) / cells;
+            total += weight;
+            share += weights[zone];
+        }
+        rate = total == 0 ? 0 : demand.rate * share / total;
+        pickupWeights = share == 0 ? null : cumulate(weights);
+    }
+
+    /**
+     * @param rate
+     *            The mean number of trips per step.
+     */
+    public void setRate(double rate) {
+        if (rate < 0)
+            throw new IllegalArgumentException("Negative rate: " + rate);
+        this.rate = rate;
+    }
+
+    /**
+     * @param curve
+     *            The factors applied to the rate along the day.
+     * @param dayLength
+     *            The number of steps of a day.
+     */
+    public void setRateCurve(double[] curve, int dayLength) {
+        if (curve.length == 0 || dayLength < curve.length)
+            throw new IllegalArgumentException("A day of " + dayLength + " steps for " + curve.length + " periods");
+        rateCurve = curve.clone();
+        this.dayLength = dayLength;
+    }
+
+    /**
+     * Divide the city in zones and give the weight of every zone as a pickup
+     * zone (the hotspots have the highest weights). This removes the
+     * origin-destination matrix.
+     *
+     * @param zonesX
+     *            The number of zones along the width of the city.
+     * @param zonesY
+     *            The number of zones along the height of the city.
+     * @param weights
+     *            The weight of every zone, row by row.
+     */
+    public void setHotspots(int zonesX, int zonesY, double[] weights) {
+        if (zonesX < 1 || zonesY < 1 || zonesX > cityWidth || zonesY > cityHeight)
+            throw new IllegalArgumentException(zonesX + " x " + zonesY + " zones in a " + cityWidth + " x " + cityHeight + " city");
+        if (weights.length != zonesX * zonesY)
+            throw new IllegalArgumentException(weights.length + " weights for " + zonesX * zonesY + " zones");
+        this.zonesX = zonesX;
+        this.zonesY = zonesY;
+        pickupWeights = cumulate(weights);
+        destinationWeights = null;
+    }
+
+    /**
+     * @param matrix
+     *            The weight of every destination zone (column) for every pickup
+     *            zone (row), the zones are the ones of the hotspots.
+     */
+    public void setOriginDestination(double[][] matrix) {
+        int nbZones = zonesX * zonesY;
+        if (matrix.length != nbZones)
+            throw new IllegalArgumentException(matrix.length + " rows for " + nbZones + " zones");
+        double[][] cumulated = new double[nbZones][];
+        for (int i = 0; i < nbZones; i++) {
+            if (matrix[i].length != nbZones)
+                throw new IllegalArgumentException(matrix[i].length + " columns for " + nbZones + " zones");
+            cumulated[i] = cumulate(matrix[i]);
+        }
+        destinationWeights = cumulated;
+    }
+
+    /**
+     * @param weights
+     *            The weight of every group size, entry i for i + 1 persons.
+     * @param taxiShare
+     *            The probability for a single Passenger to take a Taxi.
+     */
+    public void setGroupSizes(double[] weights, double taxiShare) {
+        if (weights.length == 0)
+            throw new IllegalArgumentException("No group size");
+        if (taxiShare < 0 || taxiShare > 1)
+            throw new IllegalArgumentException("Taxi share: " + taxiShare);
+        groupSizes = cumulate(weights);
+        this.taxiShare = taxiShare;
+    }
+
+    /**
+     * @return The mean number of trips at the given time.
+     */
+    public double getRate(int time) {
+        if (rateCurve == null)
+            return rate;
+        int period = (int) ((long) (time % dayLength) * rateCurve.length / dayLength);
+        return rate * rateCurve[period];
+    }
+
+    @Override
+    public DemandModel district(int x0, int y0, int x1, int y1) {
+        if (x0 < this.x0 || y0 < this.y0 || x1 > this.x1 || y1 > this.y1 || x0 >= x1 || y0 >= y1)
+            throw new IllegalArgumentException("District (" + x0 + ", " + y0 + ") to (" + x1 + ", " + y1
+                    + ") out of (" + this.x0 + ", " + this.y0 + ") to (" + this.x1 + ", " + this.y1 + ")");
+        return new PoissonDemand(this, x0, y0, x1, y1);
+    }
+
+    @Override
+    public void generate(int time, Random rand, TripBuffer trips) {
+        int nbTrips = poisson(getRate(time), rand);
+        for (int i = 0; i < nbTrips; i++) {
+            int zone = pickupWeights == null ? 0 : pick(pickupWeights, rand);
+            int px = pickupX(zone, rand);
+            int py = pickupY(zone, rand);
+            int dx, dy;
+            do {
+                if (destinationWeights == null) {
+                    dx = rand.nextInt(cityWidth);
+                    dy = rand.nextInt(cityHeight);
+                } else {
+                    int destination = pick(destinationWeights[zone], rand);
+                    dx = zoneX(destination, rand);
+                    dy = zoneY(destination, rand);
+                }
+            } while (px == dx && py == dy);
+
+            int nbPersons = pick(groupSizes, rand) + 1;
+            trips.add(px, py, dx, dy, nbPersons,
+                    rand.nextDouble() < taxiShare ? Passenger.Choice.TAXI : Passenger.Choice.SHUTTLE);
+        }
+    }
+
+    /**
+     * @return A random x coordinate in the given zone.
+     */
+    private int zoneX(int zone, Random rand) {
+        int column = zone % zonesX;
+        int from = zoneFrom(column, cityWidth, zonesX);
+        return from + rand.nextInt(zoneTo(column, cityWidth, zonesX) - from);
+    }
+
+    /**
+     * @return A random y coordinate in the given zone.
+     */
+    private int zoneY(int zone, Random rand) {
+        int row = zone / zonesX;
+        int from = zoneFrom(row, cityHeight, zonesY);
+        return from + rand.nextInt(zoneTo(row, cityHeight, zonesY) - from);
+    }
+
+    /**
+     * @return A random x coordinate of a pickup in the given zone.
+     */
+    private int pickupX(int zone, Random rand) {
+        int from = Math.max(x0, zoneFrom(zone % zonesX, cityWidth, zonesX));
+        return from + rand.nextInt(overlapX(zone));
+    }
+
+    /**
+     * @return A random y coordinate of a pickup in the given zone.
+     */
+    private int pickupY(int zone, Random rand) {
+        int from = Math.max(y0, zoneFrom(zone / zonesX, cityHeight, zonesY));
+        return from + rand.nextInt(overlapY(zone));
+    }
+
+    /**
+     * @return The number of columns of the given zone in the area of the
+     *         pickups.
+     */
+    private int overlapX(int zone) {
+        int column = zone % zonesX;
+        return Math.max(0, Math.min(x1, zoneTo(column, cityWidth, zonesX))
+                - Math.max(x0, zoneFrom(column, cityWidth, zonesX)));
+    }
+
+    /**
+     * @return The number of rows of the given zone in the area of the pickups.
+     */
+    private int overlapY(int zone) {
+        int row = zone / zonesX;
+        return Math.max(0, Math.min(y1, zoneTo(row, cityHeight, zonesY))
+                - Math.max(y0, zoneFrom(row, cityHeight, zonesY)));
+    }
+
+    /**
+     * @return The first cell of the i-th of n zones along a side of the given
+     *         length.
+     */
+    private static int zoneFrom(int i, int length, int n) {
+        return i * length / n;
+    }
+
+    /**
+     * @return The cell after the i-th of n zones along a side of the given
+     *         length.
+     */
+    private static int zoneTo(int i, int length, int n) {
+        return (i + 1) * length / n;
+    }
+
+    /**
+     * Draw a number following a Poisson distribution.
+     *
+     * @param mean
+     *            The mean of the distribution.
+     * @return The number drawn.
+     */
+    private static int poisson(double mean, Random rand) {
+        if (mean <= 0)
+            return 0;
+        if (mean >= NORMAL_APPROXIMATION)
+            return (int) Math.max(0, Math.round(mean + Math.sqrt(mean) * rand.nextGaussian()));
+        double limit = Math.exp(-mean);
+        double product = rand.nextDouble();
+        int n = 0;
+        while (product > limit) {
+            product *= rand.nextDouble();
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * @return The index drawn with the given cumulative weights.
+     */
+    private static int pick(double[] cumulated, Random rand) {
+        double x = rand.nextDouble() * cumulated[cumulated.length - 1];
+        int i = Arrays.binarySearch(cumulated, x);
+        i = i < 0 ? -i - 1 : i + 1;
+        // Skip the entries of weight 0.
+        while (i < cumulated.length - 1 && cumulated[i] == (i == 0 ? 0 : cumulated[i - 1]))
+            i++;
+        return Math.min(i, cumulated.length - 1);
+    }
+
+    /**
+     * @return The cumulative sums of the given weights.
+     */
+    private static double[] cumulate(double[] weights) {
+        double[] cumulated = new double[weights.length];
+        double sum = 0;
+        for (int i = 0; i < weights.length; i++) {
+            if (weights[i] < 0)
+                throw new IllegalArgumentException("Negative weight: " + weights[i]);
+            cumulated[i] = sum += weights[i];
+        }
+        if (sum <= 0)
+            throw new IllegalArgumentException("All the weights are 0");
+        return cumulated;
+    }
+}
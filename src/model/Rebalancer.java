@@ -0,0 +1,105 @@
+package model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Send idle Taxis toward the blocks of the city where the demand is expected to
+ * exceed the supply.
+ *
+ * Every INTERVAL steps, the free Taxis of all the companies are shared out
+ * between the blocks of the DemandHeatmap in proportion of the recent demand of
+ * each block. Taxis in a block that has more free Taxis than its share cruise
+ * toward the middle of a block that has fewer. A cruising Taxi is still free:
+ * it stops cruising as soon as it receives a pickup.
+ *
+ * A decision costs O(blocks + vehicles).
+ *
+ * @author Bohao LI
+ * @version 2017.03.23
+ */
+public class Rebalancer {
+
+    public static final int INTERVAL = 10;
+    // Below this total demand, the heatmap says nothing worth moving for.
+    private static final double MIN_TOTAL_HEAT = 1;
+
+    private final DemandHeatmap heatmap;
+
+    // Free Taxis found during the last decision, and their block.
+    private final List<Taxi> idle;
+    private int[] idleBlock;
+    // Number of free Taxis per block.
+    private final int[] supply;
+    // Free Taxis to keep (positive) or to send away (negative) per block.
+    private final int[] balance;
+
+    /**
+     * @param heatmap
+     *            The heatmap telling where the demand is.
+     */
+    public Rebalancer(DemandHeatmap heatmap) {
+        this.heatmap = heatmap;
+        idle = new ArrayList<>();
+        idleBlock = new int[16];
+        supply = new int[heatmap.getNbBlocks()];
+        balance = new int[heatmap.getNbBlocks()];
+    }
+
+    /**
+     * Move the free Taxis of the given companies if the time has come.
+     *
+     * @param companies
+     *            The companies whose Taxis may be moved.
+     * @param time
+     *            The current time of the city.
+     */
+    public void rebalance(List<TaxiCompany> companies, int time) {
+        if (time % INTERVAL != 0)
+            return;
+
+        int nbBlocks = heatmap.getNbBlocks();
+        double total = 0;
+        for (int b = 0; b < nbBlocks; b++)
+            total += heatmap.getHeat(b, time);
+        if (total < MIN_TOTAL_HEAT)
+            return;
+
+        idle.clear();
+        Arrays.fill(supply, 0);
+        for (TaxiCompany company : companies)
+            for (Vehicle v : company.getVehicles())
+                if (v instanceof Taxi && v.isFree()) {
+                    Location l = v.getLocation();
+                    int block = heatmap.getBlock(l.getX(), l.getY());
+                    if (idle.size() == idleBlock.length)
+                        idleBlock = Arrays.copyOf(idleBlock, idleBlock.length * 2);
+                    idleBlock[idle.size()] = block;
+                    idle.add((Taxi) v);
+                    supply[block]++;
+                }
+
+        // Share of every block minus what it has.
+        int nbIdle = idle.size();
+        for (int b = 0; b < nbBlocks; b++) {
+            double share = nbIdle * heatmap.getHeat(b, time) / total;
+            balance[b] = share > supply[b] ? (int) (share - supply[b]) : (int) Math.ceil(share) - supply[b];
+        }
+
+        // Send the Taxis of the blocks in surplus to the blocks in deficit.
+        int deficit = 0;
+        for (int i = 0; i < nbIdle; i++) {
+            int from = idleBlock[i];
+            if (balance[from] >= 0)
+                continue;
+            while (deficit < nbBlocks && balance[deficit] <= 0)
+                deficit++;
+            if (deficit == nbBlocks)
+                return;
+            balance[from]++;
+            balance[deficit]--;
+            idle.get(i).cruiseTo(heatmap.getCenter(deficit));
+        }
+    }
+}
@@ -6,7 +6,7 @@ import java.util.Iterator;
 import java.util.Map;
 import java.util.Random;
 
-import javax.swing.ImageIcon;
+import metrics.ShuttleStopEvent;
 
 /**
  * A shuttle is able to carry multiple passengers.
@@ -42,11 +42,40 @@ public class Shuttle extends Vehicle implements DrawableItem {
 
     private final int capacity;
 
+    /**
+     * Attention: the keys of the two maps below are Locations, now I explain
+     * why I did not override the equals() method in Location class: because we
+     * want the default behavior of equals() in Object class, that is --> two
+     * objects are equal if and only if they are exactly the same object in the
+     * memory.
+     * 
+     * What if we provide our own version of equals (that considers two
+     * Locations to be equal if they have the same abscisses and ordinates) in
+     * Location class? What will happen?
+     * 
+     * Well, something terrible will happen, here's the story: every time before
+     * the HashMap put a pair(key, value) into it, it will first transform the
+     * key into an integer value (using the internal hash function inside the
+     * HashMap class (this method will also internally call the hashCode()
+     * fucntion of the key object(here Location object)), if we override the
+     * equals() method inside Location (that consider two Locations to be equal
+     * if they have the same abscisses and ordinates), before we put this pair,
+     * if there is already a key that have the same hash code as the key of the
+     * pair that we are going to put in the HashMap, then HashMap will
+     * internally call equals() method of Location, at this time, it finds that
+     * the two Locations are equals, then the HashMap will replace the old value
+     * with the new value, but this is not what we want! And you can imagin that
+     * the default version of equals() provided by the Object class is exactly
+     * what we want. We should know that two passengers at the same Location are
+     * two distinct Passengers! (even if we can't see it on the map)
+     * 
+     * If you are still confused after this explanation, you can contact the
+     * author at: bohao.li.20160103@efrei.net for furthur details.
+     */
     private Map<Location, Passenger> passengers;
     private Map<Location, Passenger> requests;
-
-    private Image emptyImage;
-    private Image passengerImage;
+    // The keys of the two maps above, indexed by their coordinates.
+    private final StopIndex stops;
 
     private int nb_requests;
     private int nb_passengers;
@@ -62,12 +91,28 @@ public class Shuttle extends Vehicle implements DrawableItem {
      *            The ID of the Shuttle.
      */
     public Shuttle(TaxiCompany company, Location location, String id) {
+        this(company, location, id, new Random());
+    }
+
+    /**
+     * Create a Shuttle whose capacity is drawn by the given random generator,
+     * so that a fleet can be reproduced from a seed.
+     * 
+     * @param company
+     *            The TaxiCompnay that the current Shuttle belongs to.
+     * @param location
+     *            The birth Location of the Shuttle on the map.
+     * @param id
+     *            The ID of the Shuttle.
+     * @param rand
+     *            The random generator drawing the capacity.
+     */
+    public Shuttle(TaxiCompany company, Location location, String id, Random rand) {
         super(company, location, id);
-        capacity = new Random().nextInt(CAPACITY_MAX + 1 - CAPACITY_MIN) + CAPACITY_MIN;
+        capacity = rand.nextInt(CAPACITY_MAX + 1 - CAPACITY_MIN) + CAPACITY_MIN;
         passengers = new HashMap<>();
         requests = new HashMap<>();
-        emptyImage = new ImageIcon(getClass().getResource("/images/bus.jpg")).getImage();
-        passengerImage = new ImageIcon(getClass().getResource("/images/bus+persons.jpg")).getImage();
+        stops = new StopIndex();
     }
 
     public void act() {
@@ -96,11 +141,15 @@ public class Shuttle extends Vehicle implements DrawableItem {
                 Map.Entry<Location, Passenger> entry = it.next();
                 if (target.isEqualTo(entry.getKey())) {
                     System.out.println(entry.getValue() + " arrived at destination");
-                    incrementNbSuccess();
                     int nb_persons = entry.getValue().getNb_persons();
                     it.remove();
+                    stops.remove(entry.getKey());
+                    // The passenger is recycled by the company.
+                    notifyPassengerArrival(entry.getValue());
+                    incrementNbSuccess();
                     ps.decrementPassengersInShuttle(nb_persons);
                     decrementNb_passengers(nb_persons);
+                    commitStop(false, nb_persons);
                 }
             }
 
@@ -112,12 +161,16 @@ public class Shuttle extends Vehicle implements DrawableItem {
                     System.out.println(this + "pick up " + passenger);
                     int nb_persons = entry.getValue().getNb_persons();
                     it.remove();
+                    stops.remove(entry.getKey());
                     ps.decrementPassengersOnMap(nb_persons);
                     ps.incrementPassengersInShuttle(nb_persons);
                     passenger.resetWaitingTime();
-                    passengers.put(passenger.getDestination(), passenger);
+                    Location destination = passenger.getDestination();
+                    if (passengers.put(destination, passenger) == null)
+                        stops.add(destination);
                     decrementNb_requests(nb_persons);
                     incremetNb_passengers(nb_persons);
+                    commitStop(true, nb_persons);
                     notifyPickupArrival();
                 }
             }
@@ -132,6 +185,25 @@ public class Shuttle extends Vehicle implements DrawableItem {
         }
     }
 
+    /**
+     * Emit a ShuttleStopEvent if the Flight Recorder records it.
+     * 
+     * @param boarding
+     *            True if persons get on, false if they get off.
+     * @param nb_persons
+     *            The number of persons.
+     */
+    private void commitStop(boolean boarding, int nb_persons) {
+        ShuttleStopEvent event = new ShuttleStopEvent();
+        if (event.isEnabled()) {
+            event.tick = getCompany().getCity().getTime();
+            event.vehicleId = getID();
+            event.boarding = boarding;
+            event.persons = nb_persons;
+            event.commit();
+        }
+    }
+
     /**
      * Show all the information relevant to the current Shuttle.
      */
@@ -158,6 +230,7 @@ public class Shuttle extends Vehicle implements DrawableItem {
      */
     public void incrementNb_requests(int nb) {
         nb_requests += nb;
+        updateFreeState();
     }
 
     /**
@@ -178,6 +251,9 @@ public class Shuttle extends Vehicle implements DrawableItem {
             System.exit(1);
         }
         nb_requests -= nb;
+        updateFreeState();
+        if (nb > 0)
+            capacityFreed();
     }
 
     /**
@@ -190,6 +266,7 @@ public class Shuttle extends Vehicle implements DrawableItem {
      */
     public void incremetNb_passengers(int nb) {
         nb_passengers += nb;
+        updateFreeState();
     }
 
     /**
@@ -209,6 +286,9 @@ public class Shuttle extends Vehicle implements DrawableItem {
             System.exit(1);
         }
         nb_passengers -= nb;
+        updateFreeState();
+        if (nb > 0)
+            capacityFreed();
     }
 
     /**
@@ -219,6 +299,11 @@ public class Shuttle extends Vehicle implements DrawableItem {
         return capacity;
     }
 
+    @Override
+    public int getNbAboard() {
+        return nb_passengers;
+    }
+
     /**
      * Recieve a request from a Passenger or a PassengerGroup.
      * 
@@ -226,10 +311,19 @@ public class Shuttle extends Vehicle implements DrawableItem {
      *            The Passenger or PassengerGroup that makes the request
      */
     public void receiveRequest(Passenger passenger) {
-        requests.put(passenger.getLocation(), passenger);
+        Location pickup = passenger.getLocation();
+        if (requests.put(pickup, passenger) == null)
+            stops.add(pickup);
         incrementNb_requests(passenger.getNb_persons());
     }
 
+    /**
+     * @return The number of persons the current Shuttle can still take.
+     */
+    public int getSpareCapacity() {
+        return Math.max(0, capacity - nb_passengers - nb_requests);
+    }
+
     /**
      * @param passengerGroup
      *            The PassengerGroup to determine wether a pickup request be
@@ -257,6 +351,7 @@ public class Shuttle extends Vehicle implements DrawableItem {
 
             if (location.isEqualTo(entry.getKey())) {
                 it.remove();
+                stops.remove(entry.getKey());
                 decrementNb_requests(entry.getValue().getNb_persons());
             }
         }
@@ -281,12 +376,14 @@ public class Shuttle extends Vehicle implements DrawableItem {
         for (Iterator<Map.Entry<Location, Passenger>> it = passengers.entrySet().iterator(); it.hasNext();) {
             Map.Entry<Location, Passenger> entry = it.next();
             if ((passenger = entry.getValue()).waitingTooLong())
-                if (!getTargetLocation().isEqualTo(passenger.getDestination())) {
+                if (!passenger.isGoingTo(getTargetLocation())) {
                     System.out.println(passenger + " waiting too long in shuttle " + "and gets off (disappeared)");
                     it.remove();
+                    stops.remove(entry.getKey());
                     int nb_persons = entry.getValue().getNb_persons();
                     source.decrementPassengersInShuttle(nb_persons);
                     decrementNb_passengers(nb_persons);
+                    getCompany().passengerAbandoned(passenger, this, true);
                 }
         }
     }
@@ -352,31 +449,14 @@ public class Shuttle extends Vehicle implements DrawableItem {
      * arrives at his/their destination; when making this decision, the current
      * Shuttle choose from the list of Locations of people requesting a pickup
      * of the current Shuttle and the list of Locations of people already in the
-     * Shuttle, and it finds the nearest Location in these two lists.
+     * Shuttle, and it finds the nearest Location in these two lists (see
+     * StopIndex). Of two Locations at the same distance, the one with the
+     * lowest coordinates is chosen.
      * 
-     * @return The nearest Location found.
+     * @return The nearest Location found, null if there is none.
      */
     public Location nearestDestination() {
-        if (passengers.isEmpty() && requests.isEmpty())
-            return null;
-
-        City city = getCompany().getCity();
-        int min = new Location(0, 0).distance(new Location(city.getWidth(), city.getHeight())) + 1;
-        int distanceTemp = 0;
-        Location result = null;
-
-        for (Location l : passengers.keySet())
-            if ((distanceTemp = getLocation().distance(l)) < min) {
-                min = distanceTemp;
-                result = l;
-            }
-
-        for (Location l : requests.keySet())
-            if ((distanceTemp = getLocation().distance(l)) < min) {
-                min = distanceTemp;
-                result = l;
-            }
-        return result;
+        return stops.nearest(getLocation());
     }
 
     /**
@@ -384,7 +464,7 @@ public class Shuttle extends Vehicle implements DrawableItem {
      */
     @Override
     public Image getImage() {
-        return passengers.isEmpty() ? emptyImage : passengerImage;
+        return passengers.isEmpty() ? Sprites.BUS : Sprites.BUS_WITH_PERSONS;
     }
 
     /**
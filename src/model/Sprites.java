@@ -0,0 +1,32 @@
+package model;
+
+import java.awt.Image;
+
+import javax.swing.ImageIcon;
+
+/**
+ * The images of the items drawn on the map, loaded once and shared by all the
+ * items instead of being loaded for every new Passenger or Vehicle.
+ *
+ * @author Bohao LI
+ * @version 2017.03.23
+ */
+final class Sprites {
+
+    static final Image PERSON = load("person.jpg");
+    static final Image RED_PERSON = load("red_person.jpg");
+    static final Image ANGRY_PERSON = load("angry_person.jpg");
+    static final Image PERSONS = load("persons.jpg");
+    static final Image ANGRY_PERSONS = load("angry_persons.jpg");
+    static final Image TAXI = load("taxi.jpg");
+    static final Image TAXI_WITH_PERSON = load("taxi+person.jpg");
+    static final Image BUS = load("bus.jpg");
+    static final Image BUS_WITH_PERSONS = load("bus+persons.jpg");
+
+    private Sprites() {
+    }
+
+    private static Image load(String name) {
+        return new ImageIcon(Sprites.class.getResource("/images/" + name)).getImage();
+    }
+}
@@ -0,0 +1,198 @@
+package model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The stops of a Shuttle (the pickup locations of its requests and the
+ * destinations of its passengers), indexed to find the nearest one without
+ * measuring the distance to every stop.
+ *
+ * The stops are kept in a k-d tree, rebuilt lazily: a new stop waits in a
+ * small list until the next rebuild, a removed stop stays in the tree, marked
+ * as removed. The tree is rebuilt by nearest() once the list holds more than a
+ * quarter of the stops, or half the tree is removed, so a stop costs a
+ * logarithmic time on average. Up to LINEAR_SCAN stops, there is no tree at
+ * all: the list is scanned.
+ *
+ * As in the maps of the Shuttle, two Locations are two stops even if they have
+ * the same coordinates (see Shuttle); the same Location can be added several
+ * times (a request and a passenger stopping at the same Location), it is then
+ * a stop until it has been removed as many times.
+ *
+ * The distance is the one of Location.distance(), the stops at the same
+ * distance being ordered by their coordinates, so the nearest stop does not
+ * depend on the order of the stops.
+ *
+ * @author Bohao LI
+ * @version 2017.03.23
+ */
+final class StopIndex {
+
+    // The number of stops under which the stops are scanned.
+    static final int LINEAR_SCAN = 16;
+
+    private static final Comparator<Location> BY_X = Comparator.comparingInt(Location::getX);
+    private static final Comparator<Location> BY_Y = Comparator.comparingInt(Location::getY);
+
+    // Stop --> the number of times it has been added and not removed.
+    private final Map<Location, Integer> counts;
+    // The stops added since the tree was built.
+    private final List<Location> pending;
+    // Stop in the tree --> its node.
+    private final Map<Location, Integer> nodes;
+    // The nodes of the tree: the node of the range [lo, hi) is (lo + hi) / 2,
+    // split on x at even depths and on y at odd depths.
+    private Location[] tree;
+    private boolean[] removed;
+    private int nbRemoved;
+
+    // The search in progress.
+    private Location best;
+    private int bestDistance;
+
+    StopIndex() {
+        counts = new IdentityHashMap<>();
+        pending = new ArrayList<>();
+        nodes = new IdentityHashMap<>();
+        tree = new Location[0];
+        removed = new boolean[0];
+    }
+
+    /**
+     * @param stop
+     *            A Location the Shuttle has to stop at.
+     */
+    void add(Location stop) {
+        if (stop == null)
+            throw new NullPointerException("stop");
+        if (counts.merge(stop, 1, Integer::sum) == 1)
+            pending.add(stop);
+    }
+
+    /**
+     * @param stop
+     *            A Location added before, the Shuttle does not have to stop at
+     *            any more.
+     * @throws IllegalArgumentException
+     *             If the Location is not a stop.
+     */
+    void remove(Location stop) {
+        Integer count = counts.get(stop);
+        if (count == null)
+            throw new IllegalArgumentException("Not a stop: " + stop);
+        if (count > 1) {
+            counts.put(stop, count - 1);
+            return;
+        }
+        counts.remove(stop);
+        Integer node = nodes.remove(stop);
+        if (node != null) {
+            removed[node] = true;
+            nbRemoved++;
+        } else
+            pending.remove(stop);
+    }
+
+    /**
+     * @return The number of stops, a Location added several times counting
+     *         once.
+     */
+    int size() {
+        return counts.size();
+    }
+
+    boolean isEmpty() {
+        return counts.isEmpty();
+    }
+
+    /**
+     * @param from
+     *            The Location of the Shuttle.
+     * @return The nearest stop, null if there is none.
+     */
+    Location nearest(Location from) {
+        if (counts.isEmpty())
+            return null;
+        int size = counts.size();
+        if (size > LINEAR_SCAN ? pending.size() > size / 4 || nbRemoved > tree.length / 2
+                : tree.length > 0)
+            rebuild(size > LINEAR_SCAN);
+        best = null;
+        bestDistance = Integer.MAX_VALUE;
+        search(from, 0, tree.length, 0);
+        for (Location stop : pending)
+            consider(from, stop);
+        Location nearest = best;
+        best = null;
+        return nearest;
+    }
+
+    /**
+     * Put all the stops in the tree, or in the list if there are too few of
+     * them.
+     */
+    private void rebuild(boolean indexed) {
+        List<Location> stops = new ArrayList<>(counts.keySet());
+        pending.clear();
+        nodes.clear();
+        nbRemoved = 0;
+        if (!indexed) {
+            pending.addAll(stops);
+            tree = new Location[0];
+            removed = new boolean[0];
+            return;
+        }
+        tree = stops.toArray(new Location[stops.size()]);
+        removed = new boolean[tree.length];
+        build(0, tree.length, 0);
+        for (int i = 0; i < tree.length; i++)
+            nodes.put(tree[i], i);
+    }
+
+    private void build(int lo, int hi, int depth) {
+        if (hi - lo <= 1)
+            return;
+        Arrays.sort(tree, lo, hi, depth % 2 == 0 ? BY_X : BY_Y);
+        int mid = (lo + hi) >>> 1;
+        build(lo, mid, depth + 1);
+        build(mid + 1, hi, depth + 1);
+    }
+
+    /**
+     * Search the nodes of [lo, hi), the stops with the same coordinate as a
+     * node being on both of its sides.
+     */
+    private void search(Location from, int lo, int hi, int depth) {
+        if (lo >= hi)
+            return;
+        int mid = (lo + hi) >>> 1;
+        Location node = tree[mid];
+        if (!removed[mid])
+            consider(from, node);
+        int offset = depth % 2 == 0 ? from.getX() - node.getX() : from.getY() - node.getY();
+        if (offset <= 0) {
+            search(from, lo, mid, depth + 1);
+            // Every stop of the other side is at least -offset away.
+            if (-offset <= bestDistance)
+                search(from, mid + 1, hi, depth + 1);
+        } else {
+            search(from, mid + 1, hi, depth + 1);
+            if (offset <= bestDistance)
+                search(from, lo, mid, depth + 1);
+        }
+    }
+
+    private void consider(Location from, Location stop) {
+        int distance = from.distance(stop);
+        if (distance < bestDistance || distance == bestDistance && (stop.getX() < best.getX()
+                || stop.getX() == best.getX() && stop.getY() < best.getY())) {
+            best = stop;
+            bestDistance = distance;
+        }
+    }
+}
@@ -1,24 +1,41 @@
 package model;
 
 import java.awt.Image;
-import javax.swing.ImageIcon;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * A Taxi is able to carry a single passenger. A Taxi cannot receive requests
  * when it is headed for a pickup Location or when it is already carrying a
  * Passenger.
  * 
+ * Unless it pools the rides (see setPooling()): it then carries up to its
+ * capacity of passengers, dropped off in the order of its route. A Taxi
+ * carrying passengers can take a new one if it is not headed for a pickup
+ * already, and if none of its riders arrives more than maxDetour steps later
+ * than he was expected to when he boarded (whatever the number of passengers
+ * taken since): the Taxi picks him up first, then drops him off where it
+ * lengthens the route the least.
+ * 
  * @author David J. Barnes and Michael Kolling. Modified Bohao LI.
  * @version 2017.03.23
  */
 public class Taxi extends Vehicle implements DrawableItem {
 
-    private Passenger passenger;
-
-    // Maintain separate images for when the taxi is empty
-    // and full.
-    private Image emptyImage;
-    private Image passengerImage;
+    // The passengers aboard, in the order they are dropped off.
+    private final List<Passenger> riders;
+    // The time of the city each rider must arrive by: his arrival expected
+    // when he boarded, plus maxDetour.
+    private final List<Integer> deadlines;
+    // True while the taxi is headed for a pickup.
+    private boolean toPickup;
+    // Where the passenger to pick up is put in riders.
+    private int dropIndex;
+    private int capacity;
+    private int maxDetour;
+    // Where a free taxi is sent by the Rebalancer, null if it waits where it
+    // is.
+    private Location cruiseTarget;
 
     /**
      * Constructor for objects of class Taxi
@@ -32,9 +49,41 @@ public class Taxi extends Vehicle implements DrawableItem {
      */
     public Taxi(TaxiCompany company, Location location, String id) {
         super(company, location, id);
-        // Load the two images.
-        emptyImage = new ImageIcon(getClass().getResource("/images/taxi.jpg")).getImage();
-        passengerImage = new ImageIcon(getClass().getResource("/images/taxi+person.jpg")).getImage();
+        riders = new ArrayList<>();
+        deadlines = new ArrayList<>();
+        capacity = 1;
+    }
+
+    /**
+     * Pool the rides: carry up to capacity passengers, a new passenger making
+     * none of the riders arrive more than maxDetour steps later.
+     * 
+     * @param capacity
+     *            The number of passengers, 1 not to pool the rides.
+     * @param maxDetour
+     *            The number of steps a rider may be delayed by a new
+     *            passenger.
+     * @throws IllegalArgumentException
+     *             If the capacity is not positive or the detour is negative.
+     * @throws IllegalStateException
+     *             If the taxi carries more passengers than the capacity.
+     */
+    public void setPooling(int capacity, int maxDetour) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        if (maxDetour < 0)
+            throw new IllegalArgumentException("Negative detour: " + maxDetour);
+        if (riders.size() + (toPickup ? 1 : 0) > capacity)
+            throw new IllegalStateException(this + " carries more than " + capacity + " passengers");
+        this.capacity = capacity;
+        this.maxDetour = maxDetour;
+    }
+
+    /**
+     * @return The number of steps a rider may be delayed by a new passenger.
+     */
+    public int getMaxDetour() {
+        return maxDetour;
     }
 
     /**
@@ -48,17 +97,21 @@ public class Taxi extends Vehicle implements DrawableItem {
             Location next = getLocation().nextLocation(target);
             setLocation(next);
             if (next.isEqualTo(target)) {
-                if (passenger != null) {
-                    notifyPassengerArrival(passenger);
-                    incrementNbSuccess();
+                if (!toPickup)
                     offloadPassenger();
-                } else {
+                else {
                     getCompany().getPassengerSource().decrementPassengersOnMap(1);
                     notifyPickupArrival();
                 }
             }
-        } else
+        } else {
+            if (cruiseTarget != null) {
+                setLocation(getLocation().nextLocation(cruiseTarget));
+                if (getLocation().isEqualTo(cruiseTarget))
+                    cruiseTarget = null;
+            }
             incrementIdleCount();
+        }
     }
 
     /**
@@ -67,25 +120,109 @@ public class Taxi extends Vehicle implements DrawableItem {
     @Override
     public void showStatus() {
         System.out.print("\t" + this);
-        if (passenger == null) {
+        if (riders.isEmpty()) {
             if (getTargetLocation() != null)
                 System.out.println(", On the way to pickup passenger");
+            else if (cruiseTarget != null)
+                System.out.println(", Idle, cruising to " + cruiseTarget);
             else
                 System.out.println(", Idle");
         } else
-            System.out.println(", Carrying passenger");
+            System.out.println(", Carrying " + (riders.size() == 1 ? "passenger" : riders.size() + " passengers")
+                    + (toPickup ? ", on the way to pickup passenger" : ""));
     }
 
     @Override
     public int getCapacity() {
-        return 1;
+        return capacity;
+    }
+
+    @Override
+    public int getNbAboard() {
+        return riders.size();
     }
 
     /**
      * @return Whether or not this taxi is free.
      */
     public boolean isFree() {
-        return getTargetLocation() == null && passenger == null;
+        return getTargetLocation() == null && riders.isEmpty();
+    }
+
+    /**
+     * Measure what taking a new passenger costs to a Taxi carrying passengers:
+     * it goes to the pickup first, then drops him off where the route is the
+     * shortest, without making a rider arrive more than maxDetour steps later
+     * than expected when he boarded.
+     * 
+     * @param passenger
+     *            The passenger requesting a pickup.
+     * @return The number of steps the route is lengthened by, -1 if the Taxi
+     *         cannot take the passenger (it is free, full, headed for a pickup
+     *         or the detour would be too long).
+     */
+    public int poolingCost(Passenger passenger) {
+        int index = bestDropIndex(passenger);
+        if (index < 0)
+            return -1;
+        return arrivals(passenger, index)[riders.size()] - arrivals(null, 0)[riders.size()];
+    }
+
+    /**
+     * @return Where the passenger is dropped off in riders, -1 if the Taxi
+     *         cannot take him.
+     */
+    private int bestDropIndex(Passenger passenger) {
+        if (riders.isEmpty() || toPickup || riders.size() >= capacity)
+            return -1;
+        int now = getCompany().getCity().getTime();
+        int best = -1;
+        int bestLength = Integer.MAX_VALUE;
+        for (int index = 0; index <= riders.size(); index++) {
+            int[] pooled = arrivals(passenger, index);
+            boolean late = false;
+            for (int i = 0; i < riders.size() && !late; i++)
+                late = now + pooled[i] > deadlines.get(i);
+            if (!late && pooled[riders.size()] < bestLength) {
+                best = index;
+                bestLength = pooled[riders.size()];
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Follow the route of the Taxi, the given passenger (if not null) being
+     * picked up first and dropped off before riders[index].
+     * 
+     * @return The number of steps before every rider arrives, then the length
+     *         of the route.
+     */
+    private int[] arrivals(Passenger passenger, int index) {
+        int[] arrivals = new int[riders.size() + 1];
+        Location at = getLocation();
+        int time = 0;
+        if (passenger != null) {
+            Location pickup = passenger.getPickupLocation();
+            // A pickup where the Taxi is still takes a step (see act()).
+            time += Math.max(1, at.distance(pickup));
+            at = pickup;
+        }
+        for (int i = 0; i <= riders.size(); i++) {
+            if (passenger != null && i == index) {
+                Location destination = passenger.getDestination();
+                time += at.distance(destination);
+                at = destination;
+            }
+            if (i < riders.size()) {
+                Location stop = riders.get(i).getDestination();
+                time += at.distance(stop);
+                at = stop;
+                arrivals[i] = time;
+            }
+        }
+        arrivals[riders.size()] = time;
+        return arrivals;
     }
 
     /**
@@ -94,9 +231,42 @@ public class Taxi extends Vehicle implements DrawableItem {
      * @location The pickup location.
      */
     public synchronized void setPickupLocation(Location location) {
+        cruiseTarget = null;
+        toPickup = true;
+        dropIndex = 0;
         setTargetLocation(location);
     }
 
+    /**
+     * Take a new passenger while carrying others, the pickup becoming the
+     * target location (see poolingCost()).
+     * 
+     * @param passenger
+     *            The passenger to pick up.
+     * @throws IllegalStateException
+     *             If the Taxi cannot take the passenger.
+     */
+    public void poolPickup(Passenger passenger) {
+        int index = bestDropIndex(passenger);
+        if (index < 0)
+            throw new IllegalStateException(this + " cannot take " + passenger);
+        toPickup = true;
+        dropIndex = index;
+        setTargetLocation(passenger.getPickupLocation());
+    }
+
+    /**
+     * Send the taxi toward the given Location while it waits for a pickup. The
+     * taxi stays free.
+     * 
+     * @param location
+     *            Where to cruise to.
+     */
+    public void cruiseTo(Location location) {
+        if (isFree())
+            cruiseTarget = location;
+    }
+
     /**
      * Receive a passenger. Set their destination as the target location.
      * 
@@ -104,16 +274,36 @@ public class Taxi extends Vehicle implements DrawableItem {
      *            The passenger.
      */
     public void pickup(Passenger passenger) {
-        this.passenger = passenger;
-        setTargetLocation(passenger.getDestination());
+        riders.add(dropIndex, passenger);
+        deadlines.add(dropIndex, getCompany().getCity().getTime() + arrivals(null, 0)[dropIndex] + maxDetour);
+        toPickup = false;
+        // A rider going to the pickup is dropped off right away, as the
+        // arrival times of poolingCost() assume.
+        if (riders.get(0).isGoingTo(getLocation()))
+            offloadPassenger();
+        else
+            setTargetLocation(riders.get(0).getDestination());
     }
 
     /**
-     * Offload the passenger.
+     * Offload the passengers whose destination is the current location, then
+     * head for the destination of the next one, if any.
      */
     public void offloadPassenger() {
-        passenger = null;
-        clearTargetLocation();
+        for (int i = 0; i < riders.size();) {
+            Passenger rider = riders.get(i);
+            if (rider.isGoingTo(getLocation())) {
+                riders.remove(i);
+                deadlines.remove(i);
+                notifyPassengerArrival(rider);
+                incrementNbSuccess();
+            } else
+                i++;
+        }
+        if (riders.isEmpty())
+            clearTargetLocation();
+        else
+            setTargetLocation(riders.get(0).getDestination());
     }
 
     /**
@@ -122,7 +312,8 @@ public class Taxi extends Vehicle implements DrawableItem {
      */
     @Override
     public Image getImage() {
-        return (passenger != null) ? passengerImage : emptyImage;
+        // The images are shared by all the taxis.
+        return !riders.isEmpty() ? Sprites.TAXI_WITH_PERSON : Sprites.TAXI;
     }
 
     /**
@@ -1,17 +1,23 @@
 package model;
 
-import java.util.HashMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashSet;
-import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
-
 import java.util.Random;
 import java.util.Set;
 
+import metrics.AbandonmentEvent;
+import metrics.Counter;
+import metrics.DispatchEvent;
+import metrics.MetricsRegistry;
+import metrics.PickupArrivalEvent;
+import metrics.Timer;
+
 /**
  * Model the operation of a taxi company, operating different types of vehicle.
  * 
@@ -21,38 +27,6 @@ import java.util.Set;
  */
 public class TaxiCompany {
 
-    private static final class Pair<L, R> {
-        private final L left;
-        private final R right;
-
-        public Pair(L left, R right) {
-            this.left = left;
-            this.right = right;
-        }
-
-        public L getLeft() {
-            return left;
-        }
-
-        public R getRight() {
-            return right;
-        }
-
-        @Override
-        public int hashCode() {
-            return left.hashCode() ^ right.hashCode();
-        }
-
-        @Override
-        public boolean equals(Object o) {
-            if (!(o instanceof Pair))
-                return false;
-            @SuppressWarnings("unchecked")
-            Pair<L, R> pairo = (Pair<L, R>) o;
-            return this.left.equals(pairo.getLeft()) && this.right.equals(pairo.getRight());
-        }
-    }
-
     private final int NUMBER_OF_TAXIS;
     private final int NUMBER_OF_SHUTTLES;
 
@@ -62,51 +36,61 @@ public class TaxiCompany {
     private City city;
 
     /**
-     * The associations between Taxis and the Passengers they are to pick up.
-     * Use Hashtable because it is a synchronized structure. We need a
-     * synchronized structure because when we simulate a dial (with a IHM
-     * keybord), Two threas may want toaccess the HashTable at the same moment,
-     * no collision will appear because Hashtable is a synchronized structure.
-     * (Collision are potential if we use a HashMap).
+     * The associations between Taxis and the Passengers they are to pick up,
+     * indexed by the index of the Taxi in the company (so no hashing and no
+     * locking is needed to find the Passenger of a Taxi). The indexes are dense
+     * among the vehicles of the company, so the arrays are as long as the
+     * fleet of the company, whatever the size of the fleet of the City.
      * 
-     * Well, this kind of collision will never happen for the associations
-     * between Shuttles and the Passengers, because we don't do dialing shuttle
-     * simulation in our program.
+     * When we simulate a dial (with a IHM keybord), the Swing thread writes in
+     * this array too, but only in the cell of a free Taxi that the simulation
+     * thread is not working on (and writing a reference is atomic).
      */
-    private Hashtable<Vehicle, Passenger> assignments_taxis;
+    private Passenger[] assignments_taxis;
     /**
-     * Attention: now I explain why I did not override the equals() method in
-     * Location class: because we want the default behavior of equals() in
-     * Object class, that is --> two objects are equal if and only if they are
-     * exactly the same object in the memory.
-     * 
-     * What if we provide our own version of equals (that considers two
-     * Locations to be equal if they have the same abscisses and ordinates) in
-     * Location class? What will happen?
-     * 
-     * Well, something terrible will happen, here's the story: every time before
-     * the HashMap put a pair(key, value) into it, it will first transform the
-     * key into an integer value (using the internal hash function inside the
-     * HashMap class (this method will also internally call the hashCode()
-     * fucntion of the key object(here Location object)), if we override the
-     * equals() method inside Location (that consider two Locations to be equal
-     * if they have the same abscisses and ordinates), before we put this pair,
-     * if there is already a key that have the same hash code as the key of the
-     * pair that we are going to put in the HashMap, then HashMap will
-     * internally call equals() method of Location, at this time, it finds that
-     * the two Locations are equals, then the HashMap will replace the old value
-     * with the new value, but this is not what we want! And you can imagin that
-     * the default version of equals() provided by the Object class is exactly
-     * what we want. We should know that two passengers at the same Location are
-     * two distinct Passengers! (even if we can't see it on the map)
-     * 
-     * If you are still confused after this explanation, you can contact the
-     * author at: bohao.li.20160103@efrei.net for furthur details.
+     * The requests received by each Shuttle, indexed by the index of the
+     * Shuttle. A cell is null if the Shuttle never received a request.
      */
-    private Map<Location, Pair<Passenger, Shuttle>> assignments_shuttles;
+    private List<Passenger>[] assignments_shuttles;
+    // The next index never used.
+    private int nextIndex;
+
+    /**
+     * The requests no vehicle could take yet, waiting for a Taxi or a Shuttle
+     * to become free. They are in the order of the requests, which is also the
+     * order of their deadlines (a passenger gives up WAINTING_LIMIT steps after
+     * his request), so the expired requests are always at the head.
+     */
+    private ArrayDeque<Passenger> taxiBacklog;
+    private ArrayDeque<Passenger> shuttleBacklog;
+    // Set when a Taxi becomes free (or a Shuttle has room for more persons),
+    // the backlog is only retried then.
+    private boolean taxiFreed;
+    private boolean shuttleFreed;
 
     private PassengerSource passengerSource;
 
+    // Time spent in requestPickup(), shared by all the companies.
+    private final Timer requestTimer;
+
+    // Lifecycle statistics of the passengers of the company.
+    private TripStatistics statistics;
+
+    // Distance covered by the Taxis to reach their passengers.
+    private long pickupDistance;
+    private int nbTaxiPickups;
+    // Number of steps a request takes to reach the company when the calls
+    // are messages (see Messenger).
+    private int dispatchLatency;
+    // True if a group no Shuttle can take is split over several Shuttles.
+    private boolean groupSplitting;
+    private final Counter splitGroups;
+    // True if the Taxis pool the rides, the Taxi sent to a passenger being
+    // found by the TaxiGrid.
+    private boolean taxiPooling;
+    private final TaxiGrid taxiGrid;
+    private final Counter pooledRides;
+
     /**
      * @param city
      *            The city.
@@ -122,10 +106,15 @@ public class TaxiCompany {
         NUMBER_OF_SHUTTLES = nb_shuttles;
         vehicles = new LinkedList<>();
 
-        assignments_taxis = new Hashtable<>();
-        // Here we did not use Hashtable because synchronization is not needed
-        // for Shuttles.
-        assignments_shuttles = new HashMap<>();
+        assignments_taxis = new Passenger[0];
+        assignments_shuttles = newRequestLists(0);
+        taxiBacklog = new ArrayDeque<>();
+        shuttleBacklog = new ArrayDeque<>();
+        statistics = new TripStatistics();
+        requestTimer = MetricsRegistry.getDefault().timer("company.requestPickup");
+        splitGroups = MetricsRegistry.getDefault().counter("company.splitGroups");
+        pooledRides = MetricsRegistry.getDefault().counter("company.pooledRides");
+        taxiGrid = new TaxiGrid(this, city, vehicles);
         setupVehicles();
     }
 
@@ -164,6 +153,73 @@ public class TaxiCompany {
         return city;
     }
 
+    /**
+     * @return The number of steps a request takes to reach the company.
+     */
+    public int getDispatchLatency() {
+        return dispatchLatency;
+    }
+
+    /**
+     * Delay the requests passed to the company by the PassengerSource. The
+     * delay only applies when the calls between the actors are messages (see
+     * Messenger), the requests are handled right away otherwise.
+     * 
+     * @param dispatchLatency
+     *            The number of steps a request takes to reach the company.
+     */
+    public void setDispatchLatency(int dispatchLatency) {
+        if (dispatchLatency < 0)
+            throw new IllegalArgumentException("Negative latency: " + dispatchLatency);
+        this.dispatchLatency = dispatchLatency;
+    }
+
+    /**
+     * @return True if a group no Shuttle can take is split over several
+     *         Shuttles.
+     */
+    public boolean isGroupSplitting() {
+        return groupSplitting;
+    }
+
+    /**
+     * Split the groups no Shuttle can take over several Shuttles having seats
+     * left, instead of keeping them in the backlog until a Shuttle can take
+     * the whole group.
+     * 
+     * @param groupSplitting
+     *            True to split the groups.
+     */
+    public void setGroupSplitting(boolean groupSplitting) {
+        this.groupSplitting = groupSplitting;
+    }
+
+    /**
+     * @return True if the Taxis pool the rides.
+     */
+    public boolean isTaxiPooling() {
+        return taxiPooling;
+    }
+
+    /**
+     * Let the Taxis carry several passengers (see Taxi.setPooling()): a
+     * passenger is then sent the nearest Taxi among the free Taxis and the
+     * Taxis carrying passengers that none of them would arrive more than
+     * maxDetour steps later because of him, found by a TaxiGrid.
+     * 
+     * @param capacity
+     *            The number of passengers of a Taxi, 1 not to pool the rides.
+     * @param maxDetour
+     *            The number of steps a rider may be delayed by a new
+     *            passenger.
+     */
+    public void setTaxiPooling(int capacity, int maxDetour) {
+        for (Vehicle v : vehicles)
+            if (v instanceof Taxi)
+                ((Taxi) v).setPooling(capacity, maxDetour);
+        taxiPooling = capacity > 1;
+    }
+
     /**
      * Request a pickup for the given passenger.
      * 
@@ -172,20 +228,258 @@ public class TaxiCompany {
      * @return Whether a free vehicle is available.
      */
     public boolean requestPickup(Passenger passenger) {
-        Vehicle vehicle = scheduleVehicle(passenger);
+        long start = requestTimer.start();
+        try {
+            statistics.recordRequest(passenger);
+            return assign(passenger);
+        } finally {
+            requestTimer.stop(start);
+        }
+    }
+
+    /**
+     * Find the vehicle the company would send to the given passenger, without
+     * assigning it. Called by the DispatchMarket, possibly from another
+     * thread while the simulation thread waits for the offers: the company is
+     * only read, prepareOffers() having been called by the simulation thread
+     * before.
+     * 
+     * @param passenger
+     *            The passenger requesting a pickup.
+     * @return The offer of the company, or null if no vehicle is available.
+     */
+    public Offer makeOffer(Passenger passenger) {
+        return scheduleVehicle(passenger);
+    }
+
+    /**
+     * Bring up to date what makeOffer() reads besides the vehicles (the
+     * TaxiGrid of the pooled Taxis). Called by the simulation thread, while no
+     * offer of the company is being made.
+     */
+    void prepareOffers() {
+        if (taxiPooling)
+            taxiGrid.update();
+    }
+
+    /**
+     * The offer of the company won on the DispatchMarket: the vehicle offered
+     * is assigned to the passenger.
+     * 
+     * @param offer
+     *            The offer made by makeOffer() for the passenger.
+     * @param passenger
+     *            The passenger requesting a pickup.
+     */
+    public void acceptOffer(Offer offer, Passenger passenger) {
+        if (offer.getCompany() != this)
+            throw new IllegalArgumentException(offer + " is not an offer of " + companyName);
+        long start = requestTimer.start();
+        try {
+            statistics.recordRequest(passenger);
+            assign(passenger, offer.getVehicle(), offer.getNbCandidates());
+        } finally {
+            requestTimer.stop(start);
+        }
+    }
+
+    /**
+     * Assign a free vehicle, if any, to the given passenger.
+     * 
+     * @param passenger
+     *            The passenger requesting a pickup.
+     * @return Whether a free vehicle is available.
+     */
+    private boolean assign(Passenger passenger) {
+        prepareOffers();
+        Offer offer = scheduleVehicle(passenger);
+        if (offer == null && groupSplitting && passenger instanceof PassengerGroup
+                && split((PassengerGroup) passenger))
+            return true;
+        if (offer == null)
+            return assign(passenger, null, 0);
+        return assign(passenger, offer.getVehicle(), offer.getNbCandidates());
+    }
+
+    /**
+     * Split a group no Shuttle can take over Shuttles having seats left near
+     * its pickup: the candidates are the nearest Shuttles having enough seats
+     * between them, and the fewest of them are taken, the ones with the most
+     * seats left first (the nearest first for the same number of seats). The
+     * parts split off the group are put on the map right away, the group
+     * itself keeping the persons of the first Shuttle.
+     * 
+     * @param group
+     *            The group requesting a pickup.
+     * @return False if the Shuttles do not have enough seats left, nothing is
+     *         split then.
+     */
+    private boolean split(PassengerGroup group) {
+        List<Shuttle> shuttles = new ArrayList<>();
+        int seats = 0;
+        for (Vehicle v : vehicles)
+            if (v instanceof Shuttle && ((Shuttle) v).getSpareCapacity() > 0) {
+                shuttles.add((Shuttle) v);
+                seats += ((Shuttle) v).getSpareCapacity();
+            }
+        if (seats < group.getNb_persons())
+            return false;
+        Location pickup = group.getPickupLocation();
+        Comparator<Shuttle> byDistance = Comparator.comparingInt(shuttle -> shuttle.getLocation().distance(pickup));
+        shuttles.sort(byDistance);
+        // The nearest Shuttles having enough seats between them.
+        seats = 0;
+        int candidates = 0;
+        while (seats < group.getNb_persons())
+            seats += shuttles.get(candidates++).getSpareCapacity();
+        shuttles = shuttles.subList(0, candidates);
+        shuttles.sort(Comparator.comparingInt(Shuttle::getSpareCapacity).reversed().thenComparing(byDistance));
+        int remaining = group.getNb_persons() - shuttles.get(0).getSpareCapacity();
+        for (int i = 1; remaining > 0; i++) {
+            int nb = Math.min(remaining, shuttles.get(i).getSpareCapacity());
+            Passenger part = group.split(nb, passengerSource.getPassengerPool());
+            remaining -= nb;
+            assign(part, shuttles.get(i), candidates, false);
+            passengerSource.passengerServed(part);
+        }
+        splitGroups.increment();
+        return assign(group, shuttles.get(0), candidates);
+    }
+
+    /**
+     * Assign the given vehicle to the given passenger, who made the request
+     * (see below).
+     */
+    private boolean assign(Passenger passenger, Vehicle vehicle, int candidates) {
+        return assign(passenger, vehicle, candidates, true);
+    }
+
+    /**
+     * Assign the given vehicle to the given passenger.
+     * 
+     * @param passenger
+     *            The passenger requesting a pickup.
+     * @param vehicle
+     *            The vehicle found by scheduleVehicle(), or null.
+     * @param candidates
+     *            The number of vehicles found able to take the passenger.
+     * @param requested
+     *            False for a part split off a group: its request is the one of
+     *            the group, so is its assignment in the TripStatistics.
+     * @return Whether a vehicle is assigned.
+     */
+    private boolean assign(Passenger passenger, Vehicle vehicle, int candidates, boolean requested) {
+        DispatchEvent event = new DispatchEvent();
+        if (event.isEnabled()) {
+            event.tick = city.getTime();
+            event.company = companyName;
+            event.choice = passenger.getChoice().name();
+            event.persons = passenger.getNb_persons();
+            event.assigned = vehicle != null;
+            event.candidates = candidates;
+            if (vehicle != null) {
+                event.vehicleId = vehicle.getID();
+                event.distance = vehicle.getLocation().distance(passenger.getPickupLocation());
+            }
+            event.commit();
+        }
         if (vehicle != null) {
+            passenger.markAssigned(city.getTime());
+            if (requested)
+                statistics.recordAssignment(passenger);
             if (vehicle instanceof Taxi) {
-                assignments_taxis.put(vehicle, passenger);
-                vehicle.setPickupLocation(passenger.getPickupLocation());
+                assignments_taxis[vehicle.getIndex()] = passenger;
+                pickupDistance += vehicle.getLocation().distance(passenger.getPickupLocation());
+                nbTaxiPickups++;
+                if (vehicle.isFree())
+                    vehicle.setPickupLocation(passenger.getPickupLocation());
+                else {
+                    ((Taxi) vehicle).poolPickup(passenger);
+                    pooledRides.increment();
+                }
             } else {
                 ((Shuttle) vehicle).receiveRequest(passenger);
-                assignments_shuttles.put(passenger.getLocation(), new Pair<>(passenger, (Shuttle) vehicle));
+                assignments_shuttles[vehicle.getIndex()].add(passenger);
             }
             return true;
         } else
             return false;
     }
 
+    /**
+     * Keep the request of a passenger no vehicle could take, until a vehicle
+     * becomes free or the passenger gives up.
+     * 
+     * @param passenger
+     *            The passenger whose request failed.
+     */
+    public void defer(Passenger passenger) {
+        if (passenger.getChoice() == Passenger.Choice.TAXI)
+            taxiBacklog.addLast(passenger);
+        else
+            shuttleBacklog.addLast(passenger);
+    }
+
+    /**
+     * A vehicle of the company has become free, or a Shuttle has room for more
+     * persons than before, the backlog will be retried.
+     * Nothing is assigned right away: the vehicle may be in the middle of its
+     * own iterations.
+     */
+    void vehicleFreed(Vehicle vehicle) {
+        if (vehicle instanceof Taxi)
+            taxiFreed = true;
+        else
+            shuttleFreed = true;
+    }
+
+    /**
+     * Drop the requests of the backlog whose passengers have given up, then, if
+     * a vehicle has become free since the last call, retry the others in the
+     * order of their deadlines. Called once per step by the PassengerSource.
+     */
+    public void dispatchBacklog() {
+        // A Taxi pooling the rides can take a passenger without being free.
+        dispatchBacklog(taxiBacklog, taxiFreed || taxiPooling);
+        taxiFreed = false;
+        dispatchBacklog(shuttleBacklog, shuttleFreed);
+        shuttleFreed = false;
+    }
+
+    private void dispatchBacklog(ArrayDeque<Passenger> backlog, boolean retry) {
+        int now = city.getTime();
+        Passenger passenger;
+        while ((passenger = backlog.peekFirst()) != null
+                && now - passenger.getRequestTime() >= Passenger.WAINTING_LIMIT) {
+            backlog.pollFirst();
+            passenger.markAbandoned(now);
+            statistics.recordAbandonment(passenger);
+            passengerSource.passengerMissed(passenger);
+        }
+        if (!retry)
+            return;
+        for (Iterator<Passenger> it = backlog.iterator(); it.hasNext();) {
+            passenger = it.next();
+            // Set before the assignment, for the parts of a split group.
+            passenger.setWaitingTime(now - passenger.getRequestTime());
+            if (assign(passenger)) {
+                it.remove();
+                passengerSource.passengerServed(passenger);
+            } else if (!(passenger instanceof PassengerGroup)
+                    && !(taxiPooling && passenger.getChoice() == Passenger.Choice.TAXI))
+                // No vehicle left for a single passenger, nor for a group (a
+                // pooling Taxi may still take a passenger going elsewhere).
+                break;
+        }
+    }
+
+    /**
+     * @return The number of requests waiting for a vehicle to become free.
+     */
+    public int getBacklogSize() {
+        return taxiBacklog.size() + shuttleBacklog.size();
+    }
+
     /**
      * A vehicle has arrived at a pickup point (where a passenger is supposed to
      * be waiting).
@@ -195,79 +489,114 @@ public class TaxiCompany {
      */
     public void arrivedAtPickup(Vehicle vehicle) {
         if (vehicle instanceof Taxi) {
-            Passenger passenger = (Passenger) assignments_taxis.remove(vehicle);
+            Passenger passenger = assignments_taxis[vehicle.getIndex()];
+            assignments_taxis[vehicle.getIndex()] = null;
             city.removeItem(passenger);
+            passenger.markPickedUp(city.getTime());
+            statistics.recordPickup(passenger);
+            commitPickupArrival(vehicle, passenger);
             vehicle.pickup(passenger);
+            if (city.getJournal() != null)
+                city.getJournal().boarded(vehicle, passenger);
         } else {
-            Location key;
-            Pair<Passenger, Shuttle> value;
-            Shuttle shuttle;
+            Shuttle shuttle = (Shuttle) vehicle;
             Passenger passenger;
 
-            for (Iterator<Map.Entry<Location, Pair<Passenger, Shuttle>>> it = assignments_shuttles.entrySet()
-                    .iterator(); it.hasNext();) {
-                Map.Entry<Location, Pair<Passenger, Shuttle>> entry = it.next();
-                key = entry.getKey();
-                value = entry.getValue();
-                passenger = value.getLeft();
-                shuttle = value.getRight();
+            for (Iterator<Passenger> it = assignments_shuttles[shuttle.getIndex()].iterator(); it.hasNext();) {
+                passenger = it.next();
 
-                if (shuttle.getLocation().isEqualTo(key)) {
-                    shuttle.removeFromRequestList(key);
+                // The Shuttle removes the request from its own list (we are
+                // called while it iterates over that list).
+                if (passenger.isAt(shuttle.getLocation())) {
                     it.remove();
                     city.removeItem(passenger);
+                    passenger.markPickedUp(city.getTime());
+                    statistics.recordPickup(passenger);
+                    commitPickupArrival(vehicle, passenger);
                     vehicle.pickup(passenger);
+                    if (city.getJournal() != null)
+                        city.getJournal().boarded(vehicle, passenger);
                 }
             }
 
         }
     }
 
-    public String handleDial(String telephone, Passenger passenger) {
-        for (Vehicle v : vehicles)
-            if (v instanceof Taxi) {
-                if (v.getID().equals(telephone))
-                    if (!v.isFree())
-                        return "isBusy";
-                    else {
-                        assignments_taxis.put(v, passenger);
-                        v.setPickupLocation(passenger.getPickupLocation());
-                        return "success";
-                    }
-            }
-        return "failed";
+    /**
+     * Emit a PickupArrivalEvent if the Flight Recorder records it.
+     */
+    private void commitPickupArrival(Vehicle vehicle, Passenger passenger) {
+        PickupArrivalEvent event = new PickupArrivalEvent();
+        if (event.isEnabled()) {
+            event.tick = city.getTime();
+            event.vehicleId = vehicle.getID();
+            event.persons = passenger.getNb_persons();
+            event.commit();
+        }
+    }
+
+    /**
+     * Handle the dial of a user to one of the Taxis of the current
+     * TaxiCompany.
+     * 
+     * @param vehicle
+     *            The Vehicle dialed, found in the VehicleRegistry of the City.
+     * @param passenger
+     *            The Passenger who dials.
+     * @return "success" if the Taxi accepts the Passenger, "isBusy" if the Taxi
+     *         is busy, "failed" if the Vehicle is not a Taxi of the current
+     *         TaxiCompany.
+     */
+    public String handleDial(Vehicle vehicle, Passenger passenger) {
+        if (!(vehicle instanceof Taxi) || vehicle.getCompany() != this)
+            return "failed";
+        statistics.recordRequest(passenger);
+        if (!vehicle.isFree())
+            return "isBusy";
+        passenger.markAssigned(city.getTime());
+        statistics.recordAssignment(passenger);
+        assignments_taxis[vehicle.getIndex()] = passenger;
+        vehicle.setPickupLocation(passenger.getPickupLocation());
+        return "success";
     }
 
     public void checkWaitingTime() {
         Location key;
-        Pair<Passenger, Shuttle> value;
         Shuttle shuttle;
         Passenger passenger;
 
-        for (Iterator<Map.Entry<Location, Pair<Passenger, Shuttle>>> it = assignments_shuttles.entrySet().iterator(); it
-                .hasNext();) {
-            Map.Entry<Location, Pair<Passenger, Shuttle>> entry = it.next();
-            (shuttle = (value = entry.getValue()).getRight()).checkWaitingTime();
-
-            if ((passenger = value.getLeft()).waitingTooLong())
-                if (!shuttle.getTargetLocation().isEqualTo(key = entry.getKey())) {
-                    System.out
-                            .println(passenger + " waiting too long for a pickup that " + "he disappeared on the map");
-                    shuttle.removeFromRequestList(key);
-                    it.remove();
-                    city.removeItem(passenger);
-                    passengerSource.decrementPassengersOnMap(passenger.getNb_persons());
-                }
+        for (Vehicle v : vehicles) {
+            if (!(v instanceof Shuttle))
+                continue;
+            shuttle = (Shuttle) v;
+            for (Iterator<Passenger> it = assignments_shuttles[shuttle.getIndex()].iterator(); it.hasNext();) {
+                passenger = it.next();
+                shuttle.checkWaitingTime();
+
+                if (passenger.waitingTooLong())
+                    if (!shuttle.getTargetLocation().isEqualTo(key = passenger.getLocation())) {
+                        System.out.println(
+                                passenger + " waiting too long for a pickup that " + "he disappeared on the map");
+                        shuttle.removeFromRequestList(key);
+                        it.remove();
+                        city.removeItem(passenger);
+                        passengerSource.decrementPassengersOnMap(passenger.getNb_persons());
+                        passengerAbandoned(passenger, shuttle, false);
+                    }
+            }
         }
     }
 
     public void incrementWaitingTime() {
-        for (Entry<Location, Pair<Passenger, Shuttle>> entry : assignments_shuttles.entrySet())
-            entry.getValue().getLeft().incrementWaitingTime();
+        for (Vehicle v : vehicles)
+            if (v instanceof Shuttle)
+                for (Passenger passenger : assignments_shuttles[v.getIndex()])
+                    passenger.incrementWaitingTime();
     }
 
     /**
-     * A vehicle has arrived at a passenger's destination.
+     * A vehicle has arrived at a passenger's destination. The trip of the
+     * passenger is over, he is recycled.
      * 
      * @param The
      *            vehicle at the destination.
@@ -275,6 +604,60 @@ public class TaxiCompany {
      *            passenger being dropped off.
      */
     public void arrivedAtDestination(Vehicle vehicle, Passenger passenger) {
+        passenger.markDroppedOff(city.getTime());
+        statistics.recordDropOff(passenger);
+        if (city.getJournal() != null)
+            city.getJournal().alighted(vehicle, passenger);
+        passengerSource.getPassengerPool().release(passenger);
+    }
+
+    /**
+     * A passenger gives up, either on the map waiting for his pickup or in a
+     * Shuttle. He is recycled, nothing may refer to him anymore.
+     * 
+     * @param passenger
+     *            The passenger giving up.
+     * @param vehicle
+     *            The vehicle the passenger was waiting for, or was in.
+     * @param inVehicle
+     *            True if the passenger gets off the vehicle.
+     */
+    public void passengerAbandoned(Passenger passenger, Vehicle vehicle, boolean inVehicle) {
+        passenger.markAbandoned(city.getTime());
+        statistics.recordAbandonment(passenger);
+        AbandonmentEvent event = new AbandonmentEvent();
+        if (event.isEnabled()) {
+            event.tick = city.getTime();
+            event.vehicleId = vehicle.getID();
+            event.persons = passenger.getNb_persons();
+            event.inVehicle = inVehicle;
+            event.commit();
+        }
+        if (inVehicle && city.getJournal() != null)
+            city.getJournal().alighted(vehicle, passenger);
+        passengerSource.getPassengerPool().release(passenger);
+    }
+
+    /**
+     * @return The lifecycle statistics of the passengers of the company.
+     */
+    public TripStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * @return The name of the company.
+     */
+    public String getName() {
+        return companyName;
+    }
+
+    /**
+     * @return The average distance between a Taxi and the Passenger it is sent
+     *         to, 0 if no Taxi was sent yet.
+     */
+    public double getAveragePickupDistance() {
+        return nbTaxiPickups == 0 ? 0 : pickupDistance / (double) nbTaxiPickups;
     }
 
     /**
@@ -285,11 +668,15 @@ public class TaxiCompany {
     }
 
     /**
-     * Find a free vehicle, if any.
+     * Find a free vehicle, if any. Only reads the company, so that the
+     * DispatchMarket can call it from another thread (see makeOffer()).
      * 
-     * @return A free vehicle, or null if there is none.
+     * @return The offer of a free vehicle, with the number of vehicles found
+     *         able to take the passenger (the search of a Shuttle for a single
+     *         passenger stops at the first one), or null if there is none.
      */
-    private Vehicle scheduleVehicle(Passenger p) {
+    private Offer scheduleVehicle(Passenger p) {
+        int nbCandidates = 0;
 
         if (p.getChoice() == Passenger.Choice.SHUTTLE) {
 
@@ -300,21 +687,26 @@ public class TaxiCompany {
                 for (Vehicle v : vehicles)
                     if (v instanceof Shuttle)
                         if (((Shuttle) v).canReceiveGroupRequest((PassengerGroup) p)) {
+                            nbCandidates++;
                             if ((temp = ((Shuttle) v).restCapacity()) > restCapacityMax) {
                                 restCapacityMax = temp;
                                 result = v;
                             }
                         }
-                return result;
+                return offer(p, result, nbCandidates);
             } else {
                 for (Vehicle v : vehicles)
                     if (v instanceof Shuttle)
-                        if (v.isFree())
-                            return v;
+                        if (v.isFree()) {
+                            nbCandidates++;
+                            return offer(p, v, nbCandidates);
+                        }
             }
 
             return null;
 
+        } else if (taxiPooling) {
+            return taxiGrid.nearest(p);
         } else {
             Set<Vehicle> freeVehicles = new HashSet<>();
 
@@ -323,10 +715,11 @@ public class TaxiCompany {
                     if (v.isFree())
                         freeVehicles.add(v);
 
+            nbCandidates = freeVehicles.size();
             if (freeVehicles.isEmpty())
                 return null;
             if (freeVehicles.size() == 1)
-                return freeVehicles.toArray(new Vehicle[1])[0];
+                return offer(p, freeVehicles.toArray(new Vehicle[1])[0], nbCandidates);
 
             Vehicle result = null;
             int min = new Location(0, 0).distance(new Location(city.getWidth(), city.getHeight())) + 1;
@@ -338,52 +731,73 @@ public class TaxiCompany {
                     result = v;
                 }
             }
-            return result;
+            return offer(p, result, nbCandidates);
         }
     }
 
+    /**
+     * @return The offer of the given vehicle to the passenger, null if the
+     *         vehicle is null.
+     */
+    private Offer offer(Passenger passenger, Vehicle vehicle, int nbCandidates) {
+        if (vehicle == null)
+            return null;
+        double restCapacity = vehicle instanceof Shuttle ? ((Shuttle) vehicle).restCapacity() : 1;
+        return new Offer(this, vehicle, vehicle.getLocation().distance(passenger.getPickupLocation()), restCapacity,
+                nbCandidates);
+    }
+
     /**
      * Set up this company's vehicles. The optimum number of vehicles should be
      * determined by analysis of the data gathered from the simulation.
      *
-     * Vehicles start at random locations.
+     * Vehicles start at random free locations, a Vehicle is only built once its
+     * location is chosen.
      */
     private void setupVehicles() {
-        int cityWidth = city.getWidth();
-        int cityHeight = city.getHeight();
+        VehicleRegistry registry = city.getVehicleRegistry();
         Random rand = new Random(12345);
 
-        for (int i = 0; i < NUMBER_OF_TAXIS; i++) {
-            Taxi taxi = null;
-            boolean flag = false;
-            do {
-                flag = false;
-                taxi = new Taxi(this, new Location(rand.nextInt(cityWidth), rand.nextInt(cityHeight)),
-                        "T-" + Math.abs((i + 1 + hashCode())));
-
-                for (Item item : city.getItems())
-                    if (item.getLocation().isEqualTo(taxi.getLocation()))
-                        flag = true;
-            } while (flag);
-            vehicles.add(taxi);
-            city.addItem(taxi);
-        }
+        for (int i = 0; i < NUMBER_OF_TAXIS; i++)
+            addVehicle(new Taxi(this, city.reserveFreeLocation(rand), registry.newID("T-")));
+
+        for (int i = 0; i < NUMBER_OF_SHUTTLES; i++)
+            addVehicle(new Shuttle(this, city.reserveFreeLocation(rand), registry.newID("S-"), rand));
+    }
 
-        for (int i = 0; i < NUMBER_OF_SHUTTLES; i++) {
-            Shuttle shuttle = null;
-            boolean flag = false;
-            do {
-                flag = false;
-                shuttle = new Shuttle(this, new Location(rand.nextInt(cityWidth), rand.nextInt(cityHeight)),
-                        "S-" + Math.abs((i + 1 + hashCode())));
-
-                for (Item item : city.getItems())
-                    if (item.getLocation().isEqualTo(shuttle.getLocation()))
-                        flag = true;
-            } while (flag);
-            vehicles.add(shuttle);
-            city.addItem(shuttle);
+    /**
+     * Put a new Vehicle in service: it is operated by the current TaxiCompany,
+     * put on the map and registered in the VehicleRegistry of the City.
+     * 
+     * @param vehicle
+     *            The Vehicle to put in service.
+     */
+    public void addVehicle(Vehicle vehicle) {
+        if (vehicle.getCompany() != this)
+            throw new IllegalArgumentException(vehicle + " does not belong to " + this);
+        city.getVehicleRegistry().register(vehicle);
+        int index = nextIndex++;
+        vehicle.setIndex(index);
+        if (index >= assignments_taxis.length) {
+            int length = Math.max(index + 1, assignments_taxis.length * 2);
+            assignments_taxis = Arrays.copyOf(assignments_taxis, length);
+            assignments_shuttles = Arrays.copyOf(assignments_shuttles, length);
         }
+        assignments_taxis[index] = null;
+        assignments_shuttles[index] = vehicle instanceof Shuttle ? new ArrayList<Passenger>() : null;
+        vehicles.add(vehicle);
+        city.addItem((Item) vehicle);
+    }
+
+    /**
+     * @param length
+     *            The length of the array.
+     * @return An array of lists of requests, indexed by the index of the
+     *         Shuttles.
+     */
+    @SuppressWarnings("unchecked")
+    private static List<Passenger>[] newRequestLists(int length) {
+        return (List<Passenger>[]) new List<?>[length];
     }
 
     @Override
@@ -0,0 +1,148 @@
+package model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The Taxis of a company bucketed by their Location in square cells, so that
+ * the Taxi sent to a passenger is found among the Taxis near his pickup
+ * instead of all the Taxis (see TaxiCompany.setTaxiPooling()).
+ *
+ * The Taxis only move when they act, so the cells are filled once per step,
+ * by update(), called by the simulation thread before the searches (which
+ * only read the cells, see TaxiCompany.makeOffer()). The search visits the cells ring by ring
+ * around the cell of the pickup, and stops once a ring is too far away to hold
+ * a better Taxi. A Taxi which moved during the step (when the requests are
+ * messages, see Messenger) is at most one step away from its cell, which the
+ * bound of the search allows for.
+ *
+ * @author Bohao LI
+ * @version 2017.03.23
+ */
+final class TaxiGrid {
+
+    private final TaxiCompany company;
+    private final City city;
+    private final List<Vehicle> vehicles;
+    private int cellSize;
+    private int nbColumns;
+    private int nbRows;
+    private List<List<Taxi>> cells;
+    // The time of the City when the cells were filled, -1 if never.
+    private int filledAt;
+
+    /**
+     * @param company
+     *            The company of the Taxis, making the offers.
+     * @param city
+     *            The City of the Taxis.
+     * @param vehicles
+     *            The vehicles of the company, the Taxis among them being
+     *            indexed.
+     */
+    TaxiGrid(TaxiCompany company, City city, List<Vehicle> vehicles) {
+        this.company = company;
+        this.city = city;
+        this.vehicles = vehicles;
+        cells = new ArrayList<>();
+        filledAt = -1;
+    }
+
+    /**
+     * Fill the cells, if they were not filled at the current step.
+     */
+    void update() {
+        if (filledAt != city.getTime())
+            fill();
+    }
+
+    /**
+     * Put every Taxi in its cell, the cells being about as many as the Taxis.
+     */
+    private void fill() {
+        int nbTaxis = 0;
+        for (Vehicle v : vehicles)
+            if (v instanceof Taxi)
+                nbTaxis++;
+        cellSize = Math.max(2, (int) Math.sqrt((double) city.getWidth() * city.getHeight() / Math.max(1, nbTaxis)));
+        nbColumns = (city.getWidth() + cellSize - 1) / cellSize;
+        nbRows = (city.getHeight() + cellSize - 1) / cellSize;
+        cells.clear();
+        for (int i = 0; i < nbColumns * nbRows; i++)
+            cells.add(new ArrayList<>());
+        for (Vehicle v : vehicles)
+            if (v instanceof Taxi)
+                cells.get(cellOf(v.getLocation())).add((Taxi) v);
+        filledAt = city.getTime();
+    }
+
+    private int cellOf(Location location) {
+        int column = Math.min(location.getX() / cellSize, nbColumns - 1);
+        int row = Math.min(location.getY() / cellSize, nbRows - 1);
+        return row * nbColumns + column;
+    }
+
+    /**
+     * Find the Taxi to send to a passenger: the nearest one to his pickup
+     * among the free Taxis and the Taxis carrying passengers which can take
+     * him (see Taxi.poolingCost()). At the same distance, a Taxi carrying
+     * passengers is preferred (it spares a free Taxi), the one lengthening its
+     * route the least first.
+     *
+     * @param passenger
+     *            The passenger requesting a pickup.
+     * @return The offer of the Taxi, with the number of Taxis able to take
+     *         the passenger, or null if none can take him.
+     * @throws IllegalStateException
+     *             If the cells were not updated at the current step.
+     */
+    Offer nearest(Passenger passenger) {
+        if (filledAt != city.getTime())
+            throw new IllegalStateException("Cells filled at step " + filledAt + ", not updated at step "
+                    + city.getTime());
+        int nbCandidates = 0;
+        Location pickup = passenger.getPickupLocation();
+        int cell = cellOf(pickup);
+        int column = cell % nbColumns;
+        int row = cell / nbColumns;
+        Taxi best = null;
+        int bestDistance = Integer.MAX_VALUE;
+        int bestCost = Integer.MAX_VALUE;
+        int nbRings = Math.max(nbColumns, nbRows);
+        for (int ring = 0; ring < nbRings; ring++) {
+            // A Taxi of the ring is at least (ring - 1) * cellSize + 1 away,
+            // one less if it moved since the cells were filled.
+            if (best != null && (ring - 1) * cellSize > bestDistance)
+                break;
+            for (int y = row - ring; y <= row + ring; y++) {
+                if (y < 0 || y >= nbRows)
+                    continue;
+                // Only the first and last rows of the ring are full.
+                int step = y == row - ring || y == row + ring ? 1 : Math.max(1, 2 * ring);
+                for (int x = column - ring; x <= column + ring; x += step) {
+                    if (x < 0 || x >= nbColumns)
+                        continue;
+                    for (Taxi taxi : cells.get(y * nbColumns + x)) {
+                        // 0 for a free Taxi, the extra length of the route
+                        // otherwise.
+                        int cost = taxi.isFree() ? 0 : taxi.poolingCost(passenger);
+                        if (cost < 0)
+                            continue;
+                        nbCandidates++;
+                        int distance = taxi.getLocation().distance(pickup);
+                        boolean pooled = !taxi.isFree();
+                        if (distance < bestDistance || distance == bestDistance && (pooled && best.isFree()
+                                || pooled == !best.isFree() && cost < bestCost)) {
+                            best = taxi;
+                            bestDistance = distance;
+                            bestCost = cost;
+                        }
+                    }
+                }
+            }
+        }
+        if (best == null)
+            return null;
+        return new Offer(company, best, bestDistance, 1, nbCandidates);
+    }
+}
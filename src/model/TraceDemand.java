@@ -0,0 +1,137 @@
+package model;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+/**
+ * Replay the trips of a trace file (see TraceWriter for the format) instead of
+ * generating a random demand.
+ *
+ * The file is read through a window memory-mapped on the file, the window
+ * slides along the file as the simulation goes, so a trace of several
+ * gigabytes is replayed without being loaded: only the window is mapped, and
+ * the records are decoded directly from it into the TripBuffer.
+ *
+ * The records must be sorted by step. A record of a step already passed (for
+ * example if the simulation starts after the first step of the trace) is
+ * replayed at the next step, a record outside of the city is skipped.
+ *
+ * @author Bohao LI
+ * @version 2017.03.23
+ */
+public class TraceDemand implements DemandModel, Closeable {
+
+    // Size of the window mapped on the file, a whole number of records.
+    private static final long WINDOW_SIZE = (64L << 20) / TraceWriter.RECORD_SIZE * TraceWriter.RECORD_SIZE;
+
+    private final FileChannel channel;
+    private final long fileSize;
+    private final int cityWidth;
+    private final int cityHeight;
+
+    private MappedByteBuffer window;
+    // Position in the file of the beginning of the window.
+    private long windowStart;
+    private int nbSkipped;
+
+    /**
+     * Open a trace file.
+     *
+     * @param city
+     *            The city where the trips happen.
+     * @param path
+     *            The trace file.
+     * @throws IOException
+     *             If the file cannot be read or is not a trace file.
+     */
+    public TraceDemand(City city, Path path) throws IOException {
+        cityWidth = city.getWidth();
+        cityHeight = city.getHeight();
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+        fileSize = channel.size();
+        if (fileSize < TraceWriter.HEADER_SIZE
+                || (fileSize - TraceWriter.HEADER_SIZE) % TraceWriter.RECORD_SIZE != 0) {
+            channel.close();
+            throw new IOException(path + " is not a trace file (size " + fileSize + ")");
+        }
+        ByteBuffer header = ByteBuffer.allocate(TraceWriter.HEADER_SIZE);
+        while (header.hasRemaining() && channel.read(header) >= 0)
+            ;
+        header.flip();
+        // Only the version 1 exists so far.
+        if (header.getInt() != TraceWriter.MAGIC || header.getInt() != TraceWriter.VERSION) {
+            channel.close();
+            throw new IOException(path + " is not a trace file");
+        }
+        map(TraceWriter.HEADER_SIZE);
+    }
+
+    @Override
+    public void generate(int time, Random rand, TripBuffer trips) {
+        try {
+            while (true) {
+                if (!window.hasRemaining()) {
+                    if (windowStart + window.limit() >= fileSize)
+                        return;
+                    map(windowStart + window.limit());
+                }
+                int position = window.position();
+                if (window.getInt(position) > time)
+                    return;
+                int px = window.getInt(position + 4);
+                int py = window.getInt(position + 8);
+                int dx = window.getInt(position + 12);
+                int dy = window.getInt(position + 16);
+                int nbPersons = window.get(position + 20);
+                byte choice = window.get(position + 21);
+                window.position(position + TraceWriter.RECORD_SIZE);
+
+                if (px < 0 || px >= cityWidth || py < 0 || py >= cityHeight || dx < 0 || dx >= cityWidth || dy < 0
+                        || dy >= cityHeight || (px == dx && py == dy) || nbPersons < 1) {
+                    nbSkipped++;
+                    continue;
+                }
+                trips.add(px, py, dx, dy, nbPersons,
+                        choice == TraceWriter.TAXI ? Passenger.Choice.TAXI : Passenger.Choice.SHUTTLE);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot read the trace", e);
+        }
+    }
+
+    /**
+     * @return The number of records skipped because they did not fit in the
+     *         city.
+     */
+    public int getNbSkipped() {
+        return nbSkipped;
+    }
+
+    /**
+     * @return True if all the records have been replayed.
+     */
+    public boolean isFinished() {
+        return windowStart + window.position() >= fileSize;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Map the window at the given position of the file.
+     */
+    private void map(long start) throws IOException {
+        windowStart = start;
+        window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(WINDOW_SIZE, fileSize - start));
+        window.order(ByteOrder.BIG_ENDIAN);
+    }
+}
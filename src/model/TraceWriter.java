@@ -0,0 +1,126 @@
+package model;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Write a trace file replayed by TraceDemand.
+ *
+ * A trace file starts with a header of HEADER_SIZE bytes (the MAGIC number and
+ * the VERSION), followed by records of RECORD_SIZE bytes sorted by step, in big
+ * endian order:
+ *
+ * step (int), pickup x (int), pickup y (int), destination x (int), destination
+ * y (int), number of persons (byte), choice (byte, TAXI or SHUTTLE).
+ *
+ * A trip log in CSV (one trip per line with the same columns, the choice being
+ * "taxi" or "shuttle") can be converted with fromCsv().
+ *
+ * @author Bohao LI
+ * @version 2017.03.23
+ */
+public class TraceWriter implements Closeable {
+
+    public static final int MAGIC = 0x54524950; // "TRIP"
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 8;
+    public static final int RECORD_SIZE = 22;
+    public static final byte TAXI = 0;
+    public static final byte SHUTTLE = 1;
+
+    private final DataOutputStream out;
+    private int lastTime;
+
+    /**
+     * Create a trace file, an existing file is overwritten.
+     *
+     * @param path
+     *            The trace file.
+     * @throws IOException
+     *             If the file cannot be written.
+     */
+    public TraceWriter(Path path) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), 1 << 16));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        lastTime = 0;
+    }
+
+    /**
+     * Append a trip to the trace. The trips must be written in the order of
+     * their steps.
+     *
+     * @throws IOException
+     *             If the file cannot be written.
+     */
+    public void write(int time, int px, int py, int dx, int dy, int nbPersons, Passenger.Choice choice)
+            throws IOException {
+        if (time < lastTime)
+            throw new IllegalArgumentException("Trip of step " + time + " written after step " + lastTime);
+        if (nbPersons < 1 || nbPersons > Byte.MAX_VALUE)
+            throw new IllegalArgumentException("Trip of " + nbPersons + " persons");
+        lastTime = time;
+        out.writeInt(time);
+        out.writeInt(px);
+        out.writeInt(py);
+        out.writeInt(dx);
+        out.writeInt(dy);
+        out.writeByte(nbPersons);
+        out.writeByte(choice == Passenger.Choice.TAXI ? TAXI : SHUTTLE);
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+    /**
+     * Convert a trip log in CSV into a trace file, line by line. Blank lines and
+     * lines starting with '#' or a letter (a title line) are ignored.
+     *
+     * @param csv
+     *            The trip log.
+     * @param trace
+     *            The trace file to write.
+     * @return The number of trips converted.
+     * @throws IOException
+     *             If a file cannot be read or written, or if a line is not a
+     *             trip.
+     */
+    public static int fromCsv(Path csv, Path trace) throws IOException {
+        int count = 0;
+        int lineNumber = 0;
+        try (BufferedReader in = Files.newBufferedReader(csv, StandardCharsets.UTF_8);
+                TraceWriter writer = new TraceWriter(trace)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.charAt(0) == '#' || Character.isLetter(line.charAt(0)))
+                    continue;
+                String[] columns = line.split(",");
+                try {
+                    if (columns.length != 7)
+                        throw new IllegalArgumentException(columns.length + " columns");
+                    String choice = columns[6].trim();
+                    if (!choice.equalsIgnoreCase("taxi") && !choice.equalsIgnoreCase("shuttle"))
+                        throw new IllegalArgumentException("Unknown choice: " + choice);
+                    writer.write(Integer.parseInt(columns[0].trim()), Integer.parseInt(columns[1].trim()),
+                            Integer.parseInt(columns[2].trim()), Integer.parseInt(columns[3].trim()),
+                            Integer.parseInt(columns[4].trim()), Integer.parseInt(columns[5].trim()),
+                            choice.equalsIgnoreCase("taxi") ? Passenger.Choice.TAXI : Passenger.Choice.SHUTTLE);
+                } catch (IllegalArgumentException e) {
+                    throw new IOException(csv + ", line " + lineNumber + ": " + e.getMessage(), e);
+                }
+                count++;
+            }
+        }
+        return count;
+    }
+}
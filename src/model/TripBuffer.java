@@ -0,0 +1,133 @@
+package model;
+
+import java.util.Arrays;
+
+/**
+ * The trips requested during a step, stored column by column in arrays of
+ * primitives. The buffer is cleared and reused at every step, so it only
+ * allocates when the demand of a step is higher than ever before.
+ *
+ * @author Bohao LI
+ * @version 2017.03.23
+ */
+public class TripBuffer {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private int[] pickupX;
+    private int[] pickupY;
+    private int[] destinationX;
+    private int[] destinationY;
+    // Number of persons travelling together (1 for a single Passenger).
+    private int[] groupSize;
+    private Passenger.Choice[] choice;
+    private int size;
+
+    /**
+     * Create an empty buffer.
+     */
+    public TripBuffer() {
+        pickupX = new int[INITIAL_CAPACITY];
+        pickupY = new int[INITIAL_CAPACITY];
+        destinationX = new int[INITIAL_CAPACITY];
+        destinationY = new int[INITIAL_CAPACITY];
+        groupSize = new int[INITIAL_CAPACITY];
+        choice = new Passenger.Choice[INITIAL_CAPACITY];
+        size = 0;
+    }
+
+    /**
+     * Add a trip to the buffer. The pickup and the destination must not be
+     * the same.
+     *
+     * @param px
+     *            The x coordinate of the pickup location.
+     * @param py
+     *            The y coordinate of the pickup location.
+     * @param dx
+     *            The x coordinate of the destination.
+     * @param dy
+     *            The y coordinate of the destination.
+     * @param nbPersons
+     *            The number of persons travelling together.
+     * @param choice
+     *            The choice of the Passengers, a group always takes a Shuttle.
+     */
+    public void add(int px, int py, int dx, int dy, int nbPersons, Passenger.Choice choice) {
+        if (size == pickupX.length)
+            grow();
+        pickupX[size] = px;
+        pickupY[size] = py;
+        destinationX[size] = dx;
+        destinationY[size] = dy;
+        groupSize[size] = nbPersons;
+        this.choice[size] = nbPersons > 1 ? Passenger.Choice.SHUTTLE : choice;
+        size++;
+    }
+
+    /**
+     * Add the trips of another buffer after the trips of this one.
+     *
+     * @param trips
+     *            The trips to add.
+     */
+    public void addAll(TripBuffer trips) {
+        while (size + trips.size > pickupX.length)
+            grow();
+        System.arraycopy(trips.pickupX, 0, pickupX, size, trips.size);
+        System.arraycopy(trips.pickupY, 0, pickupY, size, trips.size);
+        System.arraycopy(trips.destinationX, 0, destinationX, size, trips.size);
+        System.arraycopy(trips.destinationY, 0, destinationY, size, trips.size);
+        System.arraycopy(trips.groupSize, 0, groupSize, size, trips.size);
+        System.arraycopy(trips.choice, 0, choice, size, trips.size);
+        size += trips.size;
+    }
+
+    /**
+     * Remove all the trips.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * @return The number of trips.
+     */
+    public int size() {
+        return size;
+    }
+
+    public int getPickupX(int i) {
+        return pickupX[i];
+    }
+
+    public int getPickupY(int i) {
+        return pickupY[i];
+    }
+
+    public int getDestinationX(int i) {
+        return destinationX[i];
+    }
+
+    public int getDestinationY(int i) {
+        return destinationY[i];
+    }
+
+    public int getGroupSize(int i) {
+        return groupSize[i];
+    }
+
+    public Passenger.Choice getChoice(int i) {
+        return choice[i];
+    }
+
+    private void grow() {
+        int capacity = pickupX.length * 2;
+        pickupX = Arrays.copyOf(pickupX, capacity);
+        pickupY = Arrays.copyOf(pickupY, capacity);
+        destinationX = Arrays.copyOf(destinationX, capacity);
+        destinationY = Arrays.copyOf(destinationY, capacity);
+        groupSize = Arrays.copyOf(groupSize, capacity);
+        choice = Arrays.copyOf(choice, capacity);
+    }
+}
@@ -0,0 +1,135 @@
+package model;
+
+/**
+ * Statistics of the trips served by a TaxiCompany, split between the trips by
+ * Taxi and the trips by Shuttle. They are fed with the timestamps recorded by
+ * every Passenger along his lifecycle (request, assignment, pickup, drop-off or
+ * abandonment).
+ *
+ * Everything is preallocated, recording never allocates.
+ *
+ * @author Bohao LI
+ * @version 2017.03.23
+ */
+public class TripStatistics {
+
+    private final LatencyHistogram[] timeToAssign;
+    private final LatencyHistogram[] timeToPickup;
+    private final LatencyHistogram[] inVehicle;
+    // Per choice, in persons.
+    private final long[] requests;
+    private final long[] abandoned;
+
+    /**
+     * Create empty statistics.
+     */
+    public TripStatistics() {
+        int nbChoices = Passenger.Choice.values().length;
+        timeToAssign = new LatencyHistogram[nbChoices];
+        timeToPickup = new LatencyHistogram[nbChoices];
+        inVehicle = new LatencyHistogram[nbChoices];
+        for (int i = 0; i < nbChoices; i++) {
+            timeToAssign[i] = new LatencyHistogram();
+            timeToPickup[i] = new LatencyHistogram();
+            inVehicle[i] = new LatencyHistogram();
+        }
+        requests = new long[nbChoices];
+        abandoned = new long[nbChoices];
+    }
+
+    /**
+     * A Passenger asks the company for a pickup.
+     */
+    public void recordRequest(Passenger passenger) {
+        requests[passenger.getChoice().ordinal()] += passenger.getNb_persons();
+    }
+
+    /**
+     * A vehicle has been assigned to a Passenger.
+     */
+    public void recordAssignment(Passenger passenger) {
+        timeToAssign[passenger.getChoice().ordinal()]
+                .record(passenger.getAssignmentTime() - passenger.getRequestTime());
+    }
+
+    /**
+     * A Passenger has been picked up.
+     */
+    public void recordPickup(Passenger passenger) {
+        timeToPickup[passenger.getChoice().ordinal()].record(passenger.getPickupTime() - passenger.getRequestTime());
+    }
+
+    /**
+     * A Passenger has arrived at his destination.
+     */
+    public void recordDropOff(Passenger passenger) {
+        inVehicle[passenger.getChoice().ordinal()].record(passenger.getDropOffTime() - passenger.getPickupTime());
+    }
+
+    /**
+     * A Passenger has given up, before or after his pickup.
+     */
+    public void recordAbandonment(Passenger passenger) {
+        abandoned[passenger.getChoice().ordinal()] += passenger.getNb_persons();
+    }
+
+    /**
+     * Add the statistics of another company to the current ones.
+     *
+     * @param other
+     *            The statistics to add.
+     */
+    public void add(TripStatistics other) {
+        for (int i = 0; i < requests.length; i++) {
+            timeToAssign[i].add(other.timeToAssign[i]);
+            timeToPickup[i].add(other.timeToPickup[i]);
+            inVehicle[i].add(other.inVehicle[i]);
+            requests[i] += other.requests[i];
+            abandoned[i] += other.abandoned[i];
+        }
+    }
+
+    public LatencyHistogram getTimeToAssign(Passenger.Choice choice) {
+        return timeToAssign[choice.ordinal()];
+    }
+
+    public LatencyHistogram getTimeToPickup(Passenger.Choice choice) {
+        return timeToPickup[choice.ordinal()];
+    }
+
+    public LatencyHistogram getInVehicle(Passenger.Choice choice) {
+        return inVehicle[choice.ordinal()];
+    }
+
+    /**
+     * @return The number of persons who asked for a pickup.
+     */
+    public long getRequests(Passenger.Choice choice) {
+        return requests[choice.ordinal()];
+    }
+
+    /**
+     * @return The share of the persons who asked for a pickup and gave up.
+     */
+    public double getAbandonmentRate(Passenger.Choice choice) {
+        long n = requests[choice.ordinal()];
+        return n == 0 ? 0 : abandoned[choice.ordinal()] / (double) n;
+    }
+
+    /**
+     * @return A summary of the statistics.
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Passenger.Choice choice : Passenger.Choice.values()) {
+            int i = choice.ordinal();
+            sb.append(String.format("\t%s: requests=%d, abandonment=%.1f%%\n", choice, requests[i],
+                    100 * getAbandonmentRate(choice)));
+            sb.append("\t\ttime to assign: " + timeToAssign[i] + "\n");
+            sb.append("\t\ttime to pickup: " + timeToPickup[i] + "\n");
+            sb.append("\t\tin vehicle:     " + inVehicle[i] + "\n");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,76 @@
+package model;
+
+import java.util.Random;
+
+/**
+ * The original demand of the simulation: at most one trip per step, created
+ * with a fixed probability, with a pickup location and a destination chosen
+ * uniformly in the city. Half of the trips are made by a single Passenger (who
+ * randomly chooses a Taxi or a Shuttle), the other half by a PassengerGroup.
+ *
+ * The demand of a district creates at most one trip per step too, with the
+ * probability scaled by the share of the city covered by the district.
+ *
+ * @author Bohao LI
+ * @version 2017.03.23
+ */
+public class UniformDemand implements DemandModel {
+
+    private static final float CREATION_PROBABILITY = .35f;
+
+    private final int cityWidth;
+    private final int cityHeight;
+    // The area of the pickups, the whole city unless the demand is the one of
+    // a district.
+    private final int x0;
+    private final int y0;
+    private final int x1;
+    private final int y1;
+    private final double probability;
+
+    /**
+     * @param city
+     *            The city where the trips happen.
+     */
+    public UniformDemand(City city) {
+        this(city.getWidth(), city.getHeight(), 0, 0, city.getWidth(), city.getHeight());
+    }
+
+    private UniformDemand(int cityWidth, int cityHeight, int x0, int y0, int x1, int y1) {
+        this.cityWidth = cityWidth;
+        this.cityHeight = cityHeight;
+        this.x0 = x0;
+        this.y0 = y0;
+        this.x1 = x1;
+        this.y1 = y1;
+        probability = CREATION_PROBABILITY * ((double) (x1 - x0) * (y1 - y0) / ((double) cityWidth * cityHeight));
+    }
+
+    @Override
+    public DemandModel district(int x0, int y0, int x1, int y1) {
+        if (x0 < this.x0 || y0 < this.y0 || x1 > this.x1 || y1 > this.y1 || x0 >= x1 || y0 >= y1)
+            throw new IllegalArgumentException("District (" + x0 + ", " + y0 + ") to (" + x1 + ", " + y1
+                    + ") out of (" + this.x0 + ", " + this.y0 + ") to (" + this.x1 + ", " + this.y1 + ")");
+        return new UniformDemand(cityWidth, cityHeight, x0, y0, x1, y1);
+    }
+
+    @Override
+    public void generate(int time, Random rand, TripBuffer trips) {
+        if (rand.nextDouble() > probability)
+            return;
+        int px = x0 + rand.nextInt(x1 - x0);
+        int py = y0 + rand.nextInt(y1 - y0);
+        int dx, dy;
+        do {
+            dx = rand.nextInt(cityWidth);
+            dy = rand.nextInt(cityHeight);
+        } while (px == dx && py == dy);
+
+        if (rand.nextDouble() < .5)
+            trips.add(px, py, dx, dy, 1, rand.nextDouble() < .5 ? Passenger.Choice.TAXI : Passenger.Choice.SHUTTLE);
+        else
+            trips.add(px, py, dx, dy,
+                    rand.nextInt(PassengerGroup.NB_MAX + 1 - PassengerGroup.NB_MIN) + PassengerGroup.NB_MIN,
+                    Passenger.Choice.SHUTTLE);
+    }
+}
@@ -8,7 +8,15 @@ package model;
  */
 public abstract class Vehicle implements Actor {
 
+    // Slot of a Vehicle that is not registered in the VehicleRegistry.
+    public static final int NO_SLOT = -1;
+
     private String id;
+    // Compact integer ID given by the VehicleRegistry of the City.
+    private int slot;
+    // Compact integer index among the vehicles of the company, given by the
+    // TaxiCompany.
+    private int index;
     private TaxiCompany company;
 
     // Where the vehicle is.
@@ -19,6 +27,10 @@ public abstract class Vehicle implements Actor {
     private int idleCount;
     // Number of successful transport achieved by the Vehicle
     private int nb_success;
+    // The City counting the Vehicle, null if it is not on the map, and the
+    // state (free or not) the City counts it in.
+    private City city;
+    private boolean countedFree;
 
     /**
      * Constructor of class Vehicle
@@ -39,6 +51,8 @@ public abstract class Vehicle implements Actor {
         this.company = company;
         this.location = location;
         this.id = id;
+        slot = NO_SLOT;
+        index = NO_SLOT;
         targetLocation = null;
         idleCount = 0;
         nb_success = 0;
@@ -72,18 +86,97 @@ public abstract class Vehicle implements Actor {
         return id;
     }
 
+    /**
+     * @return The slot given by the VehicleRegistry, or NO_SLOT if the Vehicle
+     *         is not in service.
+     */
+    public int getSlot() {
+        return slot;
+    }
+
+    /**
+     * @param slot
+     *            The slot given by the VehicleRegistry.
+     */
+    void setSlot(int slot) {
+        this.slot = slot;
+    }
+
+    /**
+     * @return The index of the Vehicle among the vehicles of its company, or
+     *         NO_SLOT if the Vehicle is not in service.
+     */
+    int getIndex() {
+        return index;
+    }
+
+    /**
+     * @param index
+     *            The index given by the TaxiCompany.
+     */
+    void setIndex(int index) {
+        this.index = index;
+    }
+
+    /**
+     * Start being counted by the given City.
+     */
+    void enterCity(City city) {
+        this.city = city;
+        countedFree = isFree();
+    }
+
+    /**
+     * Stop being counted by the City.
+     */
+    void leaveCity() {
+        city = null;
+    }
+
+    /**
+     * @return True if the City counts the Vehicle as free.
+     */
+    boolean isCountedFree() {
+        return countedFree;
+    }
+
+    /**
+     * Tell the City if the Vehicle has become free or busy, called after any
+     * change of the state isFree() depends on.
+     */
+    protected void updateFreeState() {
+        boolean free = isFree();
+        if (free != countedFree) {
+            countedFree = free;
+            if (city != null) {
+                city.freeStateChanged(this, free);
+                if (free)
+                    company.vehicleFreed(this);
+            }
+        }
+    }
+
+    /**
+     * Tell the company the Vehicle can take more persons than before, even if
+     * it is not free (a Shuttle with room left), so its backlog is retried.
+     */
+    protected void capacityFreed() {
+        if (city != null)
+            company.vehicleFreed(this);
+    }
+
     /**
      * Notify the company of our arrival at a pickup location.
      */
     public void notifyPickupArrival() {
-        company.arrivedAtPickup(this);
+        company.getCity().send(company, () -> company.arrivedAtPickup(this), 0);
     }
 
     /**
      * Notify the company of our arrival at a passenger's destination.
      */
     public void notifyPassengerArrival(Passenger passenger) {
-        company.arrivedAtDestination(this, passenger);
+        company.getCity().send(company, () -> company.arrivedAtDestination(this, passenger), 0);
     }
 
     /**
@@ -97,6 +190,11 @@ public abstract class Vehicle implements Actor {
      */
     public abstract int getCapacity();
 
+    /**
+     * @return The number of persons in the Vehicle.
+     */
+    public abstract int getNbAboard();
+
     /**
      * Receive a pickup location. How this is handled depends on the type of
      * vehicle.
@@ -144,6 +242,8 @@ public abstract class Vehicle implements Actor {
             this.location = location;
         else
             throw new NullPointerException();
+        if (city != null && city.getJournal() != null)
+            city.getJournal().vehicleMoved(this, location);
     }
 
     /**
@@ -166,6 +266,7 @@ public abstract class Vehicle implements Actor {
             targetLocation = location;
         else
             throw new NullPointerException();
+        updateFreeState();
     }
 
     /**
@@ -173,6 +274,7 @@ public abstract class Vehicle implements Actor {
      */
     public void clearTargetLocation() {
         targetLocation = null;
+        updateFreeState();
     }
 
     /**
@@ -0,0 +1,100 @@
+package model;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A directory of all the vehicles in service in a City, whatever TaxiCompany
+ * they belong to.
+ *
+ * Every registered Vehicle receives a compact integer slot. Slots are given
+ * in order from 0, so they can be used as indexes in plain arrays.
+ *
+ * The ID of a Vehicle is also its telephone number (see the dial simulation
+ * in PassengerSource), resolving a dial is a single probe in a hashed
+ * structure instead of a walk through the vehicles of every company.
+ *
+ * The registry is accessed by the simulation thread and by the Swing thread
+ * (when a user dials a taxi), so every method is synchronized.
+ *
+ * @author Bohao LI
+ * @version 2017.03.23
+ */
+public class VehicleRegistry {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    // Telephone number (ID) --> slot of the vehicle.
+    private Map<String, Integer> slots;
+    // Slot --> vehicle.
+    private Vehicle[] vehicles;
+    // The next slot never used.
+    private int nextSlot;
+    // The number of IDs issued so far.
+    private int nbIDs;
+
+    /**
+     * Create an empty registry.
+     */
+    public VehicleRegistry() {
+        slots = new HashMap<>();
+        vehicles = new Vehicle[INITIAL_CAPACITY];
+        nextSlot = 0;
+        nbIDs = 0;
+    }
+
+    /**
+     * Issue a new ID (telephone number), unique in the City whatever the
+     * company of the Vehicle. IDs are never reused.
+     *
+     * @param prefix
+     *            The prefix of the ID, "T-" for a Taxi, "S-" for a Shuttle.
+     * @return The new ID.
+     */
+    public synchronized String newID(String prefix) {
+        return prefix + ++nbIDs;
+    }
+
+    /**
+     * Register a Vehicle entering service and give it a slot.
+     *
+     * @param vehicle
+     *            The Vehicle to register.
+     * @return The slot given to the Vehicle.
+     * @throws IllegalArgumentException
+     *             If a Vehicle with the same ID is already registered.
+     */
+    public synchronized int register(Vehicle vehicle) {
+        if (vehicle == null)
+            throw new NullPointerException("vehicle");
+        if (slots.containsKey(vehicle.getID()))
+            throw new IllegalArgumentException(vehicle.getID() + " already registered.");
+
+        int slot = nextSlot++;
+        if (slot == vehicles.length)
+            vehicles = Arrays.copyOf(vehicles, vehicles.length * 2);
+        vehicles[slot] = vehicle;
+        slots.put(vehicle.getID(), slot);
+        vehicle.setSlot(slot);
+        return slot;
+    }
+
+    /**
+     * @param telephone
+     *            The telephone number (in other words the ID) of a Vehicle.
+     * @return The Vehicle with the given telephone number, or null if there is
+     *         none.
+     */
+    public synchronized Vehicle lookup(String telephone) {
+        Integer slot = slots.get(telephone);
+        return slot == null ? null : vehicles[slot];
+    }
+
+    /**
+     * @return The number of vehicles in service.
+     */
+    public synchronized int size() {
+        return slots.size();
+    }
+}
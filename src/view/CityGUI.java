@@ -11,6 +11,7 @@ import java.awt.Image;
 import java.awt.Toolkit;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -22,7 +23,9 @@ import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
+import javax.swing.JSlider;
 import javax.swing.JTextField;
+import javax.swing.SwingUtilities;
 import javax.swing.border.LineBorder;
 import javax.swing.border.TitledBorder;
 
@@ -34,12 +37,12 @@ import org.jfree.data.category.DefaultCategoryDataset;
 
 import model.Actor;
 import model.City;
+import model.CitySnapshot;
 import model.DrawableItem;
 import model.Item;
+import model.JournalReplay;
 import model.Location;
-import model.Passenger;
 import model.PassengerSource;
-import model.Taxi;
 import model.Vehicle;
 
 /**
@@ -80,6 +83,17 @@ public class CityGUI extends JFrame implements Actor {
     private Map<Vehicle, JLabel> map;
     private PassengerSource passengerSource;
 
+    // Scrub bar over the Journal of the city, if it is journaled: the city
+    // is shown as it was at the step selected, until the bar is brought back
+    // to its end.
+    private JournalReplay replay;
+    private JPanel scrubPanel;
+    private JSlider scrubBar;
+    private JLabel scrubLabel;
+    private volatile boolean replaying;
+    // True while the bar follows the simulation, its moves are not the user's.
+    private boolean following;
+
     /**
      * Constructor for objects of class CityGUI
      * 
@@ -124,7 +138,7 @@ public class CityGUI extends JFrame implements Actor {
         bottomPanel.add(nbAvailableTaxis = new JLabel("Available taxis: "));
         bottomPanel.add(nbWaitingPeople = new JLabel("Waiting people: "));
         bottomPanel.add(nbShuttles = new JLabel("Number of shuttles: " + city.getNbShuttles()));
-        bottomPanel.add(nbFreeShuttles = new JLabel("Available shuttles: " + city.getNbShuttles()));
+        bottomPanel.add(nbFreeShuttles = new JLabel("Available shuttles: " + city.getNbFreeShuttles()));
         bottomPanel.add(missedPickup = new JLabel("Missed pickups: "));
 
         // Create the chart
@@ -135,6 +149,9 @@ public class CityGUI extends JFrame implements Actor {
         for (JLabel j : map.values())
             bottomPanel.add(j);
 
+        if (city.getJournal() != null)
+            createScrubBar();
+
         createContentPane();
         displayGUI();
     }
@@ -149,6 +166,71 @@ public class CityGUI extends JFrame implements Actor {
         add(cityPanel, BorderLayout.CENTER);
         add(bottomPanel, BorderLayout.SOUTH);
         add(rightPanel, BorderLayout.EAST);
+        if (scrubPanel != null)
+            add(scrubPanel, BorderLayout.NORTH);
+    }
+
+    /**
+     * Create the scrub bar replaying the Journal of the city.
+     */
+    private void createScrubBar() {
+        try {
+            replay = new JournalReplay(city.getJournal());
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        scrubBar = new JSlider(replay.getFirstTime(), city.getTime(), city.getTime());
+        scrubLabel = new JLabel("Live");
+        JButton liveButton = new JButton("Live");
+        scrubBar.addChangeListener(e -> {
+            if (following)
+                return;
+            int time = scrubBar.getValue();
+            if (time >= scrubBar.getMaximum()) {
+                replaying = false;
+                scrubLabel.setText("Live");
+            } else {
+                replaying = true;
+                showSnapshot(replay.seek(time));
+            }
+        });
+        liveButton.addActionListener(e -> {
+            replaying = false;
+            scrubLabel.setText("Live");
+            follow(scrubBar.getMaximum());
+        });
+        scrubPanel = new JPanel(new BorderLayout());
+        scrubPanel.add(scrubLabel, BorderLayout.WEST);
+        scrubPanel.add(scrubBar, BorderLayout.CENTER);
+        scrubPanel.add(liveButton, BorderLayout.EAST);
+    }
+
+    /**
+     * Move the scrub bar to the given step, without replaying it.
+     */
+    private void follow(int time) {
+        following = true;
+        if (time > scrubBar.getMaximum())
+            scrubBar.setMaximum(time);
+        if (!replaying)
+            scrubBar.setValue(time);
+        following = false;
+    }
+
+    /**
+     * Display the state of the city at a past step.
+     */
+    private void showSnapshot(CitySnapshot snapshot) {
+        cityView.preparePaint();
+        for (DrawableItem item : snapshot.getItems()) {
+            Location location = item.getLocation();
+            cityView.drawImage(location.getX(), location.getY(), item.getImage());
+        }
+        scrubLabel.setText("Step " + snapshot.getTime());
+        nbWaitingPeople.setText("Waiting people: " + snapshot.getNbWaitingPersons());
+        missedPickup.setText("Missed pickups: " + snapshot.getMissedPickups());
+        repaint();
     }
 
     /**
@@ -180,45 +262,73 @@ public class CityGUI extends JFrame implements Actor {
      * Display the current state of the city.
      */
     public void act() {
+        if (scrubBar != null) {
+            int time = city.getTime();
+            SwingUtilities.invokeLater(() -> follow(time));
+        }
+        // The past step selected on the scrub bar stays on the screen.
+        if (replaying)
+            return;
         cityView.preparePaint();
 
-        int nb_free_taxis = 0;
-        int nb_psg = 0;
-        int nb_free_shuttles = 0;
-        int missed_pickup = 0;
-
         for (Item item : city.getItems()) {
             if (item instanceof DrawableItem) {
-                if (item instanceof Vehicle) {
-                    barDataset.setValue(((Vehicle) item).getNbSuccess(), ROW_KEY, ((Vehicle) item).getID());
-                    Vehicle v = (Vehicle) item;
-                    map.get(v).setText("idle count [id = " + v.getID() + "] : " + v.getIdleCount());
-                    if (((Vehicle) item).isFree())
-                        if (item instanceof Taxi)
-                            nb_free_taxis++;
-                        else
-                            nb_free_shuttles++;
-                }
-
-                if (item instanceof Passenger)
-                    nb_psg++;
-
                 DrawableItem it = (DrawableItem) item;
                 Location location = it.getLocation();
                 cityView.drawImage(location.getX(), location.getY(), it.getImage());
             }
         }
+        updateStatistics();
 
-        missed_pickup = passengerSource.getMissedPickups();
+        nbAvailableTaxis.setText("Available taxis: " + city.getNbFreeTaxis());
+        nbWaitingPeople.setText("Waiting people: " + city.getNbWaitingPassengers());
+        nbFreeShuttles.setText("Available shuttles: " + city.getNbFreeShuttles());
+        missedPickup.setText("Missed pickups: " + passengerSource.getMissedPickups());
 
-        nbAvailableTaxis.setText("Available taxis: " + nb_free_taxis);
-        nbWaitingPeople.setText("Waiting people: " + nb_psg);
-        nbFreeShuttles.setText("Available shuttles: " + nb_free_shuttles);
-        missedPickup.setText("Missed pickups: " + missed_pickup);
+        repaint();
+    }
 
+    /**
+     * Display the current state of the city from a snapshot, while the next
+     * step runs (see the StepPipeline). The statistics of the vehicles are
+     * updated by updateStatistics() during the step.
+     * 
+     * @param snapshot
+     *            The state of the city captured at the end of the step.
+     */
+    public void show(CitySnapshot snapshot) {
+        if (scrubBar != null) {
+            int time = snapshot.getTime();
+            SwingUtilities.invokeLater(() -> follow(time));
+        }
+        if (replaying)
+            return;
+        cityView.preparePaint();
+        for (DrawableItem item : snapshot.getItems()) {
+            Location location = item.getLocation();
+            cityView.drawImage(location.getX(), location.getY(), item.getImage());
+        }
+        nbAvailableTaxis.setText("Available taxis: " + snapshot.getNbFreeTaxis());
+        nbWaitingPeople.setText("Waiting people: " + snapshot.getNbWaitingPersons());
+        nbFreeShuttles.setText("Available shuttles: " + snapshot.getNbFreeShuttles());
+        missedPickup.setText("Missed pickups: " + snapshot.getMissedPickups());
         repaint();
     }
 
+    /**
+     * Update the successes and the idle counts of the vehicles.
+     */
+    public void updateStatistics() {
+        if (replaying)
+            return;
+        for (Item item : city.getItems())
+            if (item instanceof Vehicle) {
+                Vehicle v = (Vehicle) item;
+                barDataset.setValue(v.getNbSuccess(), ROW_KEY, v.getID());
+                map.get(v).setText("idle count [id = " + v.getID() + "] : " + v.getIdleCount());
+            }
+    }
+
     /**
      * IHM keyboard for dialing
      */
@@ -354,40 +464,25 @@ public class CityGUI extends JFrame implements Actor {
     private class CityView extends JPanel {
         static final long serialVersionUID = 20131230;
 
-        private final int VIEW_SCALING_FACTOR = 10;
-
-        private int cityWidth;
-        private int cityHeight;
-        private int xScale;
-        private int yScale;
+        private CityRenderer renderer;
 
         private Dimension size;
         private Graphics g;
         private Image cityImage;
 
         public CityView(int cityWidth, int cityHeight) {
-            this.cityWidth = cityWidth;
-            this.cityHeight = cityHeight;
+            renderer = new CityRenderer(cityWidth, cityHeight);
             setBackground(Color.white);
             size = new Dimension(0, 0);
         }
 
         public void preparePaint() {
             // Draw the grid
-            g.setColor(Color.white);
-            g.fillRect(0, 0, size.width - 1, size.height - 1);
-
-            g.setColor(Color.gray);
-
-            for (int i = 0, x = 0; x < size.width; i++, x = i * xScale)
-                g.drawLine(x, 0, x, size.height - 1);
-
-            for (int i = 0, y = 0; y < size.height; i++, y = i * yScale)
-                g.drawLine(0, y, size.width - 1, y);
+            renderer.drawGrid(g, size.width, size.height);
         }
 
         public void drawImage(int x, int y, Image image) {
-            g.drawImage(image, x * xScale + 1, y * yScale + 1, xScale - 1, yScale - 1, this);
+            renderer.drawImage(g, x, y, image, this);
         }
 
         /**
@@ -405,28 +500,11 @@ public class CityGUI extends JFrame implements Actor {
         public Dimension getPreferredSize() {
             Dimension pS = getParent().getSize(); // parent panel size, ps -->
                                                   // parentSize
-            float cVW = 0;
-            float cVH = 0; // cVW --> cityViewWidth, cVH --> cityViewHeight
-            float rP = (pS.width) / ((float) pS.height); // ratio of parent
-                                                         // panet, rP -->
-                                                         // ratioParent
-            float rC = (cityWidth) / ((float) cityHeight); // ratio of the city,
-                                                           // rC --> ratioCity
-            cVH = (cVW = rC >= rP ? pS.width : pS.height * rC) / rC;
-            int cVW_ = 0;
-            int cVH_ = 0;
-
-            xScale = (cVW_ = ((int) cVW) - ((int) cVW) % cityWidth) / cityWidth;
-            yScale = (cVH_ = ((int) cVH) - ((int) cVH) % cityHeight) / cityHeight;
-            cityImage = cityView.createImage(cVW_ + 1, cVH_ + 1);
+            size = renderer.fit(pS.width, pS.height);
+            cityImage = cityView.createImage(size.width, size.height);
             g = cityImage.getGraphics();
 
-            if (xScale < 1)
-                xScale = VIEW_SCALING_FACTOR;
-            if (yScale < 1)
-                yScale = VIEW_SCALING_FACTOR;
-
-            return (size = new Dimension(cVW_ + 1, cVH_ + 1));
+            return size;
         }
 
     }
@@ -0,0 +1,136 @@
+package view;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics;
+import java.awt.Image;
+import java.awt.image.ImageObserver;
+import java.util.Collection;
+
+import model.DrawableItem;
+import model.Location;
+
+/**
+ * Draw a rectangular city: the grid of its cells and the images of its items.
+ * Used by the CityView of the CityGUI, and by the FrameExporter to draw the
+ * city offscreen.
+ *
+ * A cell is xScale pixels wide and yScale pixels high, the image of the city
+ * is cityWidth * xScale + 1 pixels wide and cityHeight * yScale + 1 pixels
+ * high.
+ *
+ * @author Bohao LI
+ * @version 2017.03.23
+ */
+public class CityRenderer {
+
+    // Size of a cell when the area given is too small for the city.
+    private static final int VIEW_SCALING_FACTOR = 10;
+
+    private final int cityWidth;
+    private final int cityHeight;
+    private int xScale;
+    private int yScale;
+
+    /**
+     * Create a renderer with cells of VIEW_SCALING_FACTOR pixels.
+     *
+     * @param cityWidth
+     *            The width of the city, in cells.
+     * @param cityHeight
+     *            The height of the city, in cells.
+     */
+    public CityRenderer(int cityWidth, int cityHeight) {
+        if (cityWidth < 1 || cityHeight < 1)
+            throw new IllegalArgumentException("City of " + cityWidth + " by " + cityHeight);
+        this.cityWidth = cityWidth;
+        this.cityHeight = cityHeight;
+        xScale = VIEW_SCALING_FACTOR;
+        yScale = VIEW_SCALING_FACTOR;
+    }
+
+    /**
+     * Scale the cells so that the city fills the given area, keeping its
+     * aspect ratio.
+     *
+     * @param width
+     *            The width of the area, in pixels.
+     * @param height
+     *            The height of the area, in pixels.
+     * @return The size of the image of the city.
+     */
+    public Dimension fit(int width, int height) {
+        float cVW = 0;
+        float cVH = 0; // cVW --> cityViewWidth, cVH --> cityViewHeight
+        float rP = width / ((float) height); // ratio of the area
+        float rC = cityWidth / ((float) cityHeight); // ratio of the city
+        cVH = (cVW = rC >= rP ? width : height * rC) / rC;
+        int cVW_ = 0;
+        int cVH_ = 0;
+
+        xScale = (cVW_ = ((int) cVW) - ((int) cVW) % cityWidth) / cityWidth;
+        yScale = (cVH_ = ((int) cVH) - ((int) cVH) % cityHeight) / cityHeight;
+
+        if (xScale < 1)
+            xScale = VIEW_SCALING_FACTOR;
+        if (yScale < 1)
+            yScale = VIEW_SCALING_FACTOR;
+
+        return new Dimension(cVW_ + 1, cVH_ + 1);
+    }
+
+    /**
+     * @param xScale
+     *            The width of a cell, in pixels.
+     * @param yScale
+     *            The height of a cell, in pixels.
+     */
+    public void setScale(int xScale, int yScale) {
+        if (xScale < 1 || yScale < 1)
+            throw new IllegalArgumentException("Cells of " + xScale + " by " + yScale + " pixels");
+        this.xScale = xScale;
+        this.yScale = yScale;
+    }
+
+    /**
+     * @return The size of the image of the whole city with the current scale.
+     */
+    public Dimension getImageSize() {
+        return new Dimension(cityWidth * xScale + 1, cityHeight * yScale + 1);
+    }
+
+    /**
+     * Clear the given area and draw the grid.
+     */
+    public void drawGrid(Graphics g, int width, int height) {
+        g.setColor(Color.white);
+        g.fillRect(0, 0, width - 1, height - 1);
+
+        g.setColor(Color.gray);
+
+        for (int i = 0, x = 0; x < width; i++, x = i * xScale)
+            g.drawLine(x, 0, x, height - 1);
+
+        for (int i = 0, y = 0; y < height; i++, y = i * yScale)
+            g.drawLine(0, y, width - 1, y);
+    }
+
+    /**
+     * Draw an image in the cell (x, y).
+     */
+    public void drawImage(Graphics g, int x, int y, Image image, ImageObserver observer) {
+        g.drawImage(image, x * xScale + 1, y * yScale + 1, xScale - 1, yScale - 1, observer);
+    }
+
+    /**
+     * Draw the grid and the given items on an image of getImageSize().
+     */
+    public void draw(Graphics g, Collection<? extends DrawableItem> items) {
+        Dimension size = getImageSize();
+        drawGrid(g, size.width, size.height);
+        for (DrawableItem item : items) {
+            Location location = item.getLocation();
+            drawImage(g, location.getX(), location.getY(), item.getImage(), null);
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package view;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+
+import model.CitySnapshot;
+import model.DrawableItem;
+import model.JournalReplay;
+
+/**
+ * Export the state of the city at every step as a sequence of PNG images
+ * (frame-000000.png, frame-000001.png... numbered by step), to be assembled
+ * into a video. Nothing is displayed: the frames are drawn offscreen by a
+ * CityRenderer, with the images of the GUI.
+ *
+ * The frames are drawn and encoded by a pool of worker threads, one per core
+ * by default, from the items of CitySnapshots: the caller (the simulation, or a
+ * JournalReplay) only takes the snapshots. At most QUEUE_PER_THREAD frames per
+ * worker wait to be drawn, the caller waits beyond that for the workers to
+ * keep up, so that the memory used stays bounded.
+ *
+ * Usage from the command line, to export a journal written by the simulation
+ * (see Journal):
+ *
+ * java view.FrameExporter journal directory [cellSize [from to]]
+ *
+ * @author Bohao LI
+ * @version 2017.03.23
+ */
+public class FrameExporter implements Closeable {
+
+    private static final int QUEUE_PER_THREAD = 4;
+
+    private final Path directory;
+    private final CityRenderer renderer;
+    private final Dimension size;
+    private final ExecutorService executor;
+    // One permit per frame allowed to wait for a worker.
+    private final Semaphore pending;
+    // Every worker draws in its own image.
+    private final ThreadLocal<BufferedImage> images;
+
+    private final AtomicInteger nbFrames;
+    private volatile Exception failure;
+
+    /**
+     * Create an exporter writing the frames in the given directory, created if
+     * needed.
+     *
+     * @param directory
+     *            The directory of the frames.
+     * @param cityWidth
+     *            The width of the city, in cells.
+     * @param cityHeight
+     *            The height of the city, in cells.
+     * @param cellSize
+     *            The size of a cell in the frames, in pixels.
+     * @param nbThreads
+     *            The number of worker threads.
+     * @throws IOException
+     *             If the directory cannot be created.
+     */
+    public FrameExporter(Path directory, int cityWidth, int cityHeight, int cellSize, int nbThreads)
+            throws IOException {
+        if (nbThreads < 1)
+            throw new IllegalArgumentException("Number of threads must be positive: " + nbThreads);
+        this.directory = Files.createDirectories(directory);
+        renderer = new CityRenderer(cityWidth, cityHeight);
+        renderer.setScale(cellSize, cellSize);
+        size = renderer.getImageSize();
+        executor = Executors.newFixedThreadPool(nbThreads, runnable -> {
+            Thread thread = new Thread(runnable, "frame-exporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        pending = new Semaphore(QUEUE_PER_THREAD * nbThreads);
+        images = ThreadLocal.withInitial(() -> new BufferedImage(size.width, size.height, BufferedImage.TYPE_INT_RGB));
+        nbFrames = new AtomicInteger();
+    }
+
+    /**
+     * Create an exporter with one worker thread per core.
+     */
+    public FrameExporter(Path directory, int cityWidth, int cityHeight, int cellSize) throws IOException {
+        this(directory, cityWidth, cityHeight, cellSize, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Export the frame of a step. The items are taken from the snapshot right
+     * away, it may change as soon as the method returns.
+     *
+     * @param snapshot
+     *            The state of the city at the step.
+     */
+    public void export(CitySnapshot snapshot) {
+        if (failure != null)
+            throw new IllegalStateException("Frame export failed", failure);
+        int time = snapshot.getTime();
+        List<DrawableItem> items = snapshot.getItems();
+        try {
+            pending.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        executor.execute(() -> {
+            try {
+                write(time, items);
+            } catch (IOException | RuntimeException e) {
+                failure = e;
+            } finally {
+                pending.release();
+            }
+        });
+    }
+
+    /**
+     * Export the frames of a range of steps of a journal.
+     *
+     * @param replay
+     *            The replay of the journal.
+     * @param from
+     *            The first step.
+     * @param to
+     *            The last step.
+     */
+    public void export(JournalReplay replay, int from, int to) {
+        replay.replay(from, to, this::export);
+    }
+
+    /**
+     * Draw a frame and write it.
+     */
+    private void write(int time, List<DrawableItem> items) throws IOException {
+        BufferedImage image = images.get();
+        Graphics2D g = image.createGraphics();
+        try {
+            renderer.draw(g, items);
+            g.setColor(Color.black);
+            g.drawString("Step " + time, 4, Math.min(size.height - 2, 14));
+        } finally {
+            g.dispose();
+        }
+        if (!ImageIO.write(image, "png", directory.resolve(String.format("frame-%06d.png", time)).toFile()))
+            throw new IOException("No PNG writer");
+        nbFrames.incrementAndGet();
+    }
+
+    /**
+     * @return The number of frames written so far.
+     */
+    public int getNbFrames() {
+        return nbFrames.get();
+    }
+
+    /**
+     * Wait for the frames exported to be written.
+     *
+     * @throws IOException
+     *             If a frame could not be written.
+     */
+    @Override
+    public void close() throws IOException {
+        executor.shutdown();
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.SECONDS))
+                ;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null)
+            throw new IOException("Frame export failed", failure);
+    }
+
+    /**
+     * Export the frames of a journal file.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2 && args.length != 3 && args.length != 5) {
+            System.err.println("Usage: java view.FrameExporter journal directory [cellSize [from to]]");
+            System.exit(1);
+        }
+        int cellSize = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        long start = System.currentTimeMillis();
+        FrameExporter exporter;
+        try (JournalReplay replay = new JournalReplay(Paths.get(args[0]))) {
+            exporter = new FrameExporter(Paths.get(args[1]), replay.getWidth(), replay.getHeight(), cellSize);
+            // Closed before the frames are counted, once they are all written.
+            try (exporter) {
+                int from = args.length > 3 ? Integer.parseInt(args[3]) : replay.getFirstTime();
+                int to = args.length > 3 ? Integer.parseInt(args[4]) : replay.getLastTime();
+                exporter.export(replay, from, to);
+            }
+        }
+        System.out.println(exporter.getNbFrames() + " frames exported in " + (System.currentTimeMillis() - start)
+                + " ms");
+    }
+}